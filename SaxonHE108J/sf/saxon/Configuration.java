@@ -30,6 +30,7 @@ import net.sf.saxon.query.QueryModule;
 import net.sf.saxon.query.StaticQueryContext;
 import net.sf.saxon.query.XQueryExpression;
 import net.sf.saxon.query.XQueryParser;
+import net.sf.saxon.regex.RegexCache;
 import net.sf.saxon.regex.RegularExpression;
 import net.sf.saxon.resource.*;
 import net.sf.saxon.s9api.HostLanguage;
@@ -72,6 +73,9 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.IntPredicate;
 import java.util.function.Predicate;
 
@@ -203,6 +207,17 @@ public class Configuration implements SourceResolver, NotationSet {
     private int regexBacktrackingLimit = 10000000;
 
     private TreeStatistics treeStatistics = new TreeStatistics();
+    private transient volatile ForkJoinPool workerPool = null;
+    private int memoFunctionCacheSize = 10000;
+    private boolean offHeapTreeStorage = false;
+    private File offHeapTreeDirectory = null;
+    private boolean compactTreeText = false;
+    private int parallelSortThreshold = 50000;
+    private int sortSpillThreshold = 0;
+    private File sortSpillDirectory = null;
+    private int asyncResultDocumentQueueSize = 0;
+    private transient volatile ExecutorService outputWriterPool = null;
+    private final RegexCache regexCache = new RegexCache(500);
 
     /**
      * Constant indicating the XML Version 1.0
@@ -1955,8 +1970,9 @@ public class Configuration implements SourceResolver, NotationSet {
     }
 
     /**
-     * Compile a regular expression (or, in some configurations, get a compiled
-     * regular expression from a cache
+     * Compile a regular expression, or get a compiled regular expression from the cache
+     * if the same regular expression has been compiled previously with the same flags and options.
+     * Regular expressions whose compilation produces warnings are not cached.
      *
      * @param regex        the regular expression as a string
      * @param flags        the value of the flags attribute
@@ -1969,7 +1985,33 @@ public class Configuration implements SourceResolver, NotationSet {
 
     public RegularExpression compileRegularExpression(CharSequence regex, String flags, String hostLanguage, List<String> warnings)
             throws XPathException {
-        return Version.platform.compileRegularExpression(this, regex, flags, hostLanguage, warnings);
+        if (regexCache.getMaximumSize() <= 0) {
+            return Version.platform.compileRegularExpression(this, regex, flags, hostLanguage, warnings);
+        }
+        String regexStr = regex.toString();
+        RegularExpression re = regexCache.get(regexStr, flags, hostLanguage, defaultRegexEngine);
+        if (re == null) {
+            List<String> compilerWarnings = new ArrayList<>(1);
+            re = Version.platform.compileRegularExpression(this, regex, flags, hostLanguage, compilerWarnings);
+            if (compilerWarnings.isEmpty()) {
+                regexCache.put(regexStr, flags, hostLanguage, defaultRegexEngine, re);
+            } else if (warnings != null) {
+                warnings.addAll(compilerWarnings);
+            }
+        }
+        return re;
+    }
+
+    /**
+     * Get the cache of compiled regular expressions. This can be used to change the size of the cache
+     * (setting it to zero disables caching), or to obtain statistics on the cache hit rate.
+     *
+     * @return the cache of compiled regular expressions
+     * @since 10.8
+     */
+
+    public RegexCache getRegexCache() {
+        return regexCache;
     }
 
     /**
@@ -4245,6 +4287,219 @@ public class Configuration implements SourceResolver, NotationSet {
         return treeStatistics;
     }
 
+    /**
+     * Set the maximum number of results retained by the cache of a memo function (a function declared
+     * with <code>cache="yes"</code> in XSLT, or <code>%saxon:memo-function</code> in XQuery). When the limit
+     * is reached, the least recently used entries are discarded. The limit applies separately to each function,
+     * and for each function, to each transformation or query (or to the shared cache, if the function is
+     * declared with <code>cache="shared"</code>).
+     *
+     * @param size the maximum number of entries in each memo function cache. The default is 10000.
+     * @since 10.8
+     */
+
+    public void setMemoFunctionCacheSize(int size) {
+        memoFunctionCacheSize = size;
+    }
+
+    /**
+     * Get the maximum number of results retained by the cache of a memo function
+     *
+     * @return the maximum number of entries in each memo function cache
+     * @since 10.8
+     */
+
+    public int getMemoFunctionCacheSize() {
+        return memoFunctionCacheSize;
+    }
+
+    /**
+     * Say whether the text content of large TinyTree documents should be held outside the Java heap.
+     * If set, a document whose text content exceeds 65000 characters holds that content in direct
+     * byte buffers, or in a memory-mapped temporary file if {@link #setOffHeapTreeDirectory(File)} has
+     * been called. This reduces the heap needed to process very large documents, at some cost in speed.
+     * The setting affects documents built after it is changed.
+     *
+     * @param offHeap true if text content of large trees is to be held outside the Java heap.
+     *                The default is false.
+     * @since 10.8
+     */
+
+    public void setOffHeapTreeStorage(boolean offHeap) {
+        offHeapTreeStorage = offHeap;
+    }
+
+    /**
+     * Ask whether the text content of large TinyTree documents is held outside the Java heap
+     *
+     * @return true if text content of large trees is to be held outside the Java heap
+     * @since 10.8
+     */
+
+    public boolean isOffHeapTreeStorage() {
+        return offHeapTreeStorage;
+    }
+
+    /**
+     * Set the directory used for memory-mapped files holding the text content of large TinyTree documents,
+     * when off-heap tree storage is enabled
+     *
+     * @param directory the directory in which temporary files are created. If null (the default), direct
+     *                  byte buffers are used instead of memory-mapped files.
+     * @since 10.8
+     */
+
+    public void setOffHeapTreeDirectory(File directory) {
+        offHeapTreeDirectory = directory;
+    }
+
+    /**
+     * Get the directory used for memory-mapped files holding the text content of large TinyTree documents
+     *
+     * @return the directory, or null if direct byte buffers are used
+     * @since 10.8
+     */
+
+    public File getOffHeapTreeDirectory() {
+        return offHeapTreeDirectory;
+    }
+
+    /**
+     * Say whether the text content of large TinyTree documents should be held compactly. If set, a document
+     * whose text content exceeds 65000 characters holds that content in segments of 65536 characters, each
+     * of which uses one byte per character for as long as all its characters are in the Latin-1 range.
+     * Values extracted from such segments are {@link net.sf.saxon.regex.LatinString} views of the segment,
+     * which are used without copying by operations such as regular expression matching. The setting has
+     * no effect if off-heap tree storage is enabled, and affects documents built after it is changed.
+     *
+     * @param compact true if text content of large trees is to be held compactly. The default is false.
+     * @since 10.8
+     */
+
+    public void setCompactTreeText(boolean compact) {
+        compactTreeText = compact;
+    }
+
+    /**
+     * Ask whether the text content of large TinyTree documents is held compactly
+     *
+     * @return true if Latin-1 text content of large trees is held using one byte per character
+     * @since 10.8
+     */
+
+    public boolean isCompactTreeText() {
+        return compactTreeText;
+    }
+
+    /**
+     * Set the minimum number of items for which a sort (for example <code>xsl:sort</code> or an XQuery
+     * <code>order by</code> clause) is performed in parallel on the worker pool. Parallel sorting is used
+     * only if multi-threading is enabled (see {@link #isMultithreadingEnabled()}); the result is the same
+     * as that of a sequential sort.
+     *
+     * @param threshold the minimum number of items to be sorted in parallel. The default is 50000.
+     * @since 10.8
+     */
+
+    public void setParallelSortThreshold(int threshold) {
+        parallelSortThreshold = threshold;
+    }
+
+    /**
+     * Get the minimum number of items for which a sort is performed in parallel on the worker pool
+     *
+     * @return the minimum number of items to be sorted in parallel
+     * @since 10.8
+     */
+
+    public int getParallelSortThreshold() {
+        return parallelSortThreshold;
+    }
+
+    /**
+     * Set the number of items that a sort (for example <code>xsl:sort</code>, <code>xsl:perform-sort</code>,
+     * or an XQuery <code>order by</code> clause) holds in memory before writing sorted runs to temporary files.
+     * When the threshold is exceeded, each batch of items is sorted and written to disk with its sort keys,
+     * and the runs are merged as the sorted sequence is read. This allows very large sequences to be sorted
+     * without holding all the items and sort keys in memory. Only items and sort keys of commonly-used types
+     * (strings, numbers, booleans, and nodes in a TinyTree) can be written to disk; a sort involving other
+     * items is performed in memory.
+     *
+     * @param threshold the maximum number of items held in memory during a sort; zero (the default)
+     *                  means that sorting always takes place in memory
+     * @since 10.8
+     */
+
+    public void setSortSpillThreshold(int threshold) {
+        sortSpillThreshold = threshold;
+    }
+
+    /**
+     * Get the number of items that a sort holds in memory before writing sorted runs to temporary files
+     *
+     * @return the threshold, or zero if sorting always takes place in memory
+     * @since 10.8
+     */
+
+    public int getSortSpillThreshold() {
+        return sortSpillThreshold;
+    }
+
+    /**
+     * Set the directory in which temporary files are created when a sort exceeds the threshold set using
+     * {@link #setSortSpillThreshold(int)}
+     *
+     * @param directory the directory for temporary files; if null (the default), the system default
+     *                  temporary directory is used
+     * @since 10.8
+     */
+
+    public void setSortSpillDirectory(File directory) {
+        sortSpillDirectory = directory;
+    }
+
+    /**
+     * Get the directory in which temporary files are created by sorts that exceed the spill threshold
+     *
+     * @return the directory, or null if the system default temporary directory is used
+     * @since 10.8
+     */
+
+    public File getSortSpillDirectory() {
+        return sortSpillDirectory;
+    }
+
+    /**
+     * Set the number of secondary result documents (written using <code>xsl:result-document</code>) that may be
+     * held in memory awaiting writing. If the value is positive, a result document whose destination is a file
+     * is serialized into memory, and the file is written asynchronously on the output writer pool (see
+     * {@link #getOutputWriterPool()}), so that the transformation does not wait for the filesystem. When the
+     * given number of completed documents are awaiting writing, the transformation waits until one of them
+     * has been written. Any failure to write a file is reported when the transformation completes.
+     * <p>The setting affects only the standard result document resolver, and only result documents
+     * written to <code>file:</code> URIs.</p>
+     *
+     * @param size the maximum number of result documents awaiting writing; zero (the default) means
+     *             that result documents are written synchronously
+     * @since 10.8
+     */
+
+    public void setAsyncResultDocumentQueueSize(int size) {
+        asyncResultDocumentQueueSize = size;
+    }
+
+    /**
+     * Get the number of secondary result documents that may be held in memory awaiting writing
+     *
+     * @return the maximum number of result documents awaiting writing, or zero if result documents are
+     * written synchronously
+     * @since 10.8
+     */
+
+    public int getAsyncResultDocumentQueueSize() {
+        return asyncResultDocumentQueueSize;
+    }
+
     /**
      * Load a named output emitter or SAX2 ContentHandler and check it is OK.
      *
@@ -4531,6 +4786,7 @@ public class Configuration implements SourceResolver, NotationSet {
 
                 case FeatureCode.REGEX_BACKTRACKING_LIMIT:
                     regexBacktrackingLimit = requireInteger(name, value);
+                    regexCache.clear();
                     break;
 
                 case FeatureCode.SERIALIZER_FACTORY_CLASS:
@@ -5415,6 +5671,92 @@ public class Configuration implements SourceResolver, NotationSet {
         return null;
     }
 
+    /**
+     * Ask whether multi-threaded evaluation of instructions such as <code>xsl:fork</code>
+     * is permitted. This is the case if the property {@link Feature#ALLOW_MULTITHREADING} is set.
+     *
+     * @return true if instructions may be evaluated in parallel on the worker pool
+     * @since 10.8
+     */
+
+    public boolean isMultithreadingEnabled() {
+        return getBooleanProperty(Feature.ALLOW_MULTITHREADING);
+    }
+
+    /**
+     * Get the pool of worker threads used for multi-threaded evaluation of instructions,
+     * for example the prongs of an <code>xsl:fork</code> instruction. The pool is created
+     * lazily on first use, with parallelism equal to the number of available processors,
+     * and is shared by all transformations and queries running under this Configuration.
+     *
+     * @return the worker pool
+     * @since 10.8
+     */
+
+    public ForkJoinPool getWorkerPool() {
+        ForkJoinPool pool = workerPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = workerPool;
+                if (pool == null) {
+                    pool = workerPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Set the pool of worker threads used for multi-threaded evaluation of instructions.
+     * This allows an application to control the number of threads used, or to share a
+     * pool between several Configurations.
+     *
+     * @param pool the worker pool to be used
+     * @since 10.8
+     */
+
+    public void setWorkerPool(ForkJoinPool pool) {
+        workerPool = pool;
+    }
+
+    /**
+     * Get the pool of threads used to write result documents asynchronously (see
+     * {@link #setAsyncResultDocumentQueueSize(int)}). The pool is created lazily on first use, with two
+     * daemon threads, and is shared by all transformations running under this Configuration.
+     *
+     * @return the output writer pool
+     * @since 10.8
+     */
+
+    public ExecutorService getOutputWriterPool() {
+        ExecutorService pool = outputWriterPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = outputWriterPool;
+                if (pool == null) {
+                    pool = outputWriterPool = Executors.newFixedThreadPool(2, r -> {
+                        Thread t = new Thread(r, "saxon-output-writer");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Set the pool of threads used to write result documents asynchronously. This allows an
+     * application to control the number of threads used, or to share a pool between several Configurations.
+     *
+     * @param pool the output writer pool to be used
+     * @since 10.8
+     */
+
+    public void setOutputWriterPool(ExecutorService pool) {
+        outputWriterPool = pool;
+    }
+
     /**
      * Make an XSLT CompilerInfo object - can be overridden in a subclass to produce variants
      * capable of optimization
@@ -9,10 +9,14 @@ package net.sf.saxon.expr.flwor;
 
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.expr.sort.*;
-import net.sf.saxon.trans.NoDynamicContextException;
+import net.sf.saxon.trans.UncheckedXPathException;
 import net.sf.saxon.trans.XPathException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Represents the tuple stream delivered by an "order by" clause. This sorts the tuple stream supplied
@@ -26,6 +30,8 @@ public class OrderByClausePull extends TuplePull {
     private int currentPosition = -1;
     private AtomicComparer[] comparers;
     private ArrayList<ItemToBeSorted> tupleArray = new ArrayList<ItemToBeSorted>(100);
+    private ExternalSorter<ItemToBeSorted> externalSorter;
+    private Iterator<ItemToBeSorted> mergedTuples;
 
     public OrderByClausePull(TuplePull base, TupleExpression tupleExpr, OrderByClause orderBy, XPathContext context) {
         this.base = base;
@@ -53,46 +59,74 @@ public class OrderByClausePull extends TuplePull {
         if (currentPosition < 0) {
             currentPosition = 0;
             int position = 0;
-
-            while (base.nextTuple(context)) {
-                Tuple tuple = tupleExpr.evaluateItem(context);
-                SortKeyDefinitionList sortKeyDefinitions = orderByClause.getSortKeyDefinitions();
-                ItemToBeSorted itbs = new ItemToBeSorted(sortKeyDefinitions.size());
-                itbs.value = tuple;
-                for (int i = 0; i < sortKeyDefinitions.size(); i++) {
-                    itbs.sortKeyValues[i] = orderByClause.evaluateSortKey(i, context);
-                }
-                itbs.originalPosition = ++position;
-                tupleArray.add(itbs);
+            Comparator<ObjectToBeSorted<?>> comparator = ObjectToBeSorted.makeComparator(comparers);
+            if (ExternalSorter.isEnabled(context.getConfiguration())) {
+                externalSorter = new ExternalSorter<>(context.getConfiguration(), comparator,
+                                                      SortRecordCodec.forItemsToBeSorted(comparers.length));
             }
 
             try {
-                tupleArray.sort((a, b) -> {
-                    try {
-                        for (int i = 0; i < comparers.length; i++) {
-                            int comp = comparers[i].compareAtomicValues(
-                                    a.sortKeyValues[i], b.sortKeyValues[i]);
-                            if (comp != 0) {
-                                // we have found a difference, so we can return
-                                return comp;
-                            }
-                        }
-                    } catch (NoDynamicContextException e) {
-                        throw new AssertionError("Sorting without dynamic context: " + e.getMessage());
+                while (base.nextTuple(context)) {
+                    Tuple tuple = tupleExpr.evaluateItem(context);
+                    SortKeyDefinitionList sortKeyDefinitions = orderByClause.getSortKeyDefinitions();
+                    ItemToBeSorted itbs = new ItemToBeSorted(sortKeyDefinitions.size());
+                    itbs.value = tuple;
+                    for (int i = 0; i < sortKeyDefinitions.size(); i++) {
+                        itbs.sortKeyValues[i] = orderByClause.evaluateSortKey(i, context);
+                    }
+                    itbs.originalPosition = ++position;
+                    if (externalSorter != null) {
+                        externalSorter.add(itbs);
+                    } else {
+                        tupleArray.add(itbs);
+                    }
+                }
+
+                if (externalSorter != null) {
+                    if (externalSorter.hasSpilled()) {
+                        mergedTuples = externalSorter.iterator();
+                    } else {
+                        tupleArray.addAll(externalSorter.getBufferedRecords());
+                        externalSorter.close();
+                        externalSorter = null;
                     }
+                }
 
-                    // all sort keys equal: return the items in their original order
-                    // TODO: unnecessary, we are now using a stable sort routine
-                    return a.originalPosition - b.originalPosition;
-                });
+                ForkJoinPool pool = ParallelSorter.getSortPool(context, tupleArray.size());
+                if (pool != null) {
+                    ItemToBeSorted[] tuples = tupleArray.toArray(new ItemToBeSorted[0]);
+                    ParallelSorter.sort(pool, tuples, tuples.length, comparator);
+                    tupleArray = new ArrayList<>(Arrays.asList(tuples));
+                } else {
+                    tupleArray.sort(comparator);
+                }
                 //GenericSorter.quickSort(0, position, this);
             } catch (ClassCastException e) {
+                close();
                 XPathException err = new XPathException("Non-comparable types found while sorting: " + e.getMessage());
                 err.setErrorCode("XPTY0004");
                 throw err;
             }
         }
 
+        if (mergedTuples != null) {
+            try {
+                if (mergedTuples.hasNext()) {
+                    tupleExpr.setCurrentTuple(context, (Tuple) mergedTuples.next().value);
+                    return true;
+                } else {
+                    return false;
+                }
+            } catch (ClassCastException e) {
+                close();
+                XPathException err = new XPathException("Non-comparable types found while sorting: " + e.getMessage());
+                err.setErrorCode("XPTY0004");
+                throw err;
+            } catch (UncheckedXPathException e) {
+                throw e.getXPathException();
+            }
+        }
+
         if (currentPosition < tupleArray.size()) {
             tupleExpr.setCurrentTuple(context, (Tuple) tupleArray.get(currentPosition++).value);
             return true;
@@ -109,6 +143,8 @@ public class OrderByClausePull extends TuplePull {
     @Override
     public void close() {
         base.close();
+        if (externalSorter != null) {
+            externalSorter.close();
+        }
     }
 }
-
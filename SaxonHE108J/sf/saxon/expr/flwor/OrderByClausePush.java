@@ -10,10 +10,14 @@ package net.sf.saxon.expr.flwor;
 import net.sf.saxon.event.Outputter;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.expr.sort.*;
-import net.sf.saxon.trans.NoDynamicContextException;
+import net.sf.saxon.trans.UncheckedXPathException;
 import net.sf.saxon.trans.XPathException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Represents the tuple stream delivered by an "order by" clause. This sorts the tuple stream supplied
@@ -28,6 +32,7 @@ public class OrderByClausePush extends TuplePush {
     private XPathContext context;
     private int position = 0;
     private ArrayList<ItemToBeSorted> tupleArray = new ArrayList<>(100);
+    private ExternalSorter<ItemToBeSorted> externalSorter;
 
     public OrderByClausePush(Outputter outputter, TuplePush destination, TupleExpression tupleExpr, OrderByClause orderBy, XPathContext context) {
         super(outputter);
@@ -41,6 +46,10 @@ public class OrderByClausePush extends TuplePush {
         for (int n = 0; n < comparers.length; n++) {
             this.comparers[n] = suppliedComparers[n].provideContext(context);
         }
+        if (ExternalSorter.isEnabled(context.getConfiguration())) {
+            externalSorter = new ExternalSorter<>(context.getConfiguration(), ObjectToBeSorted.makeComparator(comparers),
+                                                  SortRecordCodec.forItemsToBeSorted(comparers.length));
+        }
     }
 
     /**
@@ -56,7 +65,16 @@ public class OrderByClausePush extends TuplePush {
             itbs.sortKeyValues[i] = orderByClause.evaluateSortKey(i, context);
         }
         itbs.originalPosition = ++position;
-        tupleArray.add(itbs);
+        if (externalSorter != null) {
+            try {
+                externalSorter.add(itbs);
+            } catch (ClassCastException e) {
+                externalSorter.close();
+                throw makeNonComparableError(e);
+            }
+        } else {
+            tupleArray.add(itbs);
+        }
 
     }
 
@@ -65,29 +83,38 @@ public class OrderByClausePush extends TuplePush {
      */
     @Override
     public void close() throws XPathException {
-        try {
-            tupleArray.sort((a, b) -> {
-                try {
-                    for (int i = 0; i < comparers.length; i++) {
-                        int comp = comparers[i].compareAtomicValues(
-                                a.sortKeyValues[i], b.sortKeyValues[i]);
-                        if (comp != 0) {
-                            // we have found a difference, so we can return
-                            return comp;
-                        }
+        if (externalSorter != null) {
+            try {
+                if (externalSorter.hasSpilled()) {
+                    Iterator<ItemToBeSorted> sorted = externalSorter.iterator();
+                    while (sorted.hasNext()) {
+                        tupleExpr.setCurrentTuple(context, (Tuple) sorted.next().value);
+                        destination.processTuple(context);
                     }
-                } catch (NoDynamicContextException e) {
-                    throw new AssertionError("Sorting without dynamic context: " + e.getMessage());
+                    destination.close();
+                    return;
                 }
-
-                // all sort keys equal: return the items in their original order
-                // TODO: unnecessary, we are now using a stable sort routine
-                return a.originalPosition - b.originalPosition;
-            });
+                tupleArray.addAll(externalSorter.getBufferedRecords());
+            } catch (ClassCastException e) {
+                throw makeNonComparableError(e);
+            } catch (UncheckedXPathException e) {
+                throw e.getXPathException();
+            } finally {
+                externalSorter.close();
+            }
+        }
+        Comparator<ObjectToBeSorted<?>> comparator = ObjectToBeSorted.makeComparator(comparers);
+        ForkJoinPool pool = ParallelSorter.getSortPool(context, tupleArray.size());
+        try {
+            if (pool != null) {
+                ItemToBeSorted[] tuples = tupleArray.toArray(new ItemToBeSorted[0]);
+                ParallelSorter.sort(pool, tuples, tuples.length, comparator);
+                tupleArray = new ArrayList<>(Arrays.asList(tuples));
+            } else {
+                tupleArray.sort(comparator);
+            }
         } catch (ClassCastException e) {
-            XPathException err = new XPathException("Non-comparable types found while sorting: " + e.getMessage());
-            err.setErrorCode("XPTY0004");
-            throw err;
+            throw makeNonComparableError(e);
         }
 
         for (ItemToBeSorted itbs : tupleArray) {
@@ -96,5 +123,10 @@ public class OrderByClausePush extends TuplePush {
         }
         destination.close();
     }
-}
 
+    private static XPathException makeNonComparableError(ClassCastException e) {
+        XPathException err = new XPathException("Non-comparable types found while sorting: " + e.getMessage());
+        err.setErrorCode("XPTY0004");
+        return err;
+    }
+}
@@ -99,6 +99,17 @@ public class ForEach extends Instruction implements ContextMappingFunction, Cont
         return isInstruction;
     }
 
+    /**
+     * Ask whether the body of the loop contains a tail call on the containing function
+     *
+     * @return true if the action contains a tail call
+     * @since 10.8
+     */
+
+    public boolean containsTailCall() {
+        return containsTailCall;
+    }
+
 
     /**
      * Get the select expression
@@ -466,12 +477,27 @@ public class ForEach extends Instruction implements ContextMappingFunction, Cont
 
     @Override
     public TailCall processLeavingTail(Outputter output, XPathContext context) throws XPathException {
+        return processItems(getSelect().iterate(context), output, context);
+    }
+
+    /**
+     * Apply the action to each item in a sequence that has already been selected
+     *
+     * @param input   iterator over the selected items
+     * @param output  the destination for the result
+     * @param context the dynamic context
+     * @return a tail call, if the action contains one, or null
+     * @throws XPathException if a dynamic error occurs
+     * @since 10.8
+     */
+
+    protected TailCall processItems(SequenceIterator input, Outputter output, XPathContext context) throws XPathException {
         Controller controller = context.getController();
         assert controller != null;
 
         XPathContextMajor c2 = context.newContext();
         c2.setOrigin(this);
-        FocusIterator iter = c2.trackFocus(getSelect().iterate(context));
+        FocusIterator iter = c2.trackFocus(input);
         c2.setCurrentTemplateRule(null);
 
         Expression action = getAction();
@@ -8,25 +8,33 @@
 package net.sf.saxon.expr.instruct;
 
 import net.sf.saxon.event.Outputter;
-import net.sf.saxon.expr.Expression;
-import net.sf.saxon.expr.Operand;
-import net.sf.saxon.expr.OperandRole;
-import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.event.OutputterEventBuffer;
+import net.sf.saxon.expr.*;
 import net.sf.saxon.expr.parser.ExpressionTool;
 import net.sf.saxon.expr.parser.RebindingMap;
+import net.sf.saxon.om.FocusIterator;
 import net.sf.saxon.om.StandardNames;
 import net.sf.saxon.trace.ExpressionPresenter;
 import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.ManualIterator;
 import net.sf.saxon.type.AnyItemType;
 import net.sf.saxon.type.ErrorType;
 import net.sf.saxon.type.ItemType;
 import net.sf.saxon.type.Type;
 
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
  * This class implements an xsl:fork expression.
+ * <p>If multi-threading is enabled in the configuration (see {@link net.sf.saxon.lib.Feature#ALLOW_MULTITHREADING}),
+ * the prongs of the fork are evaluated in parallel using the worker pool of the configuration. Each prong
+ * writes its output to an {@link OutputterEventBuffer}, and the buffers are replayed to the real destination
+ * in document order once all the prongs have finished, so the result is the same as for sequential
+ * evaluation.</p>
  */
 
 public class Fork extends Instruction {
@@ -151,12 +159,135 @@ public class Fork extends Instruction {
      */
     @Override
     public TailCall processLeavingTail(Outputter output, XPathContext context) throws XPathException {
-        for (Operand o : operands()) {
-            o.getChildExpression().process(output, context);
+        if (isParallelizable(context)) {
+            processInParallel(output, (XPathContextMinor) context);
+        } else {
+            for (Operand o : operands()) {
+                o.getChildExpression().process(output, context);
+            }
         }
         return null;
     }
 
+    /**
+     * Decide whether the prongs of the fork can be evaluated in parallel. This requires more than one
+     * prong, multi-threading to be enabled in the configuration, and no trace listener to be active
+     * (trace listeners are not expected to be thread-safe).
+     *
+     * @param context the dynamic context
+     * @return true if parallel evaluation is to be used
+     */
+
+    private boolean isParallelizable(XPathContext context) {
+        return getSize() > 1 &&
+                context instanceof XPathContextMinor &&
+                context.getConfiguration().isMultithreadingEnabled() &&
+                context.getController() != null &&
+                context.getController().getTraceListener() == null;
+    }
+
+    /**
+     * Evaluate the prongs of the fork in parallel. The first prong is evaluated in the current thread,
+     * the others are submitted to the worker pool. Each prong writes to its own event buffer, and
+     * the buffers are replayed in order to the supplied output destination. If any prong fails,
+     * the error from the first failing prong (in document order) is reported.
+     *
+     * @param output the destination for the result
+     * @param context the dynamic context
+     * @throws XPathException if any of the prongs fails with a dynamic error
+     */
+
+    private void processInParallel(Outputter output, XPathContextMinor context) throws XPathException {
+        int n = getSize();
+        ProngTask[] tasks = new ProngTask[n];
+        for (int i = 0; i < n; i++) {
+            OutputterEventBuffer buffer = new OutputterEventBuffer();
+            buffer.setPipelineConfiguration(output.getPipelineConfiguration());
+            tasks[i] = new ProngTask(getProng(i), buffer, makeProngContext(context));
+        }
+        ForkJoinPool pool = context.getConfiguration().getWorkerPool();
+        for (int i = 1; i < n; i++) {
+            if (ForkJoinTask.getPool() == pool) {
+                tasks[i].fork();
+            } else {
+                pool.execute(tasks[i]);
+            }
+        }
+        try {
+            tasks[0].invoke();
+        } finally {
+            // Wait for the other prongs even if this one failed, so that none of them is left running
+            for (int i = 1; i < n; i++) {
+                tasks[i].quietlyJoin();
+            }
+        }
+        for (int i = 1; i < n; i++) {
+            tasks[i].join();
+        }
+        for (ProngTask task : tasks) {
+            if (task.error != null) {
+                throw task.error;
+            }
+        }
+        for (ProngTask task : tasks) {
+            task.buffer.replay(output);
+        }
+    }
+
+    /**
+     * Make a copy of the dynamic context for use by one prong of the fork. The copy has its own stack
+     * frame, and a private focus iterator positioned at the current context item, so that the prongs
+     * do not interfere with each other's state.
+     *
+     * @param context the dynamic context of the xsl:fork instruction
+     * @return a new context suitable for use in a different thread
+     */
+
+    private static XPathContextMajor makeProngContext(XPathContextMinor context) {
+        XPathContextMajor c2 = XPathContextMajor.newThreadContext(context);
+        FocusIterator focus = context.getCurrentIterator();
+        if (focus != null) {
+            ManualIterator single = new ManualIterator(focus.current(), focus.position());
+            single.setLastPositionFinder(() -> {
+                synchronized (focus) {
+                    return context.getLast();
+                }
+            });
+            c2.setCurrentIterator(single);
+        }
+        return c2;
+    }
+
+    /**
+     * A task that evaluates one prong of the fork, capturing its output in an event buffer
+     */
+
+    private static class ProngTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Expression prong;
+        private final OutputterEventBuffer buffer;
+        private final XPathContext context;
+        private XPathException error;
+
+        ProngTask(Expression prong, OutputterEventBuffer buffer, XPathContext context) {
+            this.prong = prong;
+            this.buffer = buffer;
+            this.context = context;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                prong.process(buffer, context);
+                context.waitForChildThreads();
+            } catch (XPathException e) {
+                error = e;
+            }
+        }
+    }
+
     /**
      * Diagnostic print of expression structure. The abstract expression tree
      * is written to the supplied output destination.
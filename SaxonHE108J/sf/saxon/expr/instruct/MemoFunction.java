@@ -10,22 +10,37 @@ package net.sf.saxon.expr.instruct;
 import net.sf.saxon.Controller;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.expr.parser.ExpressionTool;
+import net.sf.saxon.expr.sort.LRUCache;
 import net.sf.saxon.om.*;
 import net.sf.saxon.trans.XPathException;
-import net.sf.saxon.tree.util.FastStringBuffer;
-import net.sf.saxon.type.Type;
 import net.sf.saxon.value.AtomicValue;
-import net.sf.saxon.value.QNameValue;
+import net.sf.saxon.value.CalendarValue;
+import net.sf.saxon.value.DoubleValue;
+import net.sf.saxon.value.FloatValue;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A user-defined function that is declared as a memo function, meaning that it remembers results
  * of previous calls.
+ * <p>Results are held in a bounded least-recently-used cache, whose size is determined by
+ * {@link net.sf.saxon.Configuration#getMemoFunctionCacheSize()}. The cache is keyed on the values of the
+ * arguments: nodes are compared by identity, atomic values by their type and value, and function items
+ * by identity. By default each transformation or query has its own cache for each function; if the function
+ * is declared with <code>cache="shared"</code>, calls whose arguments are all atomic values use a single
+ * cache shared by all transformations using the same compiled stylesheet.</p>
  */
 
 public class MemoFunction extends UserFunction {
 
+    private boolean sharedCache = false;
+    private volatile LRUCache<MemoKey, Sequence> sharedResults = null;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
     /**
      * Determine the preferred evaluation mode for this function
      */
@@ -46,6 +61,50 @@ public class MemoFunction extends UserFunction {
         return true;
     }
 
+    /**
+     * Say whether results of this function may be shared across transformations. If set, calls whose
+     * arguments are all atomic values are cached in a single cache held by the function itself, rather
+     * than in a cache held by the Controller.
+     *
+     * @param shared true if the cache is to be shared across transformations
+     */
+
+    public void setSharedCache(boolean shared) {
+        this.sharedCache = shared;
+    }
+
+    /**
+     * Ask whether results of this function may be shared across transformations
+     *
+     * @return true if the cache is shared across transformations
+     */
+
+    public boolean isSharedCache() {
+        return sharedCache;
+    }
+
+    /**
+     * Get the number of calls on this function that were satisfied from the cache, accumulated
+     * over all transformations using this function
+     *
+     * @return the number of cache hits
+     */
+
+    public long getCacheHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of calls on this function that required the function body to be evaluated, accumulated
+     * over all transformations using this function
+     *
+     * @return the number of cache misses
+     */
+
+    public long getCacheMisses() {
+        return misses.sum();
+    }
+
     /**
      * Call this function to return a value.
      *
@@ -64,26 +123,59 @@ public class MemoFunction extends UserFunction {
     public Sequence call(XPathContext context, Sequence[] actualArgs) throws XPathException {
 
         // See if the result is already known
-        String key = getCombinedKey(actualArgs);
-        Controller controller = context.getController();
-        HashMap<String, Sequence> map = (HashMap<String, Sequence>) controller.getUserData(this, "memo-function-cache");
-        Sequence value = map == null ? null : map.get(key);
+        MemoKey key = getCombinedKey(actualArgs);
+        LRUCache<MemoKey, Sequence> cache = obtainCache(context, key);
+        Sequence value = cache.get(key);
         if (value != null) {
+            hits.increment();
             return value;
         }
+        misses.increment();
 
         value = super.call(context, actualArgs);
 
         // Save the result in the cache
-        if (map == null) {
-            map = new HashMap<>(32);
-            controller.setUserData(this, "memo-function-cache", map);
-        }
-        map.put(key, value);
+        cache.put(key, value);
 
         return value;
     }
 
+    /**
+     * Get the cache to be used for a particular call: either the cache shared across transformations,
+     * or the cache held by the current Controller, creating it if necessary
+     *
+     * @param context the dynamic context
+     * @param key     the key for the call
+     * @return the cache to be used
+     */
+
+    private LRUCache<MemoKey, Sequence> obtainCache(XPathContext context, MemoKey key) {
+        int size = context.getConfiguration().getMemoFunctionCacheSize();
+        if (sharedCache && key.allAtomic) {
+            LRUCache<MemoKey, Sequence> cache = sharedResults;
+            if (cache == null) {
+                synchronized (this) {
+                    cache = sharedResults;
+                    if (cache == null) {
+                        cache = sharedResults = new LRUCache<>(size, true);
+                    }
+                }
+            }
+            return cache;
+        }
+        Controller controller = context.getController();
+        synchronized (controller) {
+            @SuppressWarnings("unchecked")
+            LRUCache<MemoKey, Sequence> cache =
+                    (LRUCache<MemoKey, Sequence>) controller.getUserData(this, "memo-function-cache");
+            if (cache == null) {
+                cache = new LRUCache<>(size, true);
+                controller.setUserData(this, "memo-function-cache", cache);
+            }
+            return cache;
+        }
+    }
+
     /**
      * Get a key value representing the values of all the supplied arguments
      *
@@ -93,31 +185,94 @@ public class MemoFunction extends UserFunction {
      *                        of the supplied parameters uses lazy evaluation
      */
 
-    private static String getCombinedKey(Sequence[] params) throws XPathException {
-        FastStringBuffer sb = new FastStringBuffer(FastStringBuffer.C256);
-
+    private static MemoKey getCombinedKey(Sequence[] params) throws XPathException {
+        List<Object> parts = new ArrayList<>(params.length * 3);
+        boolean allAtomic = true;
         for (Sequence val : params) {
             SequenceIterator iter = val.iterate();
             Item item;
             while ((item = iter.next()) != null) {
-                if (item instanceof NodeInfo) {
-                    NodeInfo node = (NodeInfo) item;
-                    node.generateId(sb);
-                } else if (item instanceof QNameValue) {
-                    sb.cat(Type.displayTypeName(item)).cat('/').cat(((QNameValue) item).getClarkName());
-                } else if (item instanceof AtomicValue) {
-                    sb.cat(Type.displayTypeName(item)).cat('/').cat(item.getStringValueCS());
-                } else if (item instanceof Function) {
-                    sb.cat(item.getClass().getName()).cat("@").cat(""+System.identityHashCode(item));
+                if (item instanceof AtomicValue) {
+                    AtomicValue av = (AtomicValue) item;
+                    parts.add(av.getItemType());
+                    if (av instanceof DoubleValue) {
+                        // distinguish -0.0 from 0.0, and treat NaN as equal to itself
+                        parts.add(Double.doubleToLongBits(((DoubleValue) av).getDoubleValue()));
+                    } else if (av instanceof FloatValue) {
+                        parts.add(Float.floatToIntBits(((FloatValue) av).getFloatValue()));
+                    } else if (av instanceof CalendarValue) {
+                        // the map key treats the same instant in different timezones as equal, but
+                        // the function may give a different result for each (for example from string() or timezone-from-dateTime())
+                        parts.add(av.getStringValue());
+                        parts.add(((CalendarValue) av).getTimezoneInMinutes());
+                    } else {
+                        parts.add(av.asMapKey());
+                    }
+                } else if (item instanceof NodeInfo) {
+                    parts.add(item);
+                    allAtomic = false;
+                } else {
+                    parts.add(new IdentityKey(item));
+                    allAtomic = false;
                 }
-                sb.cat('\u0001');
             }
-            sb.cat('\u0002');
+            parts.add(MemoKey.SEPARATOR);
         }
-        return sb.toString();
+        return new MemoKey(parts.toArray(), allAtomic);
     }
 
-}
+    /**
+     * The key used to index the memo function cache: a flattened list of components representing
+     * the argument values, with separators between arguments
+     */
+
+    private static class MemoKey {
+
+        private final static Object SEPARATOR = new Object();
+
+        private final Object[] parts;
+        private final int hash;
+        private final boolean allAtomic;
+
+        MemoKey(Object[] parts, boolean allAtomic) {
+            this.parts = parts;
+            this.hash = Arrays.hashCode(parts);
+            this.allAtomic = allAtomic;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof MemoKey && hash == ((MemoKey) obj).hash && Arrays.equals(parts, ((MemoKey) obj).parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Wrapper for an item (typically a function item) that is compared by identity
+     */
+
+    private static class IdentityKey {
 
+        private final Item item;
 
+        IdentityKey(Item item) {
+            this.item = item;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof IdentityKey && ((IdentityKey) obj).item == item;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(item);
+        }
+    }
+
+}
 
@@ -0,0 +1,228 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.instruct;
+
+import net.sf.saxon.Controller;
+import net.sf.saxon.event.Outputter;
+import net.sf.saxon.event.OutputterEventBuffer;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.expr.*;
+import net.sf.saxon.expr.parser.ExpressionTool;
+import net.sf.saxon.expr.parser.RebindingMap;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.trace.ExpressionPresenter;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.ManualIterator;
+import net.sf.saxon.value.Whitespace;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A multi-threaded variant of the xsl:for-each instruction, used when the <code>saxon:threads</code>
+ * attribute is present and multi-threading is enabled in the configuration.
+ * <p>The selected sequence is first evaluated in full. It is then divided into chunks of consecutive items,
+ * and the chunks are evaluated on the worker pool of the configuration, using at most the requested number
+ * of threads. Each chunk writes its output to an {@link OutputterEventBuffer}, and once all chunks have been
+ * processed the buffers are replayed to the real destination in order, so the result is identical to that
+ * of sequential evaluation.</p>
+ * <p>The instruction falls back to sequential evaluation if the number of threads evaluates to less than
+ * two, if the selected sequence is too small to be worth splitting, if tracing is active, if a separator
+ * is present, or if the body of the loop contains a tail call.</p>
+ */
+
+public class MultithreadedForEach extends ForEach {
+
+    /**
+     * The number of chunks into which the input is split for each worker thread, to allow load balancing
+     * when the cost of processing different items varies
+     */
+
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * The minimum number of items in a chunk; smaller inputs are processed sequentially
+     */
+
+    private static final int MIN_CHUNK_SIZE = 16;
+
+    /**
+     * Create a multi-threaded xsl:for-each instruction
+     *
+     * @param select           the select expression
+     * @param action           the body of the xsl:for-each loop
+     * @param containsTailCall true if the body of the loop contains a tail call on the containing function
+     * @param threads          expression that evaluates to the maximum number of threads to be used
+     */
+
+    public MultithreadedForEach(Expression select, Expression action, boolean containsTailCall, Expression threads) {
+        super(select, action, containsTailCall, threads);
+    }
+
+    /**
+     * Copy an expression. This makes a deep copy.
+     *
+     * @return the copy of the original expression
+     * @param rebindings variables that need to be re-bound
+     */
+
+    /*@NotNull*/
+    @Override
+    public Expression copy(RebindingMap rebindings) {
+        MultithreadedForEach f2 = new MultithreadedForEach(
+                getSelect().copy(rebindings), getAction().copy(rebindings), containsTailCall, getThreads().copy(rebindings));
+        if (separatorOp != null) {
+            f2.setSeparatorExpression(getSeparatorExpression().copy(rebindings));
+        }
+        ExpressionTool.copyLocationInfo(this, f2);
+        f2.setInstruction(isInstruction());
+        return f2;
+    }
+
+    @Override
+    public TailCall processLeavingTail(Outputter output, XPathContext context) throws XPathException {
+        Controller controller = context.getController();
+        if (containsTailCall || separatorOp != null || controller == null || controller.isTracing()) {
+            return super.processLeavingTail(output, context);
+        }
+        int threads = getNumberOfThreads(context);
+        if (threads < 2) {
+            return super.processLeavingTail(output, context);
+        }
+
+        GroundedValue input = getSelect().iterate(context).materialize();
+        int length = input.getLength();
+        int chunks = Math.min(threads * CHUNKS_PER_THREAD, length / MIN_CHUNK_SIZE);
+        if (chunks < 2) {
+            return processItems(input.iterate(), output, context);
+        }
+
+        XPathContextMajor c2 = context.newContext();
+        c2.setOrigin(this);
+        c2.setCurrentTemplateRule(null);
+
+        PipelineConfiguration pipe = output.getPipelineConfiguration();
+        OutputterEventBuffer[] buffers = new OutputterEventBuffer[chunks];
+        XPathException[] errors = new XPathException[chunks];
+        AtomicInteger nextChunk = new AtomicInteger(0);
+
+        int workers = Math.min(threads, chunks);
+        ChunkWorker[] tasks = new ChunkWorker[workers];
+        for (int w = 0; w < workers; w++) {
+            tasks[w] = new ChunkWorker(input, chunks, nextChunk, c2, pipe, buffers, errors);
+        }
+        ForkJoinPool pool = context.getConfiguration().getWorkerPool();
+        for (int w = 1; w < workers; w++) {
+            if (ForkJoinTask.getPool() == pool) {
+                tasks[w].fork();
+            } else {
+                pool.execute(tasks[w]);
+            }
+        }
+        tasks[0].invoke();
+        for (int w = 1; w < workers; w++) {
+            tasks[w].join();
+        }
+
+        for (XPathException error : errors) {
+            if (error != null) {
+                throw error;
+            }
+        }
+        for (OutputterEventBuffer buffer : buffers) {
+            buffer.replay(output);
+        }
+        return null;
+    }
+
+    /**
+     * Evaluate the <code>saxon:threads</code> expression to get the maximum number of threads to be used
+     *
+     * @param context the dynamic context
+     * @return the requested number of threads, or zero if the value is empty or not a valid integer
+     * @throws XPathException if evaluation of the expression fails
+     */
+
+    private int getNumberOfThreads(XPathContext context) throws XPathException {
+        CharSequence value = getThreads().evaluateAsString(context);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(Whitespace.trim(value));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    protected void explainThreads(ExpressionPresenter out) throws XPathException {
+        out.setChildRole("threads");
+        getThreads().export(out);
+    }
+
+    /**
+     * A task that repeatedly claims the next unprocessed chunk of the input sequence and evaluates
+     * the body of the loop for each item in that chunk, capturing the output in the buffer
+     * allocated to the chunk.
+     */
+
+    private class ChunkWorker extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final GroundedValue input;
+        private final int chunks;
+        private final AtomicInteger nextChunk;
+        private final XPathContextMajor context;
+        private final PipelineConfiguration pipe;
+        private final OutputterEventBuffer[] buffers;
+        private final XPathException[] errors;
+
+        ChunkWorker(GroundedValue input, int chunks, AtomicInteger nextChunk, XPathContextMajor context,
+                    PipelineConfiguration pipe, OutputterEventBuffer[] buffers, XPathException[] errors) {
+            this.input = input;
+            this.chunks = chunks;
+            this.nextChunk = nextChunk;
+            this.context = context;
+            this.pipe = pipe;
+            this.buffers = buffers;
+            this.errors = errors;
+        }
+
+        @Override
+        protected void compute() {
+            int length = input.getLength();
+            XPathContextMajor c3 = XPathContextMajor.newThreadContext(context);
+            ManualIterator focus = new ManualIterator();
+            focus.setLastPositionFinder(() -> length);
+            c3.setCurrentIterator(focus);
+            Expression action = getAction();
+            int chunk;
+            while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+                OutputterEventBuffer buffer = new OutputterEventBuffer();
+                buffer.setPipelineConfiguration(pipe);
+                buffers[chunk] = buffer;
+                int start = (int) ((long) length * chunk / chunks);
+                int end = (int) ((long) length * (chunk + 1) / chunks);
+                try {
+                    for (int i = start; i < end; i++) {
+                        focus.setContextItem(input.itemAt(i));
+                        focus.setPosition(i + 1);
+                        action.process(buffer, c3);
+                    }
+                } catch (XPathException e) {
+                    errors[chunk] = e;
+                    return;
+                }
+            }
+        }
+    }
+}
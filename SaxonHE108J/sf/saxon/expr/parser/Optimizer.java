@@ -469,13 +469,26 @@ public class Optimizer {
 
     /**
      * Generate a multi-threaded version of an instruction.
-     * Supported in Saxon-EE only; ignored with no action in Saxon-HE and Saxon-PE
+     * In Saxon-HE and Saxon-PE this is supported only for xsl:for-each, and only if multi-threading
+     * has been enabled in the configuration; in other cases the instruction is returned unchanged.
      *
      * @param instruction the instruction to be multi-threaded
      * @return the multi-threaded version of the instruction
      */
 
     public Expression generateMultithreadedInstruction(Expression instruction) {
+        if (instruction instanceof ForEach && !(instruction instanceof MultithreadedForEach)
+                && config.isMultithreadingEnabled()) {
+            ForEach forEach = (ForEach) instruction;
+            MultithreadedForEach result = new MultithreadedForEach(
+                    forEach.getSelect(), forEach.getAction(), forEach.containsTailCall(), forEach.getThreads());
+            if (forEach.getSeparatorExpression() != null) {
+                result.setSeparatorExpression(forEach.getSeparatorExpression());
+            }
+            ExpressionTool.copyLocationInfo(forEach, result);
+            result.setInstruction(forEach.isInstruction());
+            return result;
+        }
         return instruction;
     }
 
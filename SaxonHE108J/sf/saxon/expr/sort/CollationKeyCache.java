@@ -0,0 +1,93 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.sort;
+
+import net.sf.saxon.lib.StringCollator;
+
+import java.text.Collator;
+
+/**
+ * A bounded cache of collation keys for a given collation. Computing a collation key is expensive for
+ * collations such as the UCA collation, and the same strings often recur many times in the values used
+ * as sort keys or grouping keys; the cache ensures that the key for each distinct string is computed once,
+ * up to the capacity of the cache.
+ * <p>The cache is intended for use within a single sort or grouping operation, and is not thread-safe.</p>
+ */
+
+public class CollationKeyCache {
+
+    private final static int DEFAULT_CAPACITY = 4096;
+
+    private final StringCollator collator;
+    private final LRUCache<String, AtomicMatchKey> cache;
+
+    /**
+     * Create a cache of collation keys with a default capacity
+     *
+     * @param collator the collation
+     */
+
+    public CollationKeyCache(StringCollator collator) {
+        this(collator, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a cache of collation keys
+     *
+     * @param collator the collation
+     * @param capacity the maximum number of collation keys held in the cache
+     */
+
+    public CollationKeyCache(StringCollator collator, int capacity) {
+        this.collator = collator;
+        this.cache = new LRUCache<>(capacity);
+    }
+
+    /**
+     * Get the collation key for a string, computing it only if it is not already in the cache
+     *
+     * @param s the string
+     * @return the collation key, as returned by {@link StringCollator#getCollationKey(CharSequence)}
+     */
+
+    public AtomicMatchKey getCollationKey(CharSequence s) {
+        String str = s.toString();
+        AtomicMatchKey key = cache.get(str);
+        if (key == null) {
+            key = collator.getCollationKey(str);
+            cache.put(str, key);
+        }
+        return key;
+    }
+
+    /**
+     * Ask whether it is worth caching the collation keys of a collation. This is the case for collations
+     * other than the codepoint collation, whose collation keys are cheap to compute.
+     *
+     * @param collator the collation
+     * @return true if collation keys should be cached
+     */
+
+    public static boolean isWorthCaching(StringCollator collator) {
+        return collator != null && !(collator instanceof CodepointCollator);
+    }
+
+    /**
+     * Ask whether the collation keys of a collation are ordered in the same way as the strings
+     * under the collation. This is true of collations implemented using a {@link java.text.Collator},
+     * whose collation keys are {@link CollationMatchKey}s.
+     *
+     * @param collator the collation
+     * @return true if the collation keys are comparable, and compare in the same way as the strings
+     */
+
+    public static boolean hasOrderedCollationKeys(StringCollator collator) {
+        return collator instanceof UcaCollatorUsingJava ||
+                (collator instanceof SimpleCollation && ((SimpleCollation) collator).getComparator() instanceof Collator);
+    }
+}
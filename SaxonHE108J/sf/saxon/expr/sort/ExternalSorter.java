@@ -0,0 +1,352 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.sort;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.trans.UncheckedXPathException;
+import net.sf.saxon.trans.XPathException;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * An external merge sort, used when the number of records to be sorted exceeds the threshold set
+ * using {@link Configuration#setSortSpillThreshold(int)}. Records are accumulated in memory; each time
+ * the threshold is reached, the records held in memory are sorted and written as a run to a temporary
+ * file. When all records have been added, the runs are merged lazily as the caller reads the results.
+ * If there are more runs than can be merged at once, groups of runs are first merged into longer
+ * intermediate runs, so that the number of files open at any one time is bounded.
+ * <p>Records are written using a {@link SortRecordCodec}. If a record is encountered that the codec
+ * cannot encode, no further runs are written, and the remaining records are held in memory.</p>
+ * <p>The comparator must impose a total order, for example by comparing the original positions of
+ * records whose sort keys are equal; this ensures that the merged result is the same as that of an
+ * in-memory stable sort.</p>
+ *
+ * @param <R> the type of the records being sorted
+ */
+
+public class ExternalSorter<R> implements Closeable {
+
+    private final static int BUFFER_SIZE = 65536;
+    private final static int MAX_FAN_IN = 64;
+
+    private final Comparator<? super R> comparator;
+    private final SortRecordCodec<R> codec;
+    private final int runSize;
+    private final File directory;
+    private ArrayList<R> buffer = new ArrayList<>();
+    private final List<Run> runs = new ArrayList<>();
+    private final List<RunReader> readers = new ArrayList<>();
+    private boolean spillable = true;
+    private int size = 0;
+
+    /**
+     * Create an external sorter
+     *
+     * @param config     the Saxon configuration, which supplies the run size and the directory for temporary files
+     * @param comparator the comparator used to sort the records
+     * @param codec      the codec used to write records to temporary files and read them back
+     */
+
+    public ExternalSorter(Configuration config, Comparator<? super R> comparator, SortRecordCodec<R> codec) {
+        this.comparator = comparator;
+        this.codec = codec;
+        this.runSize = config.getSortSpillThreshold();
+        this.directory = config.getSortSpillDirectory();
+    }
+
+    /**
+     * Ask whether external sorting is enabled
+     *
+     * @param config the Saxon configuration
+     * @return true if a spill threshold has been set
+     */
+
+    public static boolean isEnabled(Configuration config) {
+        return config.getSortSpillThreshold() > 0;
+    }
+
+    /**
+     * Add a record to be sorted
+     *
+     * @param record the record
+     * @throws XPathException if writing a run to a temporary file fails
+     * @throws ClassCastException if the comparator finds that sort keys are not comparable
+     */
+
+    public void add(R record) throws XPathException {
+        size++;
+        if (spillable && !codec.isEncodable(record)) {
+            spillable = false;
+        }
+        buffer.add(record);
+        if (spillable && buffer.size() >= runSize) {
+            spill();
+        }
+    }
+
+    /**
+     * Get the number of records added
+     *
+     * @return the number of records
+     */
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Ask whether any runs have been written to temporary files
+     *
+     * @return true if some records are no longer held in memory. If false, the caller
+     * can sort the records returned by {@link #getBufferedRecords()} in memory.
+     */
+
+    public boolean hasSpilled() {
+        return !runs.isEmpty();
+    }
+
+    /**
+     * Get the records held in memory (in the order they were added, unless a run has been written)
+     *
+     * @return the list of records held in memory
+     */
+
+    public List<R> getBufferedRecords() {
+        return buffer;
+    }
+
+    private void spill() throws XPathException {
+        buffer.sort(comparator);
+        runs.add(writeRun(buffer.iterator(), buffer.size()));
+        buffer = new ArrayList<>();
+    }
+
+    /**
+     * Write a run of records, already in sorted order, to a temporary file
+     *
+     * @param records the records to be written
+     * @param count   the number of records
+     * @return the run
+     * @throws XPathException if writing the file fails
+     */
+
+    private Run writeRun(Iterator<R> records, int count) throws XPathException {
+        File file = null;
+        try {
+            file = File.createTempFile("saxon-sort", ".run", directory);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+                while (records.hasNext()) {
+                    codec.write(records.next(), out);
+                }
+            }
+        } catch (IOException e) {
+            if (file != null) {
+                file.delete();
+            }
+            close();
+            throw new XPathException("Failed to write sort run to temporary file: " + e.getMessage(), e);
+        } catch (UncheckedXPathException e) {
+            // failure reading the runs being merged
+            file.delete();
+            close();
+            throw e.getXPathException();
+        }
+        return new Run(file, count);
+    }
+
+    /**
+     * Merge a number of runs into a single priority queue, ordered by the first record in each run
+     *
+     * @param group  the runs to be merged
+     * @param memory the records held in memory, already sorted, or null
+     * @return a queue of readers positioned at their first record
+     * @throws XPathException if opening a temporary file fails
+     */
+
+    private PriorityQueue<RunReader> openRuns(List<Run> group, List<R> memory) throws XPathException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(group.size() + 1,
+                                                             (a, b) -> comparator.compare(a.head, b.head));
+        try {
+            for (Run run : group) {
+                RunReader reader = new FileRunReader(run);
+                readers.add(reader);
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+            if (memory != null) {
+                RunReader memoryRun = new MemoryRunReader(memory.iterator());
+                if (memoryRun.advance()) {
+                    queue.add(memoryRun);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw new XPathException("Failed to read sort run from temporary file: " + e.getMessage(), e);
+        }
+        return queue;
+    }
+
+    /**
+     * Get an iterator over the records in sorted order. This must be called only once, after all records
+     * have been added. Each temporary file is deleted as soon as the records in its run have been read,
+     * and any that remain are deleted when {@link #close()} is called.
+     *
+     * @return an iterator over the sorted records. If reading a temporary file fails, the iterator throws
+     * an {@link UncheckedXPathException}.
+     * @throws XPathException if opening a temporary file fails
+     * @throws ClassCastException if the comparator finds that sort keys are not comparable
+     */
+
+    public Iterator<R> iterator() throws XPathException {
+        buffer.sort(comparator);
+        if (runs.isEmpty()) {
+            return buffer.iterator();
+        }
+        // Pre-merge the oldest runs into intermediate runs until the remainder can be merged in one pass.
+        // Since the comparator imposes a total order, the order in which runs are merged does not matter.
+        while (runs.size() > MAX_FAN_IN) {
+            List<Run> group = new ArrayList<>(runs.subList(0, MAX_FAN_IN));
+            runs.subList(0, MAX_FAN_IN).clear();
+            int count = 0;
+            for (Run run : group) {
+                count += run.count;
+            }
+            Iterator<R> merged = mergingIterator(openRuns(group, null));
+            Run run = writeRun(merged, count);
+            readers.clear();
+            runs.add(run);
+        }
+        return mergingIterator(openRuns(runs, buffer));
+    }
+
+    private Iterator<R> mergingIterator(PriorityQueue<RunReader> queue) {
+        return new Iterator<R>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public R next() {
+                RunReader reader = queue.poll();
+                if (reader == null) {
+                    throw new NoSuchElementException();
+                }
+                R result = reader.head;
+                try {
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                } catch (IOException e) {
+                    close();
+                    throw new UncheckedXPathException(
+                            new XPathException("Failed to read sort run from temporary file: " + e.getMessage(), e));
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Release resources: close and delete any temporary files
+     */
+
+    @Override
+    public void close() {
+        for (RunReader reader : readers) {
+            reader.close();
+        }
+        readers.clear();
+        for (Run run : runs) {
+            run.file.delete();
+        }
+    }
+
+    private static class Run {
+        final File file;
+        final int count;
+
+        Run(File file, int count) {
+            this.file = file;
+            this.count = count;
+        }
+    }
+
+    private abstract class RunReader {
+        R head;
+
+        abstract boolean advance() throws IOException;
+
+        void close() {
+        }
+    }
+
+    private class FileRunReader extends RunReader {
+        private final File file;
+        private final DataInputStream in;
+        private int remaining;
+
+        FileRunReader(Run run) throws IOException {
+            file = run.file;
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            remaining = run.count;
+            // Where the platform allows an open file to be deleted, delete it now, so that nothing is left
+            // behind if the iteration is abandoned. Otherwise it is deleted once it has been read.
+            file.delete();
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            if (remaining > 0) {
+                head = codec.read(in);
+                if (--remaining == 0) {
+                    // the run has been fully consumed
+                    close();
+                }
+                return true;
+            }
+            head = null;
+            return false;
+        }
+
+        /**
+         * Close the file and delete it, since each run is read only once
+         */
+
+        @Override
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore the failure
+            }
+            file.delete();
+        }
+    }
+
+    private class MemoryRunReader extends RunReader {
+        private final Iterator<R> iter;
+
+        MemoryRunReader(Iterator<R> iter) {
+            this.iter = iter;
+        }
+
+        @Override
+        boolean advance() {
+            if (iter.hasNext()) {
+                head = iter.next();
+                return true;
+            }
+            head = null;
+            return false;
+        }
+    }
+}
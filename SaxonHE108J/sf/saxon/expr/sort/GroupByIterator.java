@@ -12,10 +12,12 @@ import net.sf.saxon.expr.LastPositionFinder;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.lib.StringCollator;
 import net.sf.saxon.om.*;
+import net.sf.saxon.trans.NoDynamicContextException;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.tree.iter.ListIterator;
 import net.sf.saxon.tree.iter.LookaheadIterator;
 import net.sf.saxon.value.AtomicValue;
+import net.sf.saxon.value.StringValue;
 
 import java.util.ArrayList;
 import java.util.EnumSet;
@@ -48,6 +50,7 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
     private SequenceIterator population;
     protected Expression keyExpression;
     private StringCollator collator;
+    private CollationKeyCache collationKeyCache;
     private XPathContext keyContext;
     private int position = 0;
 
@@ -84,6 +87,9 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
         this.keyContext = keyContext;
         this.collator = collator;
         this.composite = composite;
+        if (CollationKeyCache.isWorthCaching(collator)) {
+            collationKeyCache = new CollationKeyCache(collator);
+        }
         if (composite) {
             buildIndexedGroupsComposite();
         } else {
@@ -94,6 +100,23 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
     public GroupByIterator() {
     }
 
+    /**
+     * Get the comparison key for a grouping key value. For strings compared under a collation, the
+     * collation keys of recurring strings are taken from a cache.
+     *
+     * @param key              the grouping key value
+     * @param implicitTimezone the implicit timezone
+     * @return the comparison key
+     * @throws NoDynamicContextException if the comparison key depends on the dynamic context, and none is available
+     */
+
+    private AtomicMatchKey getComparisonKey(AtomicValue key, int implicitTimezone) throws NoDynamicContextException {
+        if (collationKeyCache != null && key instanceof StringValue) {
+            return collationKeyCache.getCollationKey(key.getStringValueCS());
+        }
+        return key.getXPathComparable(false, collator, implicitTimezone);
+    }
+
     /**
      * Build the grouping table forming groups of items with equal keys.
      * This form of grouping allows a member of the population to be present in zero
@@ -120,7 +143,7 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
                 if (key.isNaN()) {
                     comparisonKey = AtomicMatchKey.NaN_MATCH_KEY;
                 } else {
-                    comparisonKey = key.getXPathComparable(false, collator, implicitTimezone);
+                    comparisonKey = getComparisonKey(key, implicitTimezone);
                 }
                 List<Item> g = index.get(comparisonKey);
                 if (g == null) {
@@ -175,7 +198,7 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
                 if (key.isNaN()) {
                     comparisonKey = AtomicMatchKey.NaN_MATCH_KEY;
                 } else {
-                    comparisonKey = key.getXPathComparable(false, collator, implicitTimezone);
+                    comparisonKey = getComparisonKey(key, implicitTimezone);
                 }
                 ckList.add(comparisonKey);
             }
@@ -7,8 +7,11 @@
 
 package net.sf.saxon.expr.sort;
 
+import net.sf.saxon.trans.NoDynamicContextException;
 import net.sf.saxon.value.AtomicValue;
 
+import java.util.Comparator;
+
 /**
  * This class represents a member of a sequence that is being sorted. The sequence may contain
  * items, tuples, groups, or anything else. An instance of this class holds the object itself, the
@@ -25,5 +28,37 @@ public class ObjectToBeSorted<T> {
         sortKeyValues = new AtomicValue[numberOfSortKeys];
     }
 
+    /**
+     * Make a comparator that orders objects to be sorted by the values of their sort keys, and then
+     * by their original position
+     *
+     * @param comparers the comparers for each of the sort keys, which must already have been given
+     *                   any dynamic context they need
+     * @return the comparator. This throws ClassCastException if it finds that two sort key values
+     * are not comparable.
+     * @since 10.8
+     */
+
+    public static Comparator<ObjectToBeSorted<?>> makeComparator(AtomicComparer[] comparers) {
+        return (a, b) -> {
+            try {
+                for (int i = 0; i < comparers.length; i++) {
+                    int comp = comparers[i].compareAtomicValues(
+                            a.sortKeyValues[i], b.sortKeyValues[i]);
+                    if (comp != 0) {
+                        // we have found a difference, so we can return
+                        return comp;
+                    }
+                }
+            } catch (NoDynamicContextException e) {
+                throw new AssertionError("Sorting without dynamic context: " + e.getMessage());
+            }
+
+            // all sort keys equal: return the items in their original order
+            // TODO: unnecessary, we are now using a stable sort routine
+            return a.originalPosition - b.originalPosition;
+        };
+    }
+
 }
 
@@ -0,0 +1,112 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.sort;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.XPathContext;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Support for sorting large sequences in parallel on the worker pool of the {@link Configuration}.
+ * Parallel sorting is used when multi-threading is enabled and the number of items to be sorted is at
+ * least {@link Configuration#getParallelSortThreshold()}. The sort algorithms used are stable merge sorts,
+ * so the result is identical to that of a sequential sort.
+ */
+
+public class ParallelSorter {
+
+    private final static int MIN_PARTITION_SIZE = 8192;
+    private final static int PARTITIONS_PER_THREAD = 4;
+
+    private ParallelSorter() {
+    }
+
+    /**
+     * Get the pool to be used for sorting a given number of items in parallel
+     *
+     * @param context the dynamic context
+     * @param count   the number of items to be sorted
+     * @return the worker pool, if multi-threading is enabled and the number of items is at or above the
+     * threshold for parallel sorting; otherwise null
+     */
+
+    public static ForkJoinPool getSortPool(XPathContext context, int count) {
+        Configuration config = context.getConfiguration();
+        if (count >= config.getParallelSortThreshold() && count >= 2 && config.isMultithreadingEnabled()) {
+            ForkJoinPool pool = config.getWorkerPool();
+            return pool.getParallelism() > 1 ? pool : null;
+        }
+        return null;
+    }
+
+    /**
+     * Sort a range of an array in parallel, using a stable sort
+     *
+     * @param pool       the pool on which the sort is to be performed
+     * @param values     the array to be sorted
+     * @param count      the number of entries (starting at zero) to be sorted
+     * @param comparator the comparator. Any unchecked exception thrown by the comparator, for example
+     *                   a {@link ClassCastException} when comparing incomparable values, is rethrown to the caller.
+     * @param <T>        the type of the entries in the array
+     */
+
+    public static <T> void sort(ForkJoinPool pool, T[] values, int count, Comparator<? super T> comparator) {
+        pool.submit(() -> Arrays.parallelSort(values, 0, count, comparator)).join();
+    }
+
+    /**
+     * Sort an array of indexes in parallel, using a stable merge sort over the primitive sort key columns
+     *
+     * @param pool    the pool on which the sort is to be performed
+     * @param perm    the array of indexes to be sorted
+     * @param columns the sort key columns
+     */
+
+    static void sortPermutation(ForkJoinPool pool, int[] perm, PrimitiveKeySorter.KeyColumn[] columns) {
+        int count = perm.length;
+        int threshold = Math.max(MIN_PARTITION_SIZE, count / (pool.getParallelism() * PARTITIONS_PER_THREAD));
+        pool.invoke(new PermutationSorter(perm, new int[count], 0, count, threshold, columns));
+    }
+
+    private static class PermutationSorter extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] perm;
+        private final int[] aux;
+        private final int from;
+        private final int to;
+        private final int threshold;
+        private final PrimitiveKeySorter.KeyColumn[] columns;
+
+        PermutationSorter(int[] perm, int[] aux, int from, int to, int threshold, PrimitiveKeySorter.KeyColumn[] columns) {
+            this.perm = perm;
+            this.aux = aux;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.columns = columns;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                PrimitiveKeySorter.mergeSort(perm, aux, from, to, columns);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new PermutationSorter(perm, aux, from, mid, threshold, columns),
+                          new PermutationSorter(perm, aux, mid, to, threshold, columns));
+                PrimitiveKeySorter.merge(perm, aux, from, mid, to, columns);
+            }
+        }
+    }
+}
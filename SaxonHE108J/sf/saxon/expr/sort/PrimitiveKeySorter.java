@@ -0,0 +1,532 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.sort;
+
+import net.sf.saxon.lib.StringCollator;
+import net.sf.saxon.value.*;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A sorter used by {@link SortedIterator} for the common case where every sort key is numeric, or is a string
+ * compared using the Unicode codepoint collation or a collation that provides ordered collation keys.
+ * The values of each sort key are extracted once into arrays (longs representing numbers, strings, or
+ * collation keys, plus a rank distinguishing empty sequences and NaN), and an array of
+ * indexes is then sorted using a stable merge sort that compares these arrays directly, without calling
+ * an {@link AtomicComparer}.
+ * <p>The sorter reproduces exactly the ordering defined by the comparers that it recognizes
+ * ({@link NumericComparer}, {@link DoubleSortComparer}, {@link DecimalSortComparer},
+ * {@link CodepointCollatingComparer}, {@link CollatingAtomicComparer}, {@link AtomicSortComparer}, and
+ * {@link TextComparer}, optionally wrapped in {@link EmptyGreatestComparer} and {@link DescendingComparer}).
+ * If any sort key uses a different comparer, or if the values of a sort key are of mixed or unsupported
+ * types, the sorter declines, and the caller falls back to the general-purpose sort.</p>
+ */
+
+public class PrimitiveKeySorter {
+
+    // Ranks used to position empty sequences and NaN relative to other values
+    private final static byte RANK_LOW = 0;
+    private final static byte RANK_NAN = 1;
+    private final static byte RANK_HIGH = 2;
+
+    // Integers within this range are represented exactly as doubles
+    private final static long MAX_EXACT_DOUBLE = 1L << 53;
+
+    private final static int INSERTION_SORT_THRESHOLD = 16;
+
+    private PrimitiveKeySorter() {
+    }
+
+    /**
+     * Sort an array of items and their sort keys, if all the sort keys are of a kind that this sorter can handle
+     *
+     * @param values      the items to be sorted, with their sort key values. The values of sort key
+     *                    <i>n</i> are in <code>sortKeyValues[n]</code>. The array is sorted in place.
+     * @param count       the number of entries in the array that are to be sorted
+     * @param comparators the comparers for each of the sort keys
+     * @param pool        if not null, the pool on which the sort is to be performed in parallel
+     * @return true if the array has been sorted; false if it has not been modified because the sort keys
+     * cannot be handled by this sorter
+     */
+
+    public static <T> boolean sort(ObjectToBeSorted<T>[] values, int count, AtomicComparer[] comparators, ForkJoinPool pool) {
+        int[] perm = sortedPermutation(values, count, comparators, pool);
+        if (perm == null) {
+            return false;
+        }
+        ObjectToBeSorted<T>[] copy = Arrays.copyOf(values, count);
+        for (int i = 0; i < count; i++) {
+            values[i] = copy[perm[i]];
+        }
+        return true;
+    }
+
+    /**
+     * Compute the permutation that sorts an array of items and their sort keys, if all the sort keys
+     * are of a kind that this sorter can handle
+     *
+     * @param values      the items to be sorted, with their sort key values
+     * @param count       the number of entries in the array that are to be sorted
+     * @param comparators the comparers for each of the sort keys
+     * @param pool        if not null, the pool on which the sort is to be performed in parallel
+     * @return an array in which entry <i>i</i> is the position in <code>values</code> of the item
+     * that belongs at position <i>i</i> in sorted order; or null if the sort keys cannot be handled
+     */
+
+    public static int[] sortedPermutation(ObjectToBeSorted<?>[] values, int count, AtomicComparer[] comparators, ForkJoinPool pool) {
+        KeyColumn[] columns = makeColumns(values, count, comparators);
+        if (columns == null) {
+            return null;
+        }
+        int[] perm = new int[count];
+        for (int i = 0; i < count; i++) {
+            perm[i] = i;
+        }
+        if (pool != null) {
+            ParallelSorter.sortPermutation(pool, perm, columns);
+        } else {
+            mergeSort(perm, new int[count], 0, count, columns);
+        }
+        return perm;
+    }
+
+    /**
+     * Extract the values of all the sort keys into primitive columns
+     *
+     * @param values      the items to be sorted, with their sort key values
+     * @param count       the number of entries to be sorted
+     * @param comparators the comparers for each of the sort keys
+     * @return the columns, or null if any sort key cannot be handled
+     */
+
+    static KeyColumn[] makeColumns(ObjectToBeSorted<?>[] values, int count, AtomicComparer[] comparators) {
+        KeyColumn[] columns = new KeyColumn[comparators.length];
+        for (int k = 0; k < comparators.length; k++) {
+            columns[k] = makeColumn(values, count, k, comparators[k]);
+            if (columns[k] == null) {
+                return null;
+            }
+        }
+        return columns;
+    }
+
+    private static KeyColumn makeColumn(ObjectToBeSorted<?>[] values, int count, int k, AtomicComparer comparer) {
+        boolean descending = false;
+        boolean emptyGreatest = false;
+        if (comparer instanceof DescendingComparer) {
+            descending = true;
+            comparer = ((DescendingComparer) comparer).getBaseComparer();
+        }
+        if (comparer instanceof EmptyGreatestComparer) {
+            emptyGreatest = true;
+            comparer = ((EmptyGreatestComparer) comparer).getBaseComparer();
+        }
+        if (comparer instanceof NumericComparer) {
+            return emptyGreatest ? null : makeNumberConversionColumn(values, count, k, (NumericComparer) comparer, descending);
+        } else if (comparer instanceof TextComparer) {
+            AtomicComparer base = ((TextComparer) comparer).getBaseComparer();
+            if (emptyGreatest) {
+                return null;
+            } else if (isCodepointComparer(base)) {
+                return makeTextColumn(values, count, k, descending);
+            } else {
+                StringCollator collator = getKeyedCollator(base);
+                return collator == null ? null :
+                        makeCollationKeyColumn(values, count, k, collator, CollatedValues.TEXT, descending, false);
+            }
+        } else if (getKeyedCollator(comparer) != null) {
+            // CollatingAtomicComparer compares the string values of any atomic values; AtomicSortComparer
+            // uses the collation only if both values are strings
+            if (comparer instanceof CollatingAtomicComparer) {
+                return makeCollationKeyColumn(values, count, k, getKeyedCollator(comparer), CollatedValues.ANY,
+                                              descending, emptyGreatest);
+            }
+            KeyColumn column = makeNumericColumn(values, count, k, descending, emptyGreatest);
+            return column != null ? column : makeCollationKeyColumn(values, count, k, getKeyedCollator(comparer),
+                                                                    CollatedValues.STRINGS, descending, emptyGreatest);
+        } else if (comparer instanceof DoubleSortComparer || comparer instanceof DecimalSortComparer) {
+            return makeNumericColumn(values, count, k, descending, emptyGreatest);
+        } else if (comparer instanceof CodepointCollatingComparer) {
+            return makeStringColumn(values, count, k, descending, emptyGreatest);
+        } else if (isCodepointComparer(comparer)) {
+            // AtomicSortComparer: the values may be all numeric or all strings
+            KeyColumn column = makeNumericColumn(values, count, k, descending, emptyGreatest);
+            return column != null ? column : makeStringColumn(values, count, k, descending, emptyGreatest);
+        } else {
+            return null;
+        }
+    }
+
+    private static boolean isCodepointComparer(AtomicComparer comparer) {
+        return comparer instanceof CodepointCollatingComparer ||
+                (comparer.getClass() == AtomicSortComparer.class &&
+                         ((AtomicSortComparer) comparer).getStringCollator() instanceof CodepointCollator);
+    }
+
+    /**
+     * If a comparer compares strings using a collation whose collation keys are ordered consistently with the
+     * collation, get the collation
+     *
+     * @param comparer the comparer
+     * @return the collation, or null if the comparer does not use such a collation
+     */
+
+    private static StringCollator getKeyedCollator(AtomicComparer comparer) {
+        StringCollator collator;
+        if (comparer.getClass() == CollatingAtomicComparer.class) {
+            collator = comparer.getCollator();
+        } else if (comparer.getClass() == AtomicSortComparer.class) {
+            collator = ((AtomicSortComparer) comparer).getStringCollator();
+        } else {
+            return null;
+        }
+        return CollationKeyCache.hasOrderedCollationKeys(collator) ? collator : null;
+    }
+
+    /**
+     * Convert a double to a long such that the signed ordering of the longs is the same as the
+     * numeric ordering of the doubles. The double must not be NaN. Positive and negative zero are
+     * mapped to the same value.
+     */
+
+    private static long orderedBits(double d) {
+        if (d == 0) {
+            return 0;
+        }
+        long bits = Double.doubleToLongBits(d);
+        return bits ^ ((bits >> 63) & 0x7fffffffffffffffL);
+    }
+
+    private static KeyColumn makeNumberConversionColumn(
+            ObjectToBeSorted<?>[] values, int count, int k, NumericComparer comparer, boolean descending) {
+        // Follows NumericComparer: empty sequences and non-numeric values are treated as NaN
+        long[] keys = new long[count];
+        byte[] ranks = new byte[count];
+        for (int i = 0; i < count; i++) {
+            AtomicValue a = values[i].sortKeyValues[k];
+            double d;
+            if (a instanceof NumericValue) {
+                d = ((NumericValue) a).getDoubleValue();
+            } else if (a == null) {
+                d = Double.NaN;
+            } else {
+                try {
+                    d = comparer.converter.stringToNumber(a.getStringValueCS());
+                } catch (NumberFormatException err) {
+                    d = Double.NaN;
+                }
+            }
+            if (Double.isNaN(d)) {
+                ranks[i] = RANK_LOW;
+            } else {
+                ranks[i] = RANK_HIGH;
+                keys[i] = orderedBits(d);
+            }
+        }
+        return new NumberColumn(keys, ranks, descending);
+    }
+
+    private static KeyColumn makeNumericColumn(
+            ObjectToBeSorted<?>[] values, int count, int k, boolean descending, boolean emptyGreatest) {
+        long[] keys = new long[count];
+        byte[] ranks = new byte[count];
+        byte emptyRank = emptyGreatest ? RANK_HIGH : RANK_LOW;
+        byte valueRank = emptyGreatest ? RANK_LOW : RANK_HIGH;
+        // First try to represent all the values exactly as longs; failing that, as doubles
+        boolean allIntegers = true;
+        for (int i = 0; i < count; i++) {
+            AtomicValue a = values[i].sortKeyValues[k];
+            if (a == null) {
+                ranks[i] = emptyRank;
+            } else if (a instanceof Int64Value) {
+                ranks[i] = valueRank;
+                keys[i] = ((Int64Value) a).longValue();
+            } else {
+                allIntegers = false;
+                break;
+            }
+        }
+        if (allIntegers) {
+            return new NumberColumn(keys, ranks, descending);
+        }
+        for (int i = 0; i < count; i++) {
+            AtomicValue a = values[i].sortKeyValues[k];
+            double d;
+            if (a == null) {
+                ranks[i] = emptyRank;
+                continue;
+            } else if (a instanceof DoubleValue || a instanceof FloatValue) {
+                d = ((NumericValue) a).getDoubleValue();
+            } else if (a instanceof Int64Value) {
+                long v = ((Int64Value) a).longValue();
+                if (v > MAX_EXACT_DOUBLE || v < -MAX_EXACT_DOUBLE) {
+                    return null;
+                }
+                d = (double) v;
+            } else {
+                return null;
+            }
+            if (Double.isNaN(d)) {
+                ranks[i] = RANK_NAN;
+            } else {
+                ranks[i] = valueRank;
+                keys[i] = orderedBits(d);
+            }
+        }
+        return new NumberColumn(keys, ranks, descending);
+    }
+
+    private static KeyColumn makeStringColumn(
+            ObjectToBeSorted<?>[] values, int count, int k, boolean descending, boolean emptyGreatest) {
+        String[] keys = new String[count];
+        byte[] ranks = new byte[count];
+        byte emptyRank = emptyGreatest ? RANK_HIGH : RANK_LOW;
+        byte valueRank = emptyGreatest ? RANK_LOW : RANK_HIGH;
+        boolean surrogates = false;
+        for (int i = 0; i < count; i++) {
+            AtomicValue a = values[i].sortKeyValues[k];
+            if (a == null) {
+                ranks[i] = emptyRank;
+            } else if (a instanceof StringValue) {
+                ranks[i] = valueRank;
+                StringValue s = (StringValue) a;
+                keys[i] = s.getStringValue();
+                surrogates |= s.containsSurrogatePairs();
+            } else {
+                return null;
+            }
+        }
+        return new StringColumn(keys, ranks, descending, surrogates);
+    }
+
+    /**
+     * The values accepted by a collation key column
+     */
+
+    private enum CollatedValues {
+        STRINGS,    // only strings, with empty sequences ranked according to the empty-greatest setting
+        ANY,        // the string values of any atomic values, with empty sequences ranked
+        TEXT        // the string values of any atomic values, with empty sequences treated as zero-length strings
+    }
+
+    private static KeyColumn makeCollationKeyColumn(ObjectToBeSorted<?>[] values, int count, int k, StringCollator collator,
+                                                    CollatedValues accepted, boolean descending, boolean emptyGreatest) {
+        // Compute the collation key of each value once, rather than comparing the strings under the
+        // collation on every comparison
+        CollationKeyCache cache = new CollationKeyCache(collator);
+        AtomicMatchKey[] keys = new AtomicMatchKey[count];
+        byte[] ranks = accepted == CollatedValues.TEXT ? null : new byte[count];
+        byte emptyRank = emptyGreatest ? RANK_HIGH : RANK_LOW;
+        byte valueRank = emptyGreatest ? RANK_LOW : RANK_HIGH;
+        for (int i = 0; i < count; i++) {
+            AtomicValue a = values[i].sortKeyValues[k];
+            if (a == null) {
+                if (ranks == null) {
+                    keys[i] = cache.getCollationKey("");
+                } else {
+                    ranks[i] = emptyRank;
+                }
+            } else if (emptyGreatest && a.isNaN()) {
+                return null;    // EmptyGreatestComparer ranks NaN separately
+            } else if (accepted != CollatedValues.STRINGS || a instanceof StringValue) {
+                keys[i] = cache.getCollationKey(a.getStringValueCS());
+                if (ranks != null) {
+                    ranks[i] = valueRank;
+                }
+            } else {
+                return null;
+            }
+        }
+        return new CollationKeyColumn(keys, ranks, descending);
+    }
+
+    private static KeyColumn makeTextColumn(ObjectToBeSorted<?>[] values, int count, int k, boolean descending) {
+        // Follows TextComparer: empty sequences are treated as zero-length strings, other values are
+        // compared by their string value
+        String[] keys = new String[count];
+        boolean surrogates = false;
+        for (int i = 0; i < count; i++) {
+            AtomicValue a = values[i].sortKeyValues[k];
+            if (a == null) {
+                keys[i] = "";
+            } else {
+                StringValue s = a instanceof StringValue ? (StringValue) a : new StringValue(a.getStringValue());
+                keys[i] = s.getStringValue();
+                surrogates |= s.containsSurrogatePairs();
+            }
+        }
+        return new StringColumn(keys, null, descending, surrogates);
+    }
+
+    /**
+     * Compare two entries using all the sort keys, falling back to their original positions
+     */
+
+    static int compare(KeyColumn[] columns, int a, int b) {
+        for (KeyColumn column : columns) {
+            int c = column.compare(a, b);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(a, b);
+    }
+
+    /**
+     * Stable merge sort of a range of an array of indexes
+     *
+     * @param perm    the array of indexes to be sorted
+     * @param aux     a work array of the same size
+     * @param from    the start of the range (inclusive)
+     * @param to      the end of the range (exclusive)
+     * @param columns the sort key columns used to compare indexes
+     */
+
+    static void mergeSort(int[] perm, int[] aux, int from, int to, KeyColumn[] columns) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                int v = perm[i];
+                int j = i - 1;
+                while (j >= from && compare(columns, perm[j], v) > 0) {
+                    perm[j + 1] = perm[j];
+                    j--;
+                }
+                perm[j + 1] = v;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(perm, aux, from, mid, columns);
+        mergeSort(perm, aux, mid, to, columns);
+        merge(perm, aux, from, mid, to, columns);
+    }
+
+    /**
+     * Merge two adjacent sorted ranges of an array of indexes
+     */
+
+    static void merge(int[] perm, int[] aux, int from, int mid, int to, KeyColumn[] columns) {
+        if (compare(columns, perm[mid - 1], perm[mid]) <= 0) {
+            return;     // already in order
+        }
+        System.arraycopy(perm, from, aux, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            if (i >= mid) {
+                perm[k] = aux[j++];
+            } else if (j >= to || compare(columns, aux[i], aux[j]) <= 0) {
+                perm[k] = aux[i++];
+            } else {
+                perm[k] = aux[j++];
+            }
+        }
+    }
+
+    /**
+     * The extracted values of one sort key
+     */
+
+    static abstract class KeyColumn {
+
+        /*@Nullable*/ final byte[] ranks;
+        final boolean descending;
+
+        KeyColumn(byte[] ranks, boolean descending) {
+            this.ranks = ranks;
+            this.descending = descending;
+        }
+
+        final int compare(int a, int b) {
+            int c;
+            if (ranks != null && ranks[a] != ranks[b]) {
+                c = ranks[a] < ranks[b] ? -1 : +1;
+            } else if (ranks != null && ranks[a] != RANK_HIGH && ranks[a] != RANK_LOW) {
+                c = 0;      // both NaN
+            } else {
+                c = compareValues(a, b);
+            }
+            return descending ? -c : c;
+        }
+
+        abstract int compareValues(int a, int b);
+    }
+
+    private static class NumberColumn extends KeyColumn {
+
+        private final long[] keys;
+
+        NumberColumn(long[] keys, byte[] ranks, boolean descending) {
+            super(ranks, descending);
+            this.keys = keys;
+        }
+
+        @Override
+        int compareValues(int a, int b) {
+            return Long.compare(keys[a], keys[b]);
+        }
+    }
+
+    private static class StringColumn extends KeyColumn {
+
+        private final String[] keys;
+        private final boolean surrogates;
+
+        StringColumn(String[] keys, byte[] ranks, boolean descending, boolean surrogates) {
+            super(ranks, descending);
+            this.keys = keys;
+            this.surrogates = surrogates;
+        }
+
+        @Override
+        int compareValues(int a, int b) {
+            String s = keys[a];
+            String t = keys[b];
+            if (s == null || t == null) {
+                return 0;   // both empty
+            }
+            // In the absence of surrogate pairs, UTF-16 order is the same as codepoint order
+            return surrogates ? CodepointCollator.compareCS(s, t) : s.compareTo(t);
+        }
+    }
+
+    private static class CollationKeyColumn extends KeyColumn {
+
+        private final AtomicMatchKey[] keys;
+
+        CollationKeyColumn(AtomicMatchKey[] keys, byte[] ranks, boolean descending) {
+            super(ranks, descending);
+            this.keys = keys;
+        }
+
+        @Override
+        int compareValues(int a, int b) {
+            AtomicMatchKey s = keys[a];
+            AtomicMatchKey t = keys[b];
+            if (s == null || t == null) {
+                return 0;   // both empty
+            }
+            return compareKeys(s, t);
+        }
+
+        /**
+         * Compare two collation keys. The keys are all obtained from the same collator, which is known to
+         * deliver ordered collation keys, so they are mutually comparable.
+         *
+         * @param s the first key
+         * @param t the second key
+         * @return the result of comparing the keys
+         */
+
+        @SuppressWarnings("unchecked")
+        private static int compareKeys(AtomicMatchKey s, AtomicMatchKey t) {
+            return ((Comparable<AtomicMatchKey>) s).compareTo(t);
+        }
+    }
+}
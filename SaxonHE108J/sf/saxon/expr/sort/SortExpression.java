@@ -392,9 +392,33 @@ public class SortExpression extends Expression
         }
         iter = new SortedIterator(context, iter, this, comps, getSortKeyDefinition(0).isSetContextForSortKey());
         ((SortedIterator) iter).setHostLanguage(getPackageData().getHostLanguage());
+        ((SortedIterator) iter).setParallelKeyEvaluation(sortKeysDependOnlyOnContextItem());
         return iter;
     }
 
+    /**
+     * Determine whether the sort keys are evaluated with the item being sorted as the context item,
+     * and depend on nothing else in the dynamic context, so that they can safely be evaluated in parallel
+     *
+     * @return true if the sort keys depend only on the context item (and on variables)
+     */
+
+    private boolean sortKeysDependOnlyOnContextItem() {
+        if (!getSortKeyDefinition(0).isSetContextForSortKey()) {
+            return false;
+        }
+        for (SortKeyDefinition skd : getSortKeyDefinitionList()) {
+            Expression key = skd.getSortKey();
+            if ((key.getDependencies() &
+                    (StaticProperty.DEPENDS_ON_POSITION | StaticProperty.DEPENDS_ON_LAST |
+                             StaticProperty.DEPENDS_ON_XSLT_CONTEXT)) != 0 ||
+                    key.hasSpecialProperty(StaticProperty.HAS_SIDE_EFFECTS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Callback for evaluating the sort keys
      */
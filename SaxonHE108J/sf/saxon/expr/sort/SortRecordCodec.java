@@ -0,0 +1,338 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.sort;
+
+import net.sf.saxon.expr.flwor.Tuple;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.StandardNames;
+import net.sf.saxon.tree.iter.UnfailingIterator;
+import net.sf.saxon.tree.tiny.TinyAttributeImpl;
+import net.sf.saxon.tree.tiny.TinyNodeImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.value.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Encodes the records handled by an {@link ExternalSorter} so that they can be written to a temporary
+ * file and read back. Only a limited range of items can be encoded: atomic values of the primitive types
+ * string, untypedAtomic, anyURI, boolean, integer, decimal, double and float; nodes in a {@link TinyTree}
+ * (which are written as references to the tree, which remains in memory); and tuples whose members are
+ * sequences of such items. A record containing any other item is not encodable, and remains in memory.
+ *
+ * @param <R> the type of the records
+ */
+
+public abstract class SortRecordCodec<R> {
+
+    private final static byte EMPTY = 0;
+    private final static byte STRING = 1;
+    private final static byte UNTYPED_ATOMIC = 2;
+    private final static byte ANY_URI = 3;
+    private final static byte BOOLEAN = 4;
+    private final static byte INTEGER = 5;
+    private final static byte BIG_INTEGER = 6;
+    private final static byte DECIMAL = 7;
+    private final static byte DOUBLE = 8;
+    private final static byte FLOAT = 9;
+    private final static byte TINY_NODE = 10;
+    private final static byte TINY_ATTRIBUTE = 11;
+    private final static byte TUPLE = 12;
+
+    private final List<TinyTree> trees = new ArrayList<>();
+    private final IdentityHashMap<TinyTree, Integer> treeNumbers = new IdentityHashMap<>();
+
+    /**
+     * Ask whether a record can be encoded
+     *
+     * @param record the record
+     * @return true if {@link #write} can be used to encode the record
+     */
+
+    public abstract boolean isEncodable(R record);
+
+    /**
+     * Write a record, which must be encodable
+     *
+     * @param record the record to be written
+     * @param out    the destination
+     * @throws IOException if writing fails
+     */
+
+    public abstract void write(R record, DataOutputStream out) throws IOException;
+
+    /**
+     * Read a record previously written using {@link #write}
+     *
+     * @param in the source
+     * @return the reconstructed record
+     * @throws IOException if reading fails
+     */
+
+    public abstract R read(DataInputStream in) throws IOException;
+
+    /**
+     * Make a codec for the records used by {@link SortedIterator} and by the XQuery "order by" clause
+     *
+     * @param numberOfSortKeys the number of sort keys in each record
+     * @return a suitable codec
+     */
+
+    public static SortRecordCodec<ItemToBeSorted> forItemsToBeSorted(int numberOfSortKeys) {
+        return new SortRecordCodec<ItemToBeSorted>() {
+            @Override
+            public boolean isEncodable(ItemToBeSorted record) {
+                if (!isEncodableItem(record.value)) {
+                    return false;
+                }
+                for (AtomicValue key : record.sortKeyValues) {
+                    if (key != null && !isEncodableItem(key)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void write(ItemToBeSorted record, DataOutputStream out) throws IOException {
+                out.writeInt(record.originalPosition);
+                for (AtomicValue key : record.sortKeyValues) {
+                    writeItem(key, out);
+                }
+                writeItem(record.value, out);
+            }
+
+            @Override
+            public ItemToBeSorted read(DataInputStream in) throws IOException {
+                ItemToBeSorted record = new ItemToBeSorted(numberOfSortKeys);
+                record.originalPosition = in.readInt();
+                for (int i = 0; i < numberOfSortKeys; i++) {
+                    record.sortKeyValues[i] = (AtomicValue) readItem(in);
+                }
+                record.value = readItem(in);
+                return record;
+            }
+        };
+    }
+
+    /**
+     * Ask whether an item can be encoded
+     *
+     * @param item the item
+     * @return true if the item can be written using {@link #writeItem}
+     */
+
+    protected boolean isEncodableItem(Item item) {
+        if (item instanceof AtomicValue) {
+            return atomicCode((AtomicValue) item) != EMPTY;
+        } else if (item instanceof TinyNodeImpl) {
+            return true;
+        } else if (item instanceof Tuple) {
+            for (Sequence member : ((Tuple) item).getMembers()) {
+                if (!(member instanceof GroundedValue)) {
+                    return false;
+                }
+                UnfailingIterator iter = ((GroundedValue) member).iterate();
+                Item it;
+                while ((it = iter.next()) != null) {
+                    if (!isEncodableItem(it)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the code used to encode an atomic value. A value is encodable only if its type annotation is
+     * exactly a primitive type (or xs:integer), so that the value can be reconstructed without loss.
+     *
+     * @param value the atomic value
+     * @return the code, or {@link #EMPTY} if the value cannot be encoded
+     */
+
+    private static byte atomicCode(AtomicValue value) {
+        if (!(value.getItemType() instanceof BuiltInAtomicType)) {
+            return EMPTY;
+        }
+        switch (((BuiltInAtomicType) value.getItemType()).getFingerprint()) {
+            case StandardNames.XS_STRING:
+                return value.getClass() == StringValue.class ? STRING : EMPTY;
+            case StandardNames.XS_UNTYPED_ATOMIC:
+                return value instanceof UntypedAtomicValue ? UNTYPED_ATOMIC : EMPTY;
+            case StandardNames.XS_ANY_URI:
+                return value instanceof AnyURIValue ? ANY_URI : EMPTY;
+            case StandardNames.XS_BOOLEAN:
+                return BOOLEAN;
+            case StandardNames.XS_INTEGER:
+                return value instanceof Int64Value ? INTEGER : value instanceof BigIntegerValue ? BIG_INTEGER : EMPTY;
+            case StandardNames.XS_DECIMAL:
+                return value instanceof BigDecimalValue ? DECIMAL : EMPTY;
+            case StandardNames.XS_DOUBLE:
+                return DOUBLE;
+            case StandardNames.XS_FLOAT:
+                return FLOAT;
+            default:
+                return EMPTY;
+        }
+    }
+
+    /**
+     * Write an item, which must be encodable, or null
+     *
+     * @param item the item to be written, or null to represent an empty sequence
+     * @param out  the destination
+     * @throws IOException if writing fails
+     */
+
+    protected void writeItem(Item item, DataOutputStream out) throws IOException {
+        if (item == null) {
+            out.writeByte(EMPTY);
+        } else if (item instanceof AtomicValue) {
+            AtomicValue value = (AtomicValue) item;
+            byte code = atomicCode(value);
+            out.writeByte(code);
+            switch (code) {
+                case STRING:
+                case UNTYPED_ATOMIC:
+                case ANY_URI:
+                    writeString(value.getStringValueCS(), out);
+                    break;
+                case BOOLEAN:
+                    out.writeBoolean(((BooleanValue) value).getBooleanValue());
+                    break;
+                case INTEGER:
+                    out.writeLong(((Int64Value) value).longValue());
+                    break;
+                case BIG_INTEGER:
+                case DECIMAL:
+                    writeString(value.getStringValueCS(), out);
+                    break;
+                case DOUBLE:
+                    out.writeDouble(((DoubleValue) value).getDoubleValue());
+                    break;
+                case FLOAT:
+                    out.writeFloat(((FloatValue) value).getFloatValue());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Cannot encode " + value.getItemType());
+            }
+        } else if (item instanceof TinyNodeImpl) {
+            TinyNodeImpl node = (TinyNodeImpl) item;
+            out.writeByte(node instanceof TinyAttributeImpl ? TINY_ATTRIBUTE : TINY_NODE);
+            out.writeInt(getTreeNumber(node.getTree()));
+            out.writeInt(node.getNodeNumber());
+        } else if (item instanceof Tuple) {
+            Sequence[] members = ((Tuple) item).getMembers();
+            out.writeByte(TUPLE);
+            out.writeInt(members.length);
+            for (Sequence member : members) {
+                GroundedValue value = (GroundedValue) member;
+                out.writeInt(value.getLength());
+                UnfailingIterator iter = value.iterate();
+                Item it;
+                while ((it = iter.next()) != null) {
+                    writeItem(it, out);
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot encode " + item.getClass().getName());
+        }
+    }
+
+    /**
+     * Read an item previously written using {@link #writeItem}
+     *
+     * @param in the source
+     * @return the item, or null if an empty sequence was written
+     * @throws IOException if reading fails
+     */
+
+    protected Item readItem(DataInputStream in) throws IOException {
+        byte code = in.readByte();
+        switch (code) {
+            case EMPTY:
+                return null;
+            case STRING:
+                return new StringValue(readString(in));
+            case UNTYPED_ATOMIC:
+                return new UntypedAtomicValue(readString(in));
+            case ANY_URI:
+                return new AnyURIValue(readString(in));
+            case BOOLEAN:
+                return BooleanValue.get(in.readBoolean());
+            case INTEGER:
+                return Int64Value.makeIntegerValue(in.readLong());
+            case BIG_INTEGER:
+                return new BigIntegerValue(new BigInteger(readString(in)));
+            case DECIMAL:
+                return new BigDecimalValue(new BigDecimal(readString(in)));
+            case DOUBLE:
+                return new DoubleValue(in.readDouble());
+            case FLOAT:
+                return new FloatValue(in.readFloat());
+            case TINY_NODE: {
+                TinyTree tree = trees.get(in.readInt());
+                return tree.getNode(in.readInt());
+            }
+            case TINY_ATTRIBUTE: {
+                TinyTree tree = trees.get(in.readInt());
+                return new TinyAttributeImpl(tree, in.readInt());
+            }
+            case TUPLE: {
+                Sequence[] members = new Sequence[in.readInt()];
+                for (int m = 0; m < members.length; m++) {
+                    int length = in.readInt();
+                    List<Item> items = new ArrayList<>(length);
+                    for (int i = 0; i < length; i++) {
+                        items.add(readItem(in));
+                    }
+                    members[m] = SequenceExtent.makeSequenceExtent(items);
+                }
+                return new Tuple(members);
+            }
+            default:
+                throw new IOException("Corrupt sort run: unknown item code " + code);
+        }
+    }
+
+    private int getTreeNumber(TinyTree tree) {
+        Integer n = treeNumbers.get(tree);
+        if (n == null) {
+            n = trees.size();
+            trees.add(tree);
+            treeNumbers.put(tree, n);
+        }
+        return n;
+    }
+
+    private static void writeString(CharSequence value, DataOutputStream out) throws IOException {
+        byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
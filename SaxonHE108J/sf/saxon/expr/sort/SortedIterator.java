@@ -10,17 +10,21 @@ package net.sf.saxon.expr.sort;
 import net.sf.saxon.expr.ErrorIterator;
 import net.sf.saxon.expr.LastPositionFinder;
 import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.expr.XPathContextMajor;
+import net.sf.saxon.expr.XPathContextMinor;
 import net.sf.saxon.om.FocusTrackingIterator;
 import net.sf.saxon.om.Item;
 import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.om.StandardNames;
 import net.sf.saxon.s9api.HostLanguage;
-import net.sf.saxon.trans.NoDynamicContextException;
+import net.sf.saxon.trans.UncheckedXPathException;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.tree.iter.LookaheadIterator;
+import net.sf.saxon.tree.iter.ManualIterator;
 
-import java.util.Arrays;
-import java.util.EnumSet;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Class to do a sorted iteration
@@ -41,7 +45,7 @@ public class SortedIterator implements SequenceIterator, LastPositionFinder, Loo
     // array contains one "record" representing each node: the "record" contains
     // first, the Item itself, then an entry for each of its sort keys, in turn;
     // the last sort key is the position of the Item in the original sequence.
-    protected ObjectToBeSorted[] values;
+    protected ObjectToBeSorted<Item>[] values;
 
     // The number of items to be sorted. -1 means not yet known.
     protected int count = -1;
@@ -55,6 +59,15 @@ public class SortedIterator implements SequenceIterator, LastPositionFinder, Loo
     // The host language (XSLT, XQuery, XPath). Used only to decide which error code to use on dynamic errors.
     private HostLanguage hostLanguage;
 
+    // True if the sort keys depend only on the item being sorted, so they can be evaluated in parallel
+    private boolean parallelKeyEvaluation = false;
+
+    // Used when the number of items exceeds the threshold for writing sorted runs to temporary files
+    private ExternalSorter<ItemToBeSorted> externalSorter;
+
+    // The sorted records, if some of them have been written to temporary files
+    private Iterator<ItemToBeSorted> mergedRecords;
+
     protected SortedIterator() {
     }
 
@@ -101,6 +114,20 @@ public class SortedIterator implements SequenceIterator, LastPositionFinder, Loo
         hostLanguage = language;
     }
 
+    /**
+     * Say whether the sort keys may be evaluated in parallel. This is permissible only if the sort keys
+     * are evaluated with the item being sorted as the context item, and if they depend on nothing else in
+     * the dynamic context (such as the context position or size, or the XSLT current item), and have no side
+     * effects. Parallel evaluation takes place only if multi-threading is enabled and the number of items
+     * reaches the threshold for parallel sorting.
+     *
+     * @param parallel true if the sort keys may be evaluated in parallel
+     */
+
+    public void setParallelKeyEvaluation(boolean parallel) {
+        parallelKeyEvaluation = parallel;
+    }
+
     /**
      * Determine whether there are more items to come. Note that this operation
      * is stateless and it is not necessary (or usual) to call it before calling
@@ -153,13 +180,39 @@ public class SortedIterator implements SequenceIterator, LastPositionFinder, Loo
             doSort();
         }
         if (position < count) {
+            if (mergedRecords != null) {
+                position++;
+                return (Item) nextMergedRecord().value;
+            }
             return (Item) values[position++].value;
         } else {
             position = -1;
+            close();
             return null;
         }
     }
 
+    private ItemToBeSorted nextMergedRecord() throws XPathException {
+        try {
+            return mergedRecords.next();
+        } catch (UncheckedXPathException e) {
+            throw e.getXPathException();
+        } catch (ClassCastException e) {
+            throw makeNonComparableError(e);
+        }
+    }
+
+    /**
+     * Close the iterator, deleting any temporary files used for sorting
+     */
+
+    @Override
+    public void close() {
+        if (externalSorter != null) {
+            externalSorter.close();
+        }
+    }
+
     @Override
     public int getLength() throws XPathException {
         if (count < 0) {
@@ -190,6 +243,14 @@ public class SortedIterator implements SequenceIterator, LastPositionFinder, Loo
      */
 
     protected void buildArray() throws XPathException {
+        if (ExternalSorter.isEnabled(context.getConfiguration())) {
+            buildArrayWithExternalSorter();
+            return;
+        }
+        if (parallelKeyEvaluation && context.getConfiguration().isMultithreadingEnabled()) {
+            buildArrayWithDeferredKeys();
+            return;
+        }
         int allocated;
         if (base.getProperties().contains(Property.LAST_POSITION_FINDER)) {
             allocated = ((LastPositionFinder) base).getLength();
@@ -206,9 +267,7 @@ public class SortedIterator implements SequenceIterator, LastPositionFinder, Loo
         while ((item = base.next()) != null) {
             if (count == allocated) {
                 allocated *= 2;
-                ObjectToBeSorted[] nk2 = new ObjectToBeSorted[allocated];
-                System.arraycopy(values, 0, nk2, 0, count);
-                values = nk2;
+                values = Arrays.copyOf(values, allocated);
             }
             ItemToBeSorted itbs = new ItemToBeSorted(comparators.length);
             values[count] = itbs;
@@ -225,50 +284,163 @@ public class SortedIterator implements SequenceIterator, LastPositionFinder, Loo
         // If there's lots of unused space, reclaim it
 
         if (allocated * 2 < count || (allocated - count) > 2000) {
-            ObjectToBeSorted[] nk2 = new ObjectToBeSorted[count];
-            System.arraycopy(values, 0, nk2, 0, count);
-            values = nk2;
+            values = Arrays.copyOf(values, count);
         }
     }
 
+    /**
+     * Read the items to be sorted and evaluate their sort keys, passing them to an {@link ExternalSorter}.
+     * If the number of items exceeds the spill threshold, the items are sorted into runs held in temporary
+     * files, and {@link #mergedRecords} is set to iterate over the result of merging them. Otherwise, the
+     * items are placed in the array {@link #values} to be sorted in memory.
+     *
+     * @throws XPathException if an error occurs for example in evaluating a sort key
+     */
+
+    private void buildArrayWithExternalSorter() throws XPathException {
+        externalSorter = new ExternalSorter<>(context.getConfiguration(), ObjectToBeSorted.makeComparator(comparators),
+                                              SortRecordCodec.forItemsToBeSorted(comparators.length));
+        count = 0;
+        try {
+            Item item;
+            while ((item = base.next()) != null) {
+                ItemToBeSorted itbs = new ItemToBeSorted(comparators.length);
+                itbs.value = item;
+                for (int n = 0; n < comparators.length; n++) {
+                    itbs.sortKeyValues[n] = sortKeyEvaluator.evaluateSortKey(n, context);
+                }
+                itbs.originalPosition = count++;
+                externalSorter.add(itbs);
+            }
+            if (externalSorter.hasSpilled()) {
+                mergedRecords = externalSorter.iterator();
+            } else {
+                values = externalSorter.getBufferedRecords().toArray(new ItemToBeSorted[0]);
+                externalSorter = null;
+            }
+        } catch (ClassCastException e) {
+            throw makeNonComparableError(e);
+        } finally {
+            if (mergedRecords == null && externalSorter != null) {
+                externalSorter.close();
+            }
+        }
+    }
+
+    /**
+     * Create an array holding the items to be sorted, and then evaluate their sort keys, in parallel
+     * if there are enough items
+     *
+     * @throws XPathException if an error occurs for example in evaluating a sort key
+     */
+
+    private void buildArrayWithDeferredKeys() throws XPathException {
+        ArrayList<ItemToBeSorted> list = new ArrayList<>();
+        Item item;
+        while ((item = base.next()) != null) {
+            ItemToBeSorted itbs = new ItemToBeSorted(comparators.length);
+            itbs.value = item;
+            itbs.originalPosition = list.size();
+            list.add(itbs);
+        }
+        count = list.size();
+        values = list.toArray(new ItemToBeSorted[0]);
+
+        ForkJoinPool pool = ParallelSorter.getSortPool(context, count);
+        if (pool == null) {
+            XPathException err = evaluateSortKeys(0, count, context.newMinorContext());
+            if (err != null) {
+                throw err;
+            }
+            return;
+        }
+        int chunks = Math.min(pool.getParallelism() * 4, (count + 1023) / 1024);
+        List<ForkJoinTask<XPathException>> tasks = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            int start = (int) ((long) count * c / chunks);
+            int end = (int) ((long) count * (c + 1) / chunks);
+            XPathContextMajor c2 = XPathContextMajor.newThreadContext(context.newMinorContext());
+            tasks.add(pool.submit(() -> evaluateSortKeys(start, end, c2)));
+        }
+        // Report the error affecting the earliest item, as a sequential evaluation would
+        XPathException err = null;
+        for (ForkJoinTask<XPathException> task : tasks) {
+            XPathException e = task.join();
+            if (err == null) {
+                err = e;
+            }
+        }
+        if (err != null) {
+            throw err;
+        }
+    }
+
+    /**
+     * Evaluate the sort keys for a range of the items to be sorted
+     *
+     * @param start the position of the first item (inclusive)
+     * @param end   the position of the last item (exclusive)
+     * @param c     the dynamic context to be used; its focus is changed to each item in turn
+     * @return the exception that occurred while evaluating a sort key, or null if there was none
+     */
+
+    private XPathException evaluateSortKeys(int start, int end, XPathContextMinor c) {
+        ManualIterator focus = new ManualIterator();
+        c.setCurrentIterator(focus);
+        try {
+            for (int i = start; i < end; i++) {
+                focus.setContextItem(values[i].value);
+                focus.setPosition(i + 1);
+                for (int n = 0; n < comparators.length; n++) {
+                    values[i].sortKeyValues[n] = sortKeyEvaluator.evaluateSortKey(n, c);
+                }
+            }
+        } catch (XPathException e) {
+            return e;
+        }
+        return null;
+    }
+
     private void doSort() throws XPathException {
         buildArray();
-        if (count < 2) {
+        if (count < 2 || mergedRecords != null) {
+            return;
+        }
+
+        // If the sort is large enough, and multi-threading is enabled, sort in parallel
+
+        ForkJoinPool pool = ParallelSorter.getSortPool(context, count);
+
+        // If the sort keys are numeric, or strings compared by codepoint, sort them using primitive
+        // comparisons; otherwise use the general-purpose comparers
+
+        if (PrimitiveKeySorter.sort(values, count, comparators, pool)) {
             return;
         }
 
         // sort the array
 
+        Comparator<ObjectToBeSorted<?>> comparator = ObjectToBeSorted.makeComparator(comparators);
         try {
-            Arrays.sort(values, 0, count, (a, b) -> {
-                try {
-                    for (int i = 0; i < comparators.length; i++) {
-                        int comp = comparators[i].compareAtomicValues(
-                                a.sortKeyValues[i], b.sortKeyValues[i]);
-                        if (comp != 0) {
-                            // we have found a difference, so we can return
-                            return comp;
-                        }
-                    }
-                } catch (NoDynamicContextException e) {
-                    throw new AssertionError("Sorting without dynamic context: " + e.getMessage());
-                }
-
-                // all sort keys equal: return the items in their original order
-                // TODO: unnecessary, we are now using a stable sort routine
-                return a.originalPosition - b.originalPosition;
-            });
-            //GenericSorter.quickSort(0, count, this);
-        } catch (ClassCastException e) {
-            XPathException err = new XPathException("Non-comparable types found while sorting: " + e.getMessage());
-            if (hostLanguage == HostLanguage.XSLT) {
-                err.setErrorCode("XTDE1030");
+            if (pool != null) {
+                ParallelSorter.sort(pool, values, count, comparator);
             } else {
-                err.setErrorCode("XPTY0004");
+                Arrays.sort(values, 0, count, comparator);
             }
-            throw err;
+            //GenericSorter.quickSort(0, count, this);
+        } catch (ClassCastException e) {
+            throw makeNonComparableError(e);
         }
     }
 
-}
+    private XPathException makeNonComparableError(ClassCastException e) {
+        XPathException err = new XPathException("Non-comparable types found while sorting: " + e.getMessage());
+        if (hostLanguage == HostLanguage.XSLT) {
+            err.setErrorCode("XTDE1030");
+        } else {
+            err.setErrorCode("XPTY0004");
+        }
+        return err;
+    }
 
+}
@@ -56,6 +56,15 @@ public class OutputURIResolverWrapper implements ResultDocumentResolver {
 
         try {
             Result result = r2.resolve(href, baseUri);
+            if (r2.getClass() == StandardOutputResolver.class) {
+                PipelineConfiguration pipe = context.getController().makePipelineConfiguration();
+                pipe.setXPathContext(context);
+                Receiver async = StandardResultDocumentResolver.makeAsyncReceiver(context, result, properties, pipe);
+                if (async != null) {
+                    // the standard resolver has nothing to do on closing a file that it did not open
+                    return async;
+                }
+            }
             Action onClose = () -> {
                 try {
                     r2.close(result);
@@ -7,12 +7,17 @@
 
 package net.sf.saxon.lib;
 
+import net.sf.saxon.event.CloseNotifier;
 import net.sf.saxon.event.PipelineConfiguration;
 import net.sf.saxon.event.Receiver;
 import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.s9api.Action;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.serialize.AsyncResultDocumentWriter;
 import net.sf.saxon.serialize.SerializationProperties;
 import net.sf.saxon.trans.SaxonErrorCode;
 import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.trans.XsltController;
 
 import javax.xml.transform.Result;
 import javax.xml.transform.stream.StreamResult;
@@ -21,6 +26,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
 import java.net.*;
+import java.util.Collections;
+import java.util.List;
 
 
 /**
@@ -50,9 +57,61 @@ public class StandardResultDocumentResolver implements ResultDocumentResolver {
         StreamResult result = resolve(href, baseUri);
         SerializerFactory factory = context.getConfiguration().getSerializerFactory();
         PipelineConfiguration pipe = context.getController().makePipelineConfiguration();
+        Receiver async = makeAsyncReceiver(context, result, properties, pipe);
+        if (async != null) {
+            return async;
+        }
         return factory.getReceiver(result, properties, pipe);
     }
 
+    /**
+     * If secondary result documents are to be written asynchronously (see
+     * {@link net.sf.saxon.Configuration#setAsyncResultDocumentQueueSize(int)}), and the result is a file,
+     * make a receiver that serializes the result document into memory, and hands it to a background
+     * thread to be written to the file when the receiver is closed.
+     *
+     * @param context    the dynamic evaluation context
+     * @param result     the destination of the result document
+     * @param properties the serialization properties
+     * @param pipe       the pipeline configuration
+     * @return the receiver, or null if the result document is to be written synchronously
+     * @throws XPathException if the serializer cannot be created
+     */
+
+    static Receiver makeAsyncReceiver(XPathContext context, Result result,
+                                      SerializationProperties properties, PipelineConfiguration pipe)
+            throws XPathException {
+        if (!(context.getController() instanceof XsltController) || !isFileResult(result)) {
+            return null;
+        }
+        AsyncResultDocumentWriter asyncWriter = ((XsltController) context.getController()).getAsyncResultDocumentWriter();
+        if (asyncWriter == null) {
+            return null;
+        }
+        String systemId = result.getSystemId();
+        AsyncResultDocumentWriter.PendingDocument document = asyncWriter.makePendingDocument(systemId);
+        StreamResult buffer = new StreamResult(document);
+        buffer.setSystemId(systemId);
+        Receiver out = context.getConfiguration().getSerializerFactory().getReceiver(buffer, properties, pipe);
+        List<Action> actions = Collections.singletonList(() -> {
+            try {
+                asyncWriter.submit(document);
+            } catch (XPathException e) {
+                throw new SaxonApiException(e);
+            }
+        });
+        return new CloseNotifier(out, actions);
+    }
+
+    private static boolean isFileResult(Result result) {
+        if (result instanceof StreamResult) {
+            StreamResult sr = (StreamResult) result;
+            return sr.getOutputStream() == null && sr.getWriter() == null &&
+                    sr.getSystemId() != null && sr.getSystemId().startsWith("file:");
+        }
+        return false;
+    }
+
     /**
      * Resolve an output URI
      *
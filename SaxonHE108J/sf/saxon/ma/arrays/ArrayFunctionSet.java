@@ -13,6 +13,7 @@ import net.sf.saxon.functions.FoldingFunction;
 import net.sf.saxon.functions.SystemFunction;
 import net.sf.saxon.functions.registry.BuiltInFunctionSet;
 import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.ma.parray.ImmList;
 import net.sf.saxon.om.*;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.type.AnyItemType;
@@ -393,12 +394,22 @@ public class ArrayFunctionSet extends BuiltInFunctionSet {
         @Override
         public ArrayItem call(XPathContext context, Sequence[] arguments) throws XPathException {
             SequenceIterator iterator = arguments[0].iterate();
-            ArrayItem array = SimpleArrayItem.EMPTY_ARRAY;
-            ArrayItem nextArray;
-            while ((nextArray = (ArrayItem) iterator.next()) != null) {
-                array = array.concat(nextArray);
+            ArrayItem nextArray = (ArrayItem) iterator.next();
+            if (nextArray == null) {
+                return SimpleArrayItem.EMPTY_ARRAY;
             }
-            return array;
+            // Accumulate the members in a transient list rather than concatenating the arrays pairwise
+            ImmList.Transient<GroundedValue> members = ImmList.<GroundedValue>empty().asTransient();
+            do {
+                if (nextArray instanceof ImmutableArrayItem) {
+                    members.appendList(((ImmutableArrayItem) nextArray).getVector());
+                } else {
+                    for (GroundedValue member : nextArray.members()) {
+                        members.append(member);
+                    }
+                }
+            } while ((nextArray = (ArrayItem) iterator.next()) != null);
+            return new ImmutableArrayItem(members.persistent());
         }
 
     }
@@ -27,10 +27,20 @@ public class ImmutableArrayItem extends AbstractArrayItem {
         this.vector = ImmList.fromList(other.getMembers());
     }
 
-    private ImmutableArrayItem(ImmList<GroundedValue> vector) {
+    ImmutableArrayItem(ImmList<GroundedValue> vector) {
         this.vector = vector;
     }
 
+    /**
+     * Get the underlying immutable list of members
+     *
+     * @return the list of members
+     */
+
+    ImmList<GroundedValue> getVector() {
+        return vector;
+    }
+
     /**
      * Get a member of the array
      *
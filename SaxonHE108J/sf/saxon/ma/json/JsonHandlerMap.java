@@ -11,7 +11,6 @@ import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.ma.arrays.ArrayItem;
 import net.sf.saxon.ma.arrays.SimpleArrayItem;
 import net.sf.saxon.ma.map.DictionaryMap;
-import net.sf.saxon.ma.map.MapItem;
 import net.sf.saxon.om.GroundedValue;
 import net.sf.saxon.om.Sequence;
 import net.sf.saxon.trans.XPathException;
@@ -21,6 +20,7 @@ import net.sf.saxon.value.EmptySequence;
 import net.sf.saxon.value.StringValue;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Stack;
 
 /**
@@ -32,6 +32,10 @@ public class JsonHandlerMap extends JsonHandler {
 
     protected Stack<String> keys;
 
+    // Keys that have already been used, so that maps with the same keys share a single copy of each key
+    private final HashMap<String, String> keyPool = new HashMap<>();
+    private static final int KEY_POOL_LIMIT = 10000;
+
     public JsonHandlerMap(XPathContext context, int flags) {
         setContext(context);
         stack = new Stack<>();
@@ -57,9 +61,15 @@ public class JsonHandlerMap extends JsonHandler {
      */
     @Override
     public boolean setKey(String unEscaped, String reEscaped) {
+        String pooled = keyPool.get(reEscaped);
+        if (pooled != null) {
+            reEscaped = pooled;
+        } else if (keyPool.size() < KEY_POOL_LIMIT) {
+            keyPool.put(reEscaped, reEscaped);
+        }
         this.keys.push(reEscaped);
-        MapItem map = (MapItem) stack.peek();
-        return map.get(new StringValue(reEscaped)) != null;
+        DictionaryMap map = (DictionaryMap) stack.peek();
+        return map.containsKey(reEscaped);
     }
 
     /**
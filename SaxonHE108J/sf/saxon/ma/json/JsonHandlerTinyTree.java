@@ -0,0 +1,95 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.ma.json;
+
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NamespaceMap;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.om.TreeModel;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.tiny.TinyTreeAppender;
+import net.sf.saxon.type.SchemaType;
+import net.sf.saxon.type.SimpleType;
+
+/**
+ * Handler to generate the XML representation of JSON directly as a TinyTree. Instead of sending
+ * events through a {@link net.sf.saxon.event.ComplexContentOutputter} to a
+ * {@link net.sf.saxon.tree.tiny.TinyBuilder}, the nodes are appended straight to the tree using a
+ * {@link TinyTreeAppender}: the generated vocabulary is known to be well-formed, so namespace fixup
+ * and the other checks performed by the event pipeline are unnecessary.
+ * <p>This handler is used only when the result tree is untyped, that is, when validation is not requested.</p>
+ *
+ * @since 10.8
+ */
+public class JsonHandlerTinyTree extends JsonHandlerXML {
+
+    private final TinyTreeAppender appender;
+
+    /**
+     * Make the handler to construct the TinyTree representation of JSON
+     *
+     * @param context       the context in which the result tree is to be built
+     * @param staticBaseUri the static base URI, used for the base URI of the constructed tree
+     * @param flags         flags indicating the chosen options, which must not include validation
+     * @throws XPathException if initialization fails
+     */
+    public JsonHandlerTinyTree(XPathContext context, String staticBaseUri, int flags) throws XPathException {
+        super(context, flags);
+        appender = new TinyTreeAppender(context.getConfiguration(), staticBaseUri,
+                                        NamespaceMap.of(PREFIX, NamespaceConstant.FN));
+    }
+
+    /**
+     * Ask whether this handler can be used to construct the result of json-to-xml
+     *
+     * @param context the dynamic context
+     * @param flags   flags indicating the chosen options
+     * @return true if the result is to be a TinyTree, and validation is not requested
+     */
+    public static boolean isApplicable(XPathContext context, int flags) {
+        return (flags & JsonParser.VALIDATE) == 0 && context.getController().getModel() == TreeModel.TINY_TREE;
+    }
+
+    @Override
+    protected void startElement(NodeName name, SchemaType type) {
+        appender.startElement(appender.getNameCode(name));
+    }
+
+    @Override
+    protected void attribute(NodeName name, SimpleType type, String value) {
+        appender.attribute(appender.getNameCode(name), type, value);
+    }
+
+    @Override
+    protected void startContent() {
+    }
+
+    @Override
+    protected void characters(String s) {
+        appender.characters(s);
+    }
+
+    @Override
+    protected void endElement() {
+        appender.endElement();
+    }
+
+    /**
+     * Return the complete parsed result
+     *
+     * @return the XML document for this JSON
+     */
+    @Override
+    public Item getResult() {
+        return appender.close();
+    }
+}
+
+// Copyright (c) 2018-2020 Saxonica Limited
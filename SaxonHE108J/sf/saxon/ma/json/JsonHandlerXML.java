@@ -99,7 +99,7 @@ public class JsonHandlerXML extends JsonHandler {
      * @throws XPathException if initialization fails, for example because of problems loading the schema
      */
     public JsonHandlerXML(XPathContext context, String staticBaseUri, int flags) throws XPathException {
-        init(context, flags);
+        this(context, flags);
         builder = context.getController().makeBuilder();
         builder.setSystemId(staticBaseUri);
         builder.setTiming(false);
@@ -108,6 +108,19 @@ public class JsonHandlerXML extends JsonHandler {
         out.startDocument(ReceiverOption.NONE);
     }
 
+    /**
+     * Make the handler, without creating the tree builder. This is used by subclasses that construct the
+     * tree by other means, in which case they must override the methods that write to the tree.
+     *
+     * @param context the context in which the result tree is to be built
+     * @param flags   flags indicating the chosen options
+     * @throws XPathException if initialization fails, for example because of problems loading the schema
+     * @since 10.8
+     */
+    protected JsonHandlerXML(XPathContext context, int flags) throws XPathException {
+        init(context, flags);
+    }
+
     /**
      * Initialise the tree builder.
      * <p>This also ensures the appropriate schema is loaded when type validation is required</p>
@@ -231,7 +244,7 @@ public class JsonHandlerXML extends JsonHandler {
      * @throws XPathException if a dynamic error occurs
      */
     private void startElement(FingerprintedQName qn, String typeName) throws XPathException {
-        startElement(qn, types.get(typeName));
+        startJsonElement(qn, types.get(typeName));
     }
 
     /**
@@ -241,21 +254,47 @@ public class JsonHandlerXML extends JsonHandler {
      * @param st the schema type to use when validating - null implies untyped.
      * @throws XPathException if a dynamic error occurs
      */
-    private void startElement(FingerprintedQName qn, SchemaType st) throws XPathException {
-        out.startElement(qn, validate && st != null ? st : UNTYPED,
-                         Loc.NONE, ReceiverOption.NONE);
+    private void startJsonElement(FingerprintedQName qn, SchemaType st) throws XPathException {
+        startElement(qn, validate && st != null ? st : UNTYPED);
         if (isInMap()) {
             String k = keys.pop();
             k = reEscape(k);
             if (escape) {
                 markAsEscaped(k, true);
             }
-            out.attribute(keyQN, validate ? STRING_TYPE : SIMPLE_TYPE, k,
-                          Loc.NONE, ReceiverOption.NONE);
+            attribute(keyQN, validate ? STRING_TYPE : SIMPLE_TYPE, k);
         }
     }
 
-    private void startContent() throws XPathException {
+    /**
+     * Write the start of an element to the result tree
+     *
+     * @param name the name of the element
+     * @param type the type annotation of the element
+     * @throws XPathException if a dynamic error occurs
+     */
+    protected void startElement(NodeName name, SchemaType type) throws XPathException {
+        out.startElement(name, type, Loc.NONE, ReceiverOption.NONE);
+    }
+
+    /**
+     * Write an attribute of the element most recently started
+     *
+     * @param name  the name of the attribute
+     * @param type  the type annotation of the attribute
+     * @param value the value of the attribute
+     * @throws XPathException if a dynamic error occurs
+     */
+    protected void attribute(NodeName name, SimpleType type, String value) throws XPathException {
+        out.attribute(name, type, value, Loc.NONE, ReceiverOption.NONE);
+    }
+
+    /**
+     * Notify the end of the attributes of the element most recently started
+     *
+     * @throws XPathException if a dynamic error occurs
+     */
+    protected void startContent() throws XPathException {
         out.startContent();
     }
 
@@ -265,16 +304,16 @@ public class JsonHandlerXML extends JsonHandler {
      * @param s the string to be added
      * @throws XPathException if a dynamic error occurs
      */
-    private void characters(String s) throws XPathException {
+    protected void characters(String s) throws XPathException {
         out.characters(s, Loc.NONE, ReceiverOption.NONE);
     }
 
     /**
-     * End the current element in the treel
+     * End the current element in the tree
      *
      * @throws XPathException if a dynamic error occurs
      */
-    private void endElement() throws XPathException {
+    protected void endElement() throws XPathException {
         out.endElement();
     }
 
@@ -371,8 +410,7 @@ public class JsonHandlerXML extends JsonHandler {
     protected void markAsEscaped(CharSequence escaped, boolean isKey) throws XPathException {
         if (containsEscape(escaped.toString()) && escape) {
             NodeName name = isKey ? escapedKeyQN : escapedQN;
-            out.attribute(name, validate ? BOOLEAN_TYPE : SIMPLE_TYPE, "true",
-                          Loc.NONE, ReceiverOption.NONE);
+            attribute(name, validate ? BOOLEAN_TYPE : SIMPLE_TYPE, "true");
         }
     }
 
@@ -17,6 +17,10 @@ import net.sf.saxon.type.StringToDouble;
 import net.sf.saxon.value.BooleanValue;
 import net.sf.saxon.value.StringValue;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.util.Map;
 
 /**
@@ -42,6 +46,8 @@ public class JsonParser {
     private static final String ERR_OPTIONS = "FOJS0005";
     private static final String ERR_LIMITS = "FOJS0001";  // No specific code in spec
 
+    private static final int BUFFER_SIZE = 8192;
+
     /**
      * Create a JSON parser
      */
@@ -59,17 +65,41 @@ public class JsonParser {
      * @throws XPathException if the syntax of the input is incorrect
      */
     public void parse(String input, int flags, JsonHandler handler, XPathContext context) throws XPathException {
-        if (input.isEmpty()) {
-            invalidJSON("An empty string is not valid JSON", ERR_GRAMMAR, 1);
+        try {
+            parse(new StringReader(input), flags, handler, context);
+        } catch (IOException e) {
+            throw new XPathException(e);  // not expected when reading a string
         }
+    }
 
-        JsonTokenizer t = new JsonTokenizer(input);
-        t.next();
+    /**
+     * Parse JSON text supplied as a stream of characters, according to supplied options. The input is
+     * read incrementally, and parsing events are notified to the handler as the text is read, so the
+     * complete JSON text is never held in memory. The caller is responsible for closing the reader.
+     *
+     * @param input   supplies the JSON input text
+     * @param flags   options for the conversion as a map of xs:string : value pairs
+     * @param handler event handler to which parsing events are notified
+     * @param context XPath evaluation context
+     * @throws XPathException if the syntax of the input is incorrect
+     * @throws IOException if a failure occurs reading the input
+     * @since 10.8
+     */
+    public void parse(Reader input, int flags, JsonHandler handler, XPathContext context) throws XPathException, IOException {
+        try {
+            JsonTokenizer t = new JsonTokenizer(input);
+            if (t.isEmpty()) {
+                invalidJSON("An empty string is not valid JSON", ERR_GRAMMAR, 1);
+            }
+            t.next();
 
-        parseConstruct(handler, t, flags, context);
+            parseConstruct(handler, t, flags, context);
 
-        if (t.next() != JsonToken.EOF) {
-            invalidJSON("Unexpected token beyond end of JSON input", ERR_GRAMMAR, t.lineNumber);
+            if (t.next() != JsonToken.EOF) {
+                invalidJSON("Unexpected token beyond end of JSON input", ERR_GRAMMAR, t.lineNumber);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
 
     }
@@ -437,37 +467,84 @@ public class JsonParser {
     }
 
     /**
-     * Inner class to do the tokenization
+     * Inner class to do the tokenization. The input is read from a Reader into a buffer, which is
+     * refilled as required; failures reading the input are thrown as an {@link UncheckedIOException}.
      */
 
     private class JsonTokenizer {
 
-        private String input;
-        private int position;
+        private final Reader reader;
+        private final char[] buffer = new char[BUFFER_SIZE];
+        private int position;     // position of the next character in the buffer
+        private int limit;        // number of characters held in the buffer
+        private int offset;       // number of characters of input that preceded the start of the buffer
+        private boolean exhausted;
         private int lineNumber = 1;
         public JsonToken currentToken;
         public FastStringBuffer currentTokenValue = new FastStringBuffer(FastStringBuffer.C64);
 
-        JsonTokenizer(String input) {
-            this.input = input;
-            this.position = 0;
+        JsonTokenizer(Reader reader) {
+            this.reader = reader;
             // Ignore a leading BOM
-            if (!input.isEmpty() && input.charAt(0) == 65279) {
+            if (fill(1) && buffer[0] == 65279) {
                 position++;
             }
         }
 
+        /**
+         * Ask whether the input is empty
+         *
+         * @return true if the input contains no characters other than a byte order mark
+         */
+
+        boolean isEmpty() {
+            return offset == 0 && position == limit;
+        }
+
+        /**
+         * Ensure that the buffer holds at least a given number of unread characters, reading more input
+         * if necessary
+         *
+         * @param needed the number of unread characters required
+         * @return false if the input ends before that many characters are available
+         */
+
+        private boolean fill(int needed) {
+            while (limit - position < needed) {
+                if (exhausted) {
+                    return false;
+                }
+                if (position > 0) {
+                    System.arraycopy(buffer, position, buffer, 0, limit - position);
+                    offset += position;
+                    limit -= position;
+                    position = 0;
+                }
+                try {
+                    int n = reader.read(buffer, limit, buffer.length - limit);
+                    if (n < 0) {
+                        exhausted = true;
+                    } else {
+                        limit += n;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return true;
+        }
+
         public JsonToken next() throws XPathException {
             currentToken = readToken();
             return currentToken;
         }
 
         private JsonToken readToken() throws XPathException {
-            if (position >= input.length()) {
+            if (position >= limit && !fill(1)) {
                 return JsonToken.EOF;
             }
             ws: while (true) {
-                char c = input.charAt(position);
+                char c = buffer[position];
                 switch (c) {
                     case '\n':
                     case '\r':
@@ -475,7 +552,7 @@ public class JsonParser {
                         // drop through
                     case ' ':
                     case '\t':
-                        if (++position >= input.length()) {
+                        if (++position >= limit && !fill(1)) {
                             return JsonToken.EOF;
                         }
                         break;
@@ -483,7 +560,7 @@ public class JsonParser {
                         break ws;
                 }
             }
-            char ch = input.charAt(position++);
+            char ch = buffer[position++];
             switch (ch) {
                 case '[':
                     return JsonToken.LSQB;
@@ -497,19 +574,24 @@ public class JsonParser {
                     currentTokenValue.setLength(0);
                     boolean afterBackslash = false;
                     while (true) {
-                        if (position >= input.length()) {
+                        if (position >= limit && !fill(1)) {
                             invalidJSON("Unclosed quotes in string literal", ERR_GRAMMAR, lineNumber);
                         }
-                        char c = input.charAt(position++);
+                        char c = buffer[position++];
                         if (c < 32) {
                             invalidJSON("Unescaped control character (x" + Integer.toHexString(c) + ")", ERR_GRAMMAR, lineNumber);
                         }
                         if (afterBackslash && c == 'u') {
-                            try {
-                                String hex = input.substring(position, position + 4);
-                                //noinspection ResultOfMethodCallIgnored
-                                Integer.parseInt(hex, 16);
-                            } catch (Exception e) {
+                            boolean valid = fill(4);
+                            if (valid) {
+                                try {
+                                    //noinspection ResultOfMethodCallIgnored
+                                    Integer.parseInt(new String(buffer, position, 4), 16);
+                                } catch (NumberFormatException e) {
+                                    valid = false;
+                                }
+                            }
+                            if (!valid) {
                                 invalidJSON("\\u must be followed by four hex characters", ERR_GRAMMAR, lineNumber);
                             }
                         }
@@ -540,17 +622,14 @@ public class JsonParser {
                 case '9':
                     currentTokenValue.setLength(0);
                     currentTokenValue.cat(ch);
-                    if (position < input.length()) {   // We could be in ECMA mode when there is a single digit
-                        while (true) {
-                            char c = input.charAt(position);
-                            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
-                                currentTokenValue.cat(c);
-                                if (++position >= input.length()) {
-                                    break;
-                                }
-                            } else {
-                                break;
-                            }
+                    // We could be in ECMA mode when there is a single digit
+                    while (position < limit || fill(1)) {
+                        char c = buffer[position];
+                        if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                            currentTokenValue.cat(c);
+                            position++;
+                        } else {
+                            break;
                         }
                     }
                     return JsonToken.NUMERIC_LITERAL;
@@ -559,8 +638,8 @@ public class JsonParser {
                     if (NameChecker.isNCNameChar(ch)) {
                         currentTokenValue.setLength(0);
                         currentTokenValue.cat(ch);
-                        while (position < input.length()) {
-                            char c = input.charAt(position);
+                        while (position < limit || fill(1)) {
+                            char c = buffer[position];
                             if (NameChecker.isNCNameChar(c)) {
                                 currentTokenValue.cat(c);
                                 position++;
@@ -580,9 +659,9 @@ public class JsonParser {
                                 return JsonToken.UNQUOTED_STRING;
                         }
                     } else {
-                        char c = input.charAt(--position);
+                        char c = buffer[--position];
                         invalidJSON("Unexpected character '" + c + "' (\\u" +
-                                            Integer.toHexString(c) + ") at position " + position, ERR_GRAMMAR, lineNumber);
+                                            Integer.toHexString(c) + ") at position " + (offset + position), ERR_GRAMMAR, lineNumber);
                         return JsonToken.EOF;
                     }
                 }
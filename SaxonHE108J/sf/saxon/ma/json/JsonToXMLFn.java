@@ -97,7 +97,12 @@ public class JsonToXMLFn extends SystemFunction {
         } else {
             flags = JsonParser.DUPLICATES_RETAINED;
         }
-        JsonHandlerXML handler = new JsonHandlerXML(context, getStaticBaseUriString(), flags);
+        JsonHandlerXML handler;
+        if (JsonHandlerTinyTree.isApplicable(context, flags)) {
+            handler = new JsonHandlerTinyTree(context, getStaticBaseUriString(), flags);
+        } else {
+            handler = new JsonHandlerXML(context, getStaticBaseUriString(), flags);
+        }
         if (options != null) {
             handler.setFallbackFunction(checkedOptions, context);
         }
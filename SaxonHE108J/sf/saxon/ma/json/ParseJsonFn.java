@@ -19,6 +19,9 @@ import net.sf.saxon.value.BooleanValue;
 import net.sf.saxon.value.SequenceType;
 import net.sf.saxon.value.StringValue;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.Map;
 
 /**
@@ -71,6 +74,27 @@ public class ParseJsonFn extends JsonToXMLFn {
      */
 
     public static Item parse(String input, Map<String, Sequence> options, XPathContext context) throws XPathException {
+        try {
+            return parse(new StringReader(input), options, context);
+        } catch (IOException e) {
+            throw new XPathException(e);  // not expected when reading a string
+        }
+    }
+
+    /**
+     * Parse JSON text supplied as a stream of characters according to supplied options. The text
+     * is parsed as it is read, without first being read into memory in its entirety.
+     *
+     * @param input   supplies the JSON input text. The caller is responsible for closing the reader.
+     * @param options options for the conversion as a map of xs:string : value pairs
+     * @param context XPath evaluation context
+     * @return the result of the parsing
+     * @throws XPathException if the syntax of the input is incorrect
+     * @throws IOException if a failure occurs reading the input
+     * @since 10.8
+     */
+
+    public static Item parse(Reader input, Map<String, Sequence> options, XPathContext context) throws XPathException, IOException {
         JsonParser parser = new JsonParser();
         int flags = 0;
         if (options != null) {
@@ -23,11 +23,22 @@ import java.util.*;
  * A simple implementation of MapItem where the strings are keys, and modification is unlikely.
  * This implementation is used in a number of cases where it can be determined that it is suitable,
  * for example when parsing JSON input, or when creating a fixed map to use in an options argument.
+ * <p>The keys and values are held in a pair of arrays, in order of insertion. Most such maps are small,
+ * and are searched sequentially; when the number of entries exceeds a threshold, an open-addressing hash
+ * index into the arrays is maintained as well. Any modification of the map after construction (for example
+ * by <code>map:put</code> or <code>map:remove</code>) first converts it to a {@link HashTrieMap}.</p>
  */
 
 public class DictionaryMap implements MapItem {
 
-    private HashMap<String, GroundedValue> hashMap;
+    private final static int INDEX_THRESHOLD = 8;
+    private final static String[] NO_KEYS = new String[0];
+    private final static GroundedValue[] NO_VALUES = new GroundedValue[0];
+
+    private String[] keys = NO_KEYS;
+    private GroundedValue[] values = NO_VALUES;
+    private int size = 0;
+    private int[] index = null;    // hash table holding the position of each key plus one; or null if the map is small
 
     /**
      * Create an empty dictionary, to which entries can be added using {@link #initialPut(String, GroundedValue)},
@@ -35,7 +46,6 @@ public class DictionaryMap implements MapItem {
      */
 
     public DictionaryMap() {
-        hashMap = new HashMap<>();
     }
 
     /**
@@ -43,7 +53,12 @@ public class DictionaryMap implements MapItem {
      */
 
     public void initialPut(String key, GroundedValue value) {
-        hashMap.put(key, value);
+        int pos = find(key);
+        if (pos >= 0) {
+            values[pos] = value;
+        } else {
+            append(key, value);
+        }
     }
 
     /**
@@ -51,14 +66,95 @@ public class DictionaryMap implements MapItem {
      */
 
     public void initialAppend(String key, GroundedValue value) {
-        GroundedValue existingValue = hashMap.get(key);
-        if (existingValue == null) {
-            initialPut(key, value);
+        int pos = find(key);
+        if (pos >= 0) {
+            values[pos] = values[pos].concatenate(value);
         } else {
-            hashMap.put(key, existingValue.concatenate(value));
+            append(key, value);
         }
     }
 
+    /**
+     * Ask whether the map contains an entry with a given key
+     *
+     * @param key the key
+     * @return true if there is an entry with this key
+     * @since 10.8
+     */
+
+    public boolean containsKey(String key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Find the position of a key in the arrays
+     *
+     * @param key the key
+     * @return the position of the key, or -1 if it is not present
+     */
+
+    private int find(String key) {
+        int hash = key.hashCode();
+        if (index == null) {
+            for (int i = 0; i < size; i++) {
+                String k = keys[i];
+                if (k.hashCode() == hash && k.equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = index.length - 1;
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = index[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (keys[entry - 1].equals(key)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /**
+     * Add an entry whose key is known not to be present
+     *
+     * @param key   the key
+     * @param value the value
+     */
+
+    private void append(String key, GroundedValue value) {
+        if (size == keys.length) {
+            int capacity = size < 4 ? 4 : size * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        if (index != null && size * 2 <= index.length) {
+            addToIndex(size - 1);
+        } else if (size > INDEX_THRESHOLD) {
+            index = new int[Integer.highestOneBit(size) << 2];
+            for (int i = 0; i < size; i++) {
+                addToIndex(i);
+            }
+        }
+    }
+
+    private void addToIndex(int pos) {
+        int mask = index.length - 1;
+        int slot = spread(keys[pos].hashCode()) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = pos + 1;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
     /**
      * Get an entry from the Map
      *
@@ -68,7 +164,8 @@ public class DictionaryMap implements MapItem {
     @Override
     public GroundedValue get(AtomicValue key) {
         if (key instanceof StringValue) {
-            return hashMap.get(key.getStringValue());
+            int pos = find(key.getStringValue());
+            return pos < 0 ? null : values[pos];
         } else {
             return null;
         }
@@ -81,7 +178,7 @@ public class DictionaryMap implements MapItem {
      */
     @Override
     public int size() {
-        return hashMap.size();
+        return size;
     }
 
     /**
@@ -91,17 +188,17 @@ public class DictionaryMap implements MapItem {
      */
     @Override
     public boolean isEmpty() {
-        return hashMap.isEmpty();
+        return size == 0;
     }
 
     /**
      * Get the set of all key values in the map.
      *
-     * @return a set containing all the key values present in the map, in unpredictable order
+     * @return a set containing all the key values present in the map, in order of insertion
      */
     @Override
     public AtomicIterator<StringValue> keys() {
-        Iterator<String> base = hashMap.keySet().iterator();
+        Iterator<String> base = Arrays.asList(keys).subList(0, size).iterator();
         return () -> base.hasNext() ? new StringValue(base.next()) : null;
     }
 
@@ -112,8 +209,10 @@ public class DictionaryMap implements MapItem {
      */
     @Override
     public Iterable<KeyValuePair> keyValuePairs() {
-        List<KeyValuePair> pairs = new ArrayList<>();
-        hashMap.forEach((k, v) -> pairs.add(new KeyValuePair(new StringValue(k), v)));
+        List<KeyValuePair> pairs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            pairs.add(new KeyValuePair(new StringValue(keys[i]), values[i]));
+        }
         return pairs;
     }
 
@@ -162,7 +261,8 @@ public class DictionaryMap implements MapItem {
         if (valueType.equals(SequenceType.ANY_SEQUENCE)) {
             return true;
         }
-        for (GroundedValue val : hashMap.values()) {
+        for (int i = 0; i < size; i++) {
+            GroundedValue val = values[i];
             try {
                 if (!valueType.matches(val, th)) {
                     return false;
@@ -186,10 +286,8 @@ public class DictionaryMap implements MapItem {
         ItemType valueType = null;
         int valueCard = 0;
         // we need to test the entries individually
-        AtomicIterator keyIter = keys();
-        AtomicValue key;
-        for (Map.Entry<String, GroundedValue> entry : hashMap.entrySet()) {
-            GroundedValue val = entry.getValue();
+        for (int i = 0; i < size; i++) {
+            GroundedValue val = values[i];
             if (valueType == null) {
                 valueType = SequenceTool.getItemType(val, th);
                 valueCard = SequenceTool.getCardinality(val);
@@ -214,7 +312,7 @@ public class DictionaryMap implements MapItem {
      */
     @Override
     public UType getKeyUType() {
-        return hashMap.isEmpty() ? UType.VOID : UType.STRING;
+        return size == 0 ? UType.VOID : UType.STRING;
     }
 
     /**
@@ -224,7 +322,9 @@ public class DictionaryMap implements MapItem {
     private HashTrieMap toHashTrieMap() {
         //System.err.println("Dictionary rewrite!!!!");
         HashTrieMap target = new HashTrieMap();
-        hashMap.forEach((k, v) -> target.initialPut(new StringValue(k), v));
+        for (int i = 0; i < size; i++) {
+            target.initialPut(new StringValue(keys[i]), values[i]);
+        }
         return target;
     }
 }
@@ -36,6 +36,12 @@ public class HashTrieMap implements MapItem {
 
     private ImmutableMap<AtomicMatchKey, KeyValuePair> imap;
 
+    // While the map is being populated using initialPut(), the entries are added to a transient
+    // version of the trie, which is updated in place. The transient trie is frozen (and this field
+    // is set to null) as soon as the map is used in any way that might share or expose the trie.
+    // Freezing is idempotent, so it does no harm if two threads reading the map both do it.
+    private volatile ImmutableHashTrieMap.Transient<AtomicMatchKey, KeyValuePair> transientMap;
+
     // The following values are maintained incrementally when
     // entries are added to the map. They are not changed when entries are removed,
     // so the actual type may be narrower than these values suggest. The purpose of
@@ -104,13 +110,57 @@ public class HashTrieMap implements MapItem {
         if (map instanceof HashTrieMap) {
             return (HashTrieMap) map;
         }
+        return mutableCopy(map);
+    }
+
+    /**
+     * Create a new map whose entries are copies of the entries in an existing MapItem, and which
+     * can be populated further using {@link #initialPut(AtomicValue, GroundedValue)} without
+     * affecting the existing map. If the existing map is a HashTrieMap, the new map initially
+     * shares its trie: only the parts of the trie that are modified are copied.
+     *
+     * @param map the existing map to be copied
+     * @return the new map
+     * @since 10.8
+     */
+
+    public static HashTrieMap mutableCopy(MapItem map) {
+        if (map instanceof HashTrieMap) {
+            HashTrieMap original = (HashTrieMap) map;
+            HashTrieMap m2 = new HashTrieMap(original.frozen());
+            m2.keyUType = original.keyUType;
+            m2.valueUType = original.valueUType;
+            m2.keyAtomicType = original.keyAtomicType;
+            m2.valueItemType = original.valueItemType;
+            m2.valueCardinality = original.valueCardinality;
+            m2.entries = original.entries;
+            return m2;
+        }
         HashTrieMap m2 = new HashTrieMap();
         for (KeyValuePair pair : map.keyValuePairs()) {
-            m2 = m2.addEntry(pair.key, pair.value);
+            m2.initialPut(pair.key, pair.value);
         }
         return m2;
     }
 
+    /**
+     * Get the trie holding the entries of the map, freezing it first if the map is being
+     * populated using a transient trie
+     *
+     * @return the immutable trie
+     */
+
+    private ImmutableMap<AtomicMatchKey, KeyValuePair> frozen() {
+        ImmutableHashTrieMap.Transient<AtomicMatchKey, KeyValuePair> t = transientMap;
+        if (t != null) {
+            ImmutableMap<AtomicMatchKey, KeyValuePair> trie = t.persistent();
+            imap = trie;
+            transientMap = null;
+            return trie;
+        }
+        return imap;
+    }
+
     /**
      * After adding an entry to the map, update the cached type information
      * @param key      the new key
@@ -162,7 +212,7 @@ public class HashTrieMap implements MapItem {
      */
     @Override
     public boolean isEmpty() {
-        return entries == 0 || !imap.iterator().hasNext();
+        return entries == 0 || !frozen().iterator().hasNext();
     }
 
     /**
@@ -300,6 +350,7 @@ public class HashTrieMap implements MapItem {
     @Override
     public HashTrieMap addEntry(AtomicValue key, GroundedValue value) {
         AtomicMatchKey amk = makeKey(key);
+        ImmutableMap<AtomicMatchKey, KeyValuePair> imap = frozen();
         boolean isNew = imap.get(amk) == null;
         boolean empty = isEmpty();
         ImmutableMap<AtomicMatchKey, KeyValuePair> imap2 = imap.put(amk, new KeyValuePair(key, value));
@@ -320,6 +371,8 @@ public class HashTrieMap implements MapItem {
      * Add a new entry to this map. Since the map is supposed to be immutable, this method
      * must only be called while initially populating the map, and must not be called if
      * anyone else might already be using the map.
+     * <p>A sequence of calls on this method updates the underlying trie in place, rather than
+     * copying the path to the new entry on each call.</p>
      *
      * @param key   the key of the new entry. Any existing entry with this key is replaced.
      * @param value the value associated with the new entry
@@ -330,11 +383,28 @@ public class HashTrieMap implements MapItem {
 //        if (Instrumentation.ACTIVE) {
 //            Instrumentation.count("initialPut");
 //        }
-        boolean empty = isEmpty();
-        boolean exists = get(key) != null;
-        imap = imap.put(makeKey(key), new KeyValuePair(key, value));
+        ImmutableHashTrieMap.Transient<AtomicMatchKey, KeyValuePair> t = transientMap;
+        if (t == null) {
+            if (!(imap instanceof ImmutableHashTrieMap)) {
+                boolean empty = isEmpty();
+                boolean exists = get(key) != null;
+                imap = imap.put(makeKey(key), new KeyValuePair(key, value));
+                updateTypeInformation(key, value, empty);
+                entries = -1;
+                return exists;
+            }
+            size();  // ensure the number of entries is known
+            t = ((ImmutableHashTrieMap<AtomicMatchKey, KeyValuePair>) imap).asTransient();
+            transientMap = t;
+        }
+        AtomicMatchKey amk = makeKey(key);
+        boolean empty = entries == 0;
+        boolean exists = t.get(amk) != null;
+        t.put(amk, new KeyValuePair(key, value));
         updateTypeInformation(key, value, empty);
-        entries = -1;
+        if (!exists) {
+            entries++;
+        }
         return exists;
     }
 
@@ -365,6 +435,7 @@ public class HashTrieMap implements MapItem {
         // assigned that bucket. So now we do an explicit check.
         // This is probably slower, but remove() is an uncommon
         // operation. And it gives the correct result!
+        ImmutableMap<AtomicMatchKey, KeyValuePair> imap = frozen();
         if (imap.get(makeKey(key)) == null) {
             // The key is not present; the map is unchanged
             return this;
@@ -388,7 +459,7 @@ public class HashTrieMap implements MapItem {
 
     @Override
     public GroundedValue get(AtomicValue key) {
-        KeyValuePair o = imap.get(makeKey(key));
+        KeyValuePair o = getKeyValuePair(key);
         return o == null ? null : o.value;
     }
 
@@ -400,7 +471,9 @@ public class HashTrieMap implements MapItem {
      */
 
     public KeyValuePair getKeyValuePair(AtomicValue key) {
-        return imap.get(makeKey(key));
+        AtomicMatchKey amk = makeKey(key);
+        ImmutableHashTrieMap.Transient<AtomicMatchKey, KeyValuePair> t = transientMap;
+        return t == null ? imap.get(amk) : t.get(amk);
     }
 
     /**
@@ -413,7 +486,7 @@ public class HashTrieMap implements MapItem {
     public AtomicIterator<? extends AtomicValue> keys() {
         return new AtomicIterator<AtomicValue>() {
 
-            Iterator<Tuple2<AtomicMatchKey, KeyValuePair>> base = imap.iterator();
+            Iterator<Tuple2<AtomicMatchKey, KeyValuePair>> base = frozen().iterator();
 
             @Override
             public AtomicValue next() {
@@ -439,7 +512,7 @@ public class HashTrieMap implements MapItem {
             @Override
             public Iterator<KeyValuePair> iterator() {
                 return new Iterator<KeyValuePair>() {
-                    Iterator<Tuple2<AtomicMatchKey, KeyValuePair>> base = imap.iterator();
+                    Iterator<Tuple2<AtomicMatchKey, KeyValuePair>> base = frozen().iterator();
 
                     @Override
                     public boolean hasNext() {
@@ -463,7 +536,7 @@ public class HashTrieMap implements MapItem {
 
     public void diagnosticDump() {
         System.err.println("Map details:");
-        for (Tuple2<AtomicMatchKey, KeyValuePair> entry : imap) {
+        for (Tuple2<AtomicMatchKey, KeyValuePair> entry : frozen()) {
             AtomicMatchKey k1 = entry._1;
             AtomicValue k2 = entry._2.key;
             Sequence v = entry._2.value;
@@ -31,20 +31,21 @@ public class MapCreate extends SystemFunction {
         if (baseMap == null) {
             return new HashTrieMap();
         } else {
-            if (!(baseMap instanceof HashTrieMap)) {
-                baseMap = HashTrieMap.copy(baseMap);
+            MapItem next = (MapItem) iter.next();
+            if (next == null) {
+                return HashTrieMap.copy(baseMap);
             }
-            MapItem next;
-            while ((next = (MapItem) iter.next()) != null) {
+            // The new map is not visible to anyone else until it is returned, so it can be
+            // populated in place
+            HashTrieMap result = HashTrieMap.mutableCopy(baseMap);
+            do {
                 for (KeyValuePair pair : next.keyValuePairs()) {
-                    if (baseMap.get(pair.key) != null) {
+                    if (result.initialPut(pair.key, pair.value)) {
                         throw new XPathException("Duplicate key value (" + pair.key + ") in map", "XQDY0137");
-                    } else {
-                        baseMap = baseMap.addEntry(pair.key, pair.value);
                     }
                 }
-            }
-            return baseMap;
+            } while ((next = (MapItem) iter.next()) != null);
+            return result;
         }
 
     }
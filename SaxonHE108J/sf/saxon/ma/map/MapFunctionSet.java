@@ -562,6 +562,9 @@ public class MapFunctionSet extends BuiltInFunctionSet {
                     return new HashTrieMap();
                 } else {
                     MapItem next;
+                    // The map under construction, if any: this is not visible to anyone else until
+                    // it is returned, so it can be updated in place
+                    HashTrieMap result = null;
                     while ((next = (MapItem) iter.next()) != null) {
                         // Merge the next map and the base map. Merge the smaller of the two
                         // maps into the larger. The complication is that this affects duplicates handling.
@@ -570,6 +573,7 @@ public class MapFunctionSet extends BuiltInFunctionSet {
                         MapItem larger = inverse ? next : baseMap;
                         MapItem smaller = inverse ? baseMap : next;
                         String dup = inverse ? invertDuplicates(duplicates) : duplicates;
+                        HashTrieMap target = larger == result ? result : null;
                         for (KeyValuePair pair : smaller.keyValuePairs()) {
                             Sequence existing = larger.get(pair.key);
                             if (existing != null) {
@@ -580,20 +584,20 @@ public class MapFunctionSet extends BuiltInFunctionSet {
                                         // no action
                                         break;
                                     case "use-last":
-                                        larger = larger.addEntry(pair.key, pair.value);
+                                        target = put(target, larger, pair.key, pair.value);
                                         break;
                                     case "combine": {
                                         InsertBefore.InsertIterator combinedIter =
                                                 new InsertBefore.InsertIterator(pair.value.iterate(), existing.iterate(), 1);
                                         GroundedValue combinedValue = combinedIter.materialize();
-                                        larger = larger.addEntry(pair.key, combinedValue);
+                                        target = put(target, larger, pair.key, combinedValue);
                                         break;
                                     }
                                     case "combine-reverse": {
                                         InsertBefore.InsertIterator combinedIter =
                                                 new InsertBefore.InsertIterator(existing.iterate(), pair.value.iterate(), 1);
                                         GroundedValue combinedValue = combinedIter.materialize();
-                                        larger = larger.addEntry(pair.key, combinedValue);
+                                        target = put(target, larger, pair.key, combinedValue);
                                         break;
                                     }
                                     case "use-callback":
@@ -609,17 +613,22 @@ public class MapFunctionSet extends BuiltInFunctionSet {
                                                     new Sequence[]{existing, pair.value, pair.key};
                                         }
                                         Sequence combined = onDuplicates.call(context, args);
-                                        larger = larger.addEntry(pair.key, combined.materialize());
+                                        target = put(target, larger, pair.key, combined.materialize());
                                         break;
                                     default:
                                         throw new XPathException("Duplicate key in constructed map: " +
                                                                          Err.wrap(pair.key.getStringValue()), duplicatesErrorCode);
                                 }
                             } else {
-                                larger = larger.addEntry(pair.key, pair.value);
+                                target = put(target, larger, pair.key, pair.value);
                             }
                         }
-                        baseMap = larger;
+                        if (target != null) {
+                            result = target;
+                            baseMap = target;
+                        } else {
+                            baseMap = larger;
+                        }
                     }
                     return baseMap;
                 }
@@ -627,6 +636,26 @@ public class MapFunctionSet extends BuiltInFunctionSet {
 
         }
 
+        /**
+         * Add an entry to the map under construction. Entries are looked up in the original map, which
+         * does not change; since the keys being added are distinct, it gives the same answers as the
+         * map under construction would
+         *
+         * @param target the map under construction, or null if no entries have yet been added
+         * @param larger the map to which entries are being added
+         * @param key    the key of the new entry
+         * @param value  the value of the new entry
+         * @return the map under construction
+         */
+
+        private static HashTrieMap put(HashTrieMap target, MapItem larger, AtomicValue key, GroundedValue value) {
+            if (target == null) {
+                target = HashTrieMap.mutableCopy(larger);
+            }
+            target.initialPut(key, value);
+            return target;
+        }
+
         private String invertDuplicates(String duplicates) {
             switch (duplicates) {
                 case "use-first":
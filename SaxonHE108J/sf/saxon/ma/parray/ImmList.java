@@ -7,6 +7,8 @@
 
 package net.sf.saxon.ma.parray;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -47,7 +49,7 @@ public abstract class ImmList<E> implements Iterable<E> {
      */
 
     public static <E> ImmList<E> pair(E first, E second) {
-        return new ImmList2<>(new ImmList1<>(first), new ImmList1<>(second));
+        return ImmListRRB.fromMembers(Arrays.asList(first, second));
     }
 
     /**
@@ -63,10 +65,7 @@ public abstract class ImmList<E> implements Iterable<E> {
         } else if (size == 1) {
             return singleton(members.get(0));
         } else {
-            int split = size/2;
-            List<E> left = members.subList(0, split);
-            List<E> right = members.subList(split, size);
-            return new ImmList2<>(fromList(left), fromList(right));
+            return ImmListRRB.fromMembers(members);
         }
     }
 
@@ -175,12 +174,107 @@ public abstract class ImmList<E> implements Iterable<E> {
     }
 
     /**
-     * Return a list containing the same elements as this list, but optimized for efficient access
-     * @return either this list, or a copy containing the same elements in the same order
+     * Get a transient (mutable) list initially containing the same elements as this list. Elements
+     * appended to the transient list are accumulated in place, and are only organized into an immutable
+     * list when {@link Transient#persistent()} is called. This list itself is not affected.
+     *
+     * @return a transient list with the same elements as this list
+     * @since 10.8
+     */
+
+    public Transient<E> asTransient() {
+        return new Transient<>(this);
+    }
+
+    /**
+     * A mutable list used to construct an {@link ImmList} efficiently by appending elements. The cost
+     * of building the tree structure is incurred once, when the list is made persistent, rather than
+     * on each append.
+     * <p>A transient list must be used by only one thread at a time.</p>
+     *
+     * @param <E> the type of the elements in the list
+     * @since 10.8
      */
 
-    protected ImmList<E> rebalance() {
-        return this;
+    public static final class Transient<E> {
+
+        // Lists shorter than this are appended element by element rather than being shared
+        private static final int SHARING_THRESHOLD = 32;
+
+        private ImmList<E> base;
+        private List<E> pending = new ArrayList<>();
+
+        private Transient(ImmList<E> base) {
+            this.base = base;
+        }
+
+        /**
+         * Append an element at the end of the list
+         *
+         * @param member the element to be appended
+         */
+
+        public void append(E member) {
+            checkEditable();
+            pending.add(member);
+        }
+
+        /**
+         * Append the elements of an immutable list at the end of the list. If the list is large,
+         * it is shared rather than copied
+         *
+         * @param members the elements to be appended
+         */
+
+        public void appendList(ImmList<E> members) {
+            checkEditable();
+            if (members.size() < SHARING_THRESHOLD) {
+                for (E member : members) {
+                    pending.add(member);
+                }
+            } else {
+                flush();
+                base = base.appendList(members);
+            }
+        }
+
+        /**
+         * Get the number of elements in the list
+         *
+         * @return the number of elements
+         */
+
+        public int size() {
+            checkEditable();
+            return base.size() + pending.size();
+        }
+
+        /**
+         * Freeze the contents of the transient list as an immutable list. The transient list
+         * cannot be used after calling this method
+         *
+         * @return an immutable list containing the elements that have been added
+         */
+
+        public ImmList<E> persistent() {
+            checkEditable();
+            flush();
+            pending = null;
+            return base;
+        }
+
+        private void flush() {
+            if (!pending.isEmpty()) {
+                base = base.appendList(fromList(pending));
+                pending = new ArrayList<>();
+            }
+        }
+
+        private void checkEditable() {
+            if (pending == null) {
+                throw new IllegalStateException("Transient list used after it has been made persistent");
+            }
+        }
     }
 
     /**
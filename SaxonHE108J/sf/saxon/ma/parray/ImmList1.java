@@ -9,6 +9,7 @@ package net.sf.saxon.ma.parray;
 
 import net.sf.saxon.tree.jiter.MonoIterator;
 
+import java.util.Collections;
 import java.util.Iterator;
 
 /**
@@ -55,9 +56,9 @@ public class ImmList1<E> extends ImmList<E> {
     @Override
     public ImmList<E> insert(int index, E member) {
         if (index == 0) {
-            return new ImmList2<>(new ImmList1<>(member), this);
+            return ImmList.pair(member, this.member);
         } else if (index == 1) {
-            return new ImmList2<>(this, new ImmList1<>(member));
+            return ImmList.pair(this.member, member);
         } else {
             throw outOfBounds(index,1);
         }
@@ -65,12 +66,15 @@ public class ImmList1<E> extends ImmList<E> {
 
     @Override
     public ImmList<E> append(E member) {
-        return new ImmList2<>(this, new ImmList1<>(member));
+        return ImmList.pair(this.member, member);
     }
 
     @Override
     public ImmList<E> appendList(ImmList<E> members) {
-        return new ImmList2<>(this, members);
+        if (members.isEmpty()) {
+            return this;
+        }
+        return ImmListRRB.fromMembers(Collections.singletonList(member)).appendList(members);
     }
 
     @Override
@@ -0,0 +1,633 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.ma.parray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Implementation of an immutable list of arbitrary length, implemented as a relaxed radix balanced
+ * tree (an RRB-vector) with a branching factor of 32.
+ * <p>The members are held in leaf arrays of up to 32 members, and the leaves are held in a tree of
+ * branch nodes each having up to 32 children. Each branch node records the cumulative sizes of its
+ * children, so the tree need not be completely full ("relaxed"): this allows two lists to be concatenated,
+ * or a sub-list to be extracted, by rebuilding only the nodes along the edges involved rather than copying
+ * the members. The last members of the list (up to 32) are held outside the tree in a tail array, so that
+ * appending a member usually requires only the tail to be copied.</p>
+ * <p>Access by index, replacement, concatenation and sub-list extraction all take time proportional to the
+ * depth of the tree, which is close to log<sub>32</sub> of the size: four levels suffice for a list of a
+ * million members.</p>
+ *
+ * @param <E> the type of the elements of the list
+ * @since 10.8
+ */
+public class ImmListRRB<E> extends ImmList<E> {
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+
+    // When two trees are concatenated, the number of nodes at each level along the join may exceed
+    // the minimum needed by this amount before the nodes are redistributed
+    private static final int EXTRAS = 2;
+
+    private static final Object[] EMPTY_ARRAY = new Object[0];
+
+    // The root of the tree: null if the tree is empty, a leaf array if the height is zero, otherwise a Branch
+    private final Object root;
+    private final int height;
+    private final int treeSize;
+    private final Object[] tail;
+
+    private ImmListRRB(Object root, int height, int treeSize, Object[] tail) {
+        this.root = root;
+        this.height = height;
+        this.treeSize = treeSize;
+        this.tail = tail;
+    }
+
+    /**
+     * A branch node of the tree. The children are either all branch nodes of the level below,
+     * or all leaf arrays
+     */
+
+    private static final class Branch {
+        final Object[] children;
+        // sizes[i] is the total number of members in children 0 to i inclusive
+        final int[] sizes;
+
+        Branch(Object[] children, int[] sizes) {
+            this.children = children;
+            this.sizes = sizes;
+        }
+
+        int size() {
+            return sizes[sizes.length - 1];
+        }
+    }
+
+    /**
+     * Construct an immutable list from a Java list of members
+     *
+     * @param members the members to be added to the list; there must be at least one
+     * @param <E>     the type of the list members
+     * @return the immutable list
+     */
+
+    static <E> ImmListRRB<E> fromMembers(List<E> members) {
+        Object[] all = members.toArray();
+        int size = all.length;
+        int tailLength = ((size - 1) & (WIDTH - 1)) + 1;
+        int treeSize = size - tailLength;
+        Object[] tail = Arrays.copyOfRange(all, treeSize, size);
+        if (treeSize == 0) {
+            return new ImmListRRB<>(null, 0, 0, tail);
+        }
+        Object[] level = new Object[treeSize / WIDTH];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = Arrays.copyOfRange(all, i * WIDTH, (i + 1) * WIDTH);
+        }
+        int height = 0;
+        while (level.length > 1) {
+            height++;
+            Object[] above = new Object[(level.length + WIDTH - 1) / WIDTH];
+            for (int i = 0; i < above.length; i++) {
+                above[i] = makeBranch(
+                        Arrays.copyOfRange(level, i * WIDTH, Math.min(level.length, (i + 1) * WIDTH)), height);
+            }
+            level = above;
+        }
+        return new ImmListRRB<>(level[0], height, treeSize, tail);
+    }
+
+    @Override
+    public E get(int index) {
+        if (index < 0 || index >= size()) {
+            throw outOfBounds(index, size());
+        }
+        if (index >= treeSize) {
+            return member(tail[index - treeSize]);
+        }
+        Object node = root;
+        int i = index;
+        for (int h = height; h > 0; h--) {
+            Branch branch = (Branch) node;
+            int slot = childIndex(branch, h, i);
+            if (slot > 0) {
+                i -= branch.sizes[slot - 1];
+            }
+            node = branch.children[slot];
+        }
+        return member(((Object[]) node)[i]);
+    }
+
+    /**
+     * Cast a value held in a leaf or in the tail to the member type. The arrays are declared as
+     * Object[] because they are shared between lists, but only ever hold members of type E.
+     */
+
+    @SuppressWarnings("unchecked")
+    private static <E> E member(Object value) {
+        return (E) value;
+    }
+
+    @Override
+    public int size() {
+        return treeSize + tail.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public ImmList<E> replace(int index, E member) {
+        if (index < 0 || index >= size()) {
+            throw outOfBounds(index, size());
+        }
+        if (index >= treeSize) {
+            Object[] newTail = tail.clone();
+            newTail[index - treeSize] = member;
+            return new ImmListRRB<>(root, height, treeSize, newTail);
+        }
+        return new ImmListRRB<>(replaceInTree(root, height, index, member), height, treeSize, tail);
+    }
+
+    @Override
+    public ImmList<E> insert(int index, E member) {
+        int size = size();
+        if (index < 0 || index > size) {
+            throw outOfBounds(index, size);
+        } else if (index == size) {
+            return append(member);
+        } else if (index == 0) {
+            return new ImmListRRB<E>(null, 0, 0, new Object[]{member}).appendList(this);
+        } else {
+            return subList(0, index).append(member).appendList(subList(index, size));
+        }
+    }
+
+    @Override
+    public ImmList<E> append(E member) {
+        if (tail.length < WIDTH) {
+            Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = member;
+            return new ImmListRRB<>(root, height, treeSize, newTail);
+        }
+        return withLeafAppended(tail, new Object[]{member});
+    }
+
+    @Override
+    public ImmList<E> appendList(ImmList<E> members) {
+        if (members.isEmpty()) {
+            return this;
+        } else if (isEmpty()) {
+            return members;
+        } else if (!(members instanceof ImmListRRB)) {
+            if (members.size() == 1) {
+                return append(members.head());
+            }
+            List<E> list = new ArrayList<>(members.size());
+            for (E member : members) {
+                list.add(member);
+            }
+            return appendList(fromMembers(list));
+        }
+        ImmListRRB<E> other = (ImmListRRB<E>) members;
+        if (other.root == null) {
+            // Only the tail needs to be combined
+            int room = WIDTH - tail.length;
+            if (other.tail.length <= room) {
+                return new ImmListRRB<>(root, height, treeSize, concatArrays(tail, other.tail));
+            }
+            Object[] leaf = concatArrays(tail, Arrays.copyOf(other.tail, room));
+            return withLeafAppended(leaf, Arrays.copyOfRange(other.tail, room, other.tail.length));
+        }
+        // Move the tail of this list into its tree, and then join the two trees
+        ImmListRRB<E> left = tail.length == 0 ? this : withLeafAppended(tail, EMPTY_ARRAY);
+        Object newRoot = concatSubTrees(left.root, left.height, other.root, other.height);
+        int newHeight = Math.max(left.height, other.height) + 1;
+        while (newHeight > 0 && ((Branch) newRoot).children.length == 1) {
+            newRoot = ((Branch) newRoot).children[0];
+            newHeight--;
+        }
+        return new ImmListRRB<>(newRoot, newHeight, left.treeSize + other.treeSize, other.tail);
+    }
+
+    @Override
+    public ImmList<E> remove(int index) {
+        int size = size();
+        if (index < 0 || index >= size) {
+            throw outOfBounds(index, size);
+        } else if (index == 0) {
+            return subList(1, size);
+        } else if (index == size - 1) {
+            return subList(0, index);
+        } else {
+            return subList(0, index).appendList(subList(index + 1, size));
+        }
+    }
+
+    @Override
+    public ImmList<E> subList(int start, int end) {
+        int size = size();
+        if (start < 0 || start > size) {
+            throw outOfBounds(start, size);
+        } else if (end < start || end > size) {
+            throw outOfBounds(end, size);
+        }
+        if (start == end) {
+            return ImmList.empty();
+        } else if (start == 0 && end == size) {
+            return this;
+        } else if (start >= treeSize) {
+            return new ImmListRRB<>(null, 0, 0, Arrays.copyOfRange(tail, start - treeSize, end - treeSize));
+        }
+        Object[] newTail = end > treeSize ? Arrays.copyOf(tail, end - treeSize) : EMPTY_ARRAY;
+        int treeEnd = Math.min(end, treeSize);
+        Object newRoot = slice(root, height, start, treeEnd);
+        int newHeight = height;
+        while (newHeight > 0 && ((Branch) newRoot).children.length == 1) {
+            newRoot = ((Branch) newRoot).children[0];
+            newHeight--;
+        }
+        return new ImmListRRB<>(newRoot, newHeight, treeEnd - start, newTail);
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private int index = 0;
+            private Object[] leaf = EMPTY_ARRAY;
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < size();
+            }
+
+            @Override
+            public E next() {
+                if (index >= size()) {
+                    throw new NoSuchElementException();
+                }
+                if (position == leaf.length) {
+                    // Find the leaf holding the next member, which is always its first member
+                    leaf = leafStartingAt(index);
+                    position = 0;
+                }
+                index++;
+                return member(leaf[position++]);
+            }
+        };
+    }
+
+    /**
+     * Get the leaf array whose first member is at a given index
+     *
+     * @param index the index of the first member of a leaf
+     * @return the leaf array (which may be the tail)
+     */
+
+    private Object[] leafStartingAt(int index) {
+        if (index >= treeSize) {
+            return tail;
+        }
+        Object node = root;
+        int i = index;
+        for (int h = height; h > 0; h--) {
+            Branch branch = (Branch) node;
+            int slot = childIndex(branch, h, i);
+            if (slot > 0) {
+                i -= branch.sizes[slot - 1];
+            }
+            node = branch.children[slot];
+        }
+        return (Object[]) node;
+    }
+
+    /**
+     * Make a list in which a given leaf is appended to the tree of this list, and the tail is replaced
+     *
+     * @param leaf    the leaf to be added to the tree
+     * @param newTail the tail of the new list
+     * @return the new list
+     */
+
+    private ImmListRRB<E> withLeafAppended(Object[] leaf, Object[] newTail) {
+        if (root == null) {
+            return new ImmListRRB<>(leaf, 0, leaf.length, newTail);
+        }
+        Object newRoot = appendLeaf(root, height, leaf);
+        if (newRoot != null) {
+            return new ImmListRRB<>(newRoot, height, treeSize + leaf.length, newTail);
+        }
+        newRoot = makeBranch(new Object[]{root, pathTo(leaf, height)}, height + 1);
+        return new ImmListRRB<>(newRoot, height + 1, treeSize + leaf.length, newTail);
+    }
+
+    /**
+     * Get the position of the child of a branch that holds the member at a given index. No child can
+     * hold more than 32<sup>height</sup> members, so this is at least the position the member would
+     * have in a full tree; the cumulative sizes are then searched forwards from there
+     *
+     * @param branch the branch node
+     * @param height the height of the branch node
+     * @param index  the index of the required member relative to the start of the branch
+     * @return the position of the child containing the member
+     */
+
+    private static int childIndex(Branch branch, int height, int index) {
+        int shift = BITS * height;
+        int slot = shift < 31 ? index >>> shift : 0;
+        int[] sizes = branch.sizes;
+        while (sizes[slot] <= index) {
+            slot++;
+        }
+        return slot;
+    }
+
+    /**
+     * Make a branch node, computing the cumulative sizes of its children
+     *
+     * @param children the children
+     * @param height   the height of the new branch node
+     * @return the new branch node
+     */
+
+    private static Branch makeBranch(Object[] children, int height) {
+        int[] sizes = new int[children.length];
+        int total = 0;
+        for (int i = 0; i < children.length; i++) {
+            total += sizeOf(children[i], height - 1);
+            sizes[i] = total;
+        }
+        return new Branch(children, sizes);
+    }
+
+    private static int sizeOf(Object node, int height) {
+        return height == 0 ? ((Object[]) node).length : ((Branch) node).size();
+    }
+
+    private static Object[] concatArrays(Object[] a, Object[] b) {
+        Object[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * Make a subtree of a given height containing a single leaf
+     *
+     * @param leaf   the leaf
+     * @param height the height of the subtree
+     * @return the root of the subtree
+     */
+
+    private static Object pathTo(Object[] leaf, int height) {
+        Object node = leaf;
+        for (int h = 1; h <= height; h++) {
+            node = new Branch(new Object[]{node}, new int[]{leaf.length});
+        }
+        return node;
+    }
+
+    /**
+     * Append a leaf at the right-hand edge of a subtree
+     *
+     * @param node   the root of the subtree
+     * @param height the height of the subtree
+     * @param leaf   the leaf to be appended
+     * @return the root of the new subtree, or null if the subtree has no room for another leaf
+     */
+
+    private static Object appendLeaf(Object node, int height, Object[] leaf) {
+        if (height == 0) {
+            return null;
+        }
+        Branch branch = (Branch) node;
+        int last = branch.children.length - 1;
+        if (height > 1) {
+            Object newLast = appendLeaf(branch.children[last], height - 1, leaf);
+            if (newLast != null) {
+                Object[] children = branch.children.clone();
+                children[last] = newLast;
+                int[] sizes = branch.sizes.clone();
+                sizes[last] += leaf.length;
+                return new Branch(children, sizes);
+            }
+        }
+        if (last + 1 == WIDTH) {
+            return null;
+        }
+        Object[] children = Arrays.copyOf(branch.children, last + 2);
+        children[last + 1] = pathTo(leaf, height - 1);
+        int[] sizes = Arrays.copyOf(branch.sizes, last + 2);
+        sizes[last + 1] = sizes[last] + leaf.length;
+        return new Branch(children, sizes);
+    }
+
+    /**
+     * Replace the member at a given index within a subtree
+     *
+     * @param node   the root of the subtree
+     * @param height the height of the subtree
+     * @param index  the index of the member relative to the start of the subtree
+     * @param member the replacement member
+     * @return the root of the new subtree
+     */
+
+    private static Object replaceInTree(Object node, int height, int index, Object member) {
+        if (height == 0) {
+            Object[] leaf = ((Object[]) node).clone();
+            leaf[index] = member;
+            return leaf;
+        }
+        Branch branch = (Branch) node;
+        int slot = childIndex(branch, height, index);
+        int offset = slot == 0 ? 0 : branch.sizes[slot - 1];
+        Object[] children = branch.children.clone();
+        children[slot] = replaceInTree(children[slot], height - 1, index - offset, member);
+        return new Branch(children, branch.sizes);
+    }
+
+    /**
+     * Extract the members in a given range from a subtree. Nodes lying entirely within the range
+     * are shared with the original subtree
+     *
+     * @param node   the root of the subtree
+     * @param height the height of the subtree
+     * @param from   the start of the range (inclusive) relative to the start of the subtree
+     * @param to     the end of the range (exclusive) relative to the start of the subtree
+     * @return the root of a subtree of the same height containing the members in the range
+     */
+
+    private static Object slice(Object node, int height, int from, int to) {
+        if (height == 0) {
+            Object[] leaf = (Object[]) node;
+            return from == 0 && to == leaf.length ? leaf : Arrays.copyOfRange(leaf, from, to);
+        }
+        Branch branch = (Branch) node;
+        if (from == 0 && to == branch.size()) {
+            return branch;
+        }
+        int first = childIndex(branch, height, from);
+        int last = childIndex(branch, height, to - 1);
+        Object[] children = new Object[last - first + 1];
+        for (int k = first; k <= last; k++) {
+            int offset = k == 0 ? 0 : branch.sizes[k - 1];
+            int lo = Math.max(from - offset, 0);
+            int hi = Math.min(to, branch.sizes[k]) - offset;
+            children[k - first] = slice(branch.children[k], height - 1, lo, hi);
+        }
+        return makeBranch(children, height);
+    }
+
+    /**
+     * Concatenate two subtrees. The nodes along the right-hand edge of the left subtree and the left-hand
+     * edge of the right subtree are merged, level by level from the leaves upwards, and their children
+     * redistributed where necessary to keep the tree balanced.
+     *
+     * @param left        the root of the left subtree
+     * @param leftHeight  the height of the left subtree
+     * @param right       the root of the right subtree
+     * @param rightHeight the height of the right subtree
+     * @return a branch node one level higher than the higher of the two subtrees, having one or two children
+     */
+
+    private static Branch concatSubTrees(Object left, int leftHeight, Object right, int rightHeight) {
+        if (leftHeight > rightHeight) {
+            Branch l = (Branch) left;
+            int last = l.children.length - 1;
+            Branch centre = concatSubTrees(l.children[last], leftHeight - 1, right, rightHeight);
+            return rebalance(Arrays.copyOf(l.children, last), centre, EMPTY_ARRAY, leftHeight);
+        } else if (leftHeight < rightHeight) {
+            Branch r = (Branch) right;
+            Branch centre = concatSubTrees(left, leftHeight, r.children[0], rightHeight - 1);
+            return rebalance(EMPTY_ARRAY, centre, Arrays.copyOfRange(r.children, 1, r.children.length), rightHeight);
+        } else if (leftHeight == 0) {
+            Object[] a = (Object[]) left;
+            Object[] b = (Object[]) right;
+            int total = a.length + b.length;
+            if (total <= WIDTH) {
+                return makeBranch(new Object[]{concatArrays(a, b)}, 1);
+            } else if (a.length == WIDTH) {
+                return makeBranch(new Object[]{a, b}, 1);
+            } else {
+                Object[] all = concatArrays(a, b);
+                return makeBranch(new Object[]{Arrays.copyOf(all, WIDTH), Arrays.copyOfRange(all, WIDTH, total)}, 1);
+            }
+        } else {
+            Branch l = (Branch) left;
+            Branch r = (Branch) right;
+            int last = l.children.length - 1;
+            Branch centre = concatSubTrees(l.children[last], leftHeight - 1, r.children[0], rightHeight - 1);
+            return rebalance(Arrays.copyOf(l.children, last), centre,
+                             Arrays.copyOfRange(r.children, 1, r.children.length), leftHeight);
+        }
+    }
+
+    /**
+     * Combine the children of three adjacent nodes into one or two nodes, redistributing their contents
+     * if necessary
+     *
+     * @param left   the children of the left node (possibly none)
+     * @param centre the centre node, which has the same height as the left and right nodes
+     * @param right  the children of the right node (possibly none)
+     * @param height the height of the three nodes
+     * @return a branch node of height {@code height + 1} having one or two children
+     */
+
+    private static Branch rebalance(Object[] left, Branch centre, Object[] right, int height) {
+        Object[] all = new Object[left.length + centre.children.length + right.length];
+        System.arraycopy(left, 0, all, 0, left.length);
+        System.arraycopy(centre.children, 0, all, left.length, centre.children.length);
+        System.arraycopy(right, 0, all, left.length + centre.children.length, right.length);
+        Object[] nodes = redistribute(all, height - 1);
+        if (nodes.length <= WIDTH) {
+            return makeBranch(new Object[]{makeBranch(nodes, height)}, height + 1);
+        } else {
+            return makeBranch(new Object[]{
+                    makeBranch(Arrays.copyOf(nodes, WIDTH), height),
+                    makeBranch(Arrays.copyOfRange(nodes, WIDTH, nodes.length), height)}, height + 1);
+        }
+    }
+
+    /**
+     * Redistribute the contents of a sequence of adjacent nodes of the same height, if they are using
+     * more nodes than necessary. Starting from the left, the contents of each node that is not full are
+     * shuffled into the following nodes, until the number of nodes is within {@link #EXTRAS} of the minimum.
+     *
+     * @param nodes  the nodes
+     * @param height the height of the nodes
+     * @return the redistributed nodes, or the original nodes if no redistribution is needed
+     */
+
+    private static Object[] redistribute(Object[] nodes, int height) {
+        int n = nodes.length;
+        int[] slots = new int[n];
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            slots[i] = height == 0 ? ((Object[]) nodes[i]).length : ((Branch) nodes[i]).children.length;
+            total += slots[i];
+        }
+        int optimal = (total + WIDTH - 1) / WIDTH;
+        if (n <= optimal + EXTRAS) {
+            return nodes;
+        }
+
+        // Plan the number of slots to be used in each new node
+        int[] plan = slots.clone();
+        int count = n;
+        int i = 0;
+        while (count > optimal + EXTRAS) {
+            while (plan[i] >= WIDTH) {
+                i++;
+            }
+            int remaining = plan[i];
+            while (remaining > 0) {
+                int merged = Math.min(remaining + plan[i + 1], WIDTH);
+                remaining = remaining + plan[i + 1] - merged;
+                plan[i] = merged;
+                i++;
+            }
+            System.arraycopy(plan, i + 1, plan, i, count - i - 1);
+            count--;
+            i--;
+        }
+
+        // Build the new nodes, reusing any original node whose contents are unchanged
+        Object[] result = new Object[count];
+        int source = 0;
+        int sourcePos = 0;
+        for (int k = 0; k < count; k++) {
+            int wanted = plan[k];
+            if (sourcePos == 0 && slots[source] == wanted) {
+                result[k] = nodes[source++];
+                continue;
+            }
+            Object[] items = new Object[wanted];
+            int filled = 0;
+            while (filled < wanted) {
+                Object[] sourceItems = height == 0 ? (Object[]) nodes[source] : ((Branch) nodes[source]).children;
+                int taken = Math.min(wanted - filled, sourceItems.length - sourcePos);
+                System.arraycopy(sourceItems, sourcePos, items, filled, taken);
+                filled += taken;
+                sourcePos += taken;
+                if (sourcePos == sourceItems.length) {
+                    source++;
+                    sourcePos = 0;
+                }
+            }
+            result[k] = height == 0 ? items : makeBranch(items, height);
+        }
+        return result;
+    }
+}
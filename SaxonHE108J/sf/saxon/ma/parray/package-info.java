@@ -6,9 +6,10 @@
  * <p>The first version of this package (released with Saxon 9.9.0.1) took code from
  * the PCollections library at https://github.com/hrldcpr/pcollections. In 9.9.1.1 this has
  * been replaced by a home-brew implementation written entirely by Saxonica.</p>
- * <p>The implementation uses a simple binary tree, in which the left-hand half of the
- * array is in one subtree, and the right-hand half in the other. The tree is kept
- * balanced as necessary. There are two special-case implementations for empty and
- * singleton trees.</p>
+ * <p>Since 10.8 the implementation is a relaxed radix balanced tree (RRB-vector) with a
+ * branching factor of 32, which gives near-constant time for access by index, append,
+ * concatenation, and extraction of sub-lists. It replaces the simple binary tree previously used,
+ * in which the left-hand half of the array was in one subtree and the right-hand half in the other.
+ * There are two special-case implementations for empty and singleton lists.</p>
  */
 package net.sf.saxon.ma.parray;
@@ -45,18 +45,118 @@ public abstract class ImmutableHashTrieMap<K, V>
         return get(0, key);
     }
 
+    /**
+     * Get a transient (mutable) map initially containing the same entries as this map. Entries
+     * can be added to the transient map in place, without copying the path from the root of the
+     * trie on each addition; the result is then frozen as an immutable map by calling
+     * {@link Transient#persistent()}. This map itself is not affected.
+     *
+     * @return a transient map with the same entries as this map
+     * @since 10.8
+     */
+
+    public Transient<K, V> asTransient() {
+        return new Transient<>(this);
+    }
+
+    /**
+     * A mutable map used to populate an {@link ImmutableHashTrieMap} efficiently. Nodes of the trie
+     * created by the transient map are tagged with an edit token owned by the transient map, and
+     * are updated in place by subsequent additions; nodes shared with any other map carry a different
+     * token (or none), and are copied before they are modified. Once {@link #persistent()} has been
+     * called the token is withdrawn, so the nodes can no longer be modified, and no further entries
+     * can be added or removed.
+     * <p>A transient map must be updated by only one thread at a time.</p>
+     *
+     * @param <K> the key type
+     * @param <V> the value type
+     * @since 10.8
+     */
+
+    public static final class Transient<K, V> {
+
+        private ImmutableHashTrieMap<K, V> root;
+        private Object edit = new Object();
+
+        private Transient(ImmutableHashTrieMap<K, V> root) {
+            this.root = root;
+        }
+
+        /**
+         * Add an entry to the map, replacing any existing entry with the same key
+         *
+         * @param key   the key of the new entry
+         * @param value the value associated with the new entry
+         */
+
+        public void put(K key, V value) {
+            checkEditable();
+            root = root.put(0, key, value, edit);
+        }
+
+        /**
+         * Remove an entry from the map, if present
+         *
+         * @param key the key of the entry to be removed
+         */
+
+        public void remove(K key) {
+            checkEditable();
+            root = root.remove(0, key);
+        }
+
+        /**
+         * Get the value associated with a key. This method may be called after the map
+         * has been made persistent
+         *
+         * @param key the key
+         * @return the value associated with the key, or null if the key is not present
+         */
+
+        public V get(K key) {
+            return root.get(0, key);
+        }
+
+        /**
+         * Freeze the contents of the transient map as an immutable map. No further entries can
+         * be added or removed after calling this method; calling it again returns the same map
+         *
+         * @return an immutable map containing the entries that have been added
+         */
+
+        public ImmutableHashTrieMap<K, V> persistent() {
+            edit = null;
+            return root;
+        }
+
+        private void checkEditable() {
+            if (edit == null) {
+                throw new IllegalStateException("Transient map used after it has been made persistent");
+            }
+        }
+    }
+
     /*
     * In the methods below, "shift" denotes how far (in bits) through the
     * hash code we are currently looking. At each level, we add "bits",
     * defined below, to shift.
+    *
+    * The "edit" argument to put() is null for a persistent update, which copies every
+    * node on the path to the modified entry. Otherwise it is the token of the Transient
+    * map performing the update: array nodes carrying the same token were created by that
+    * map and have not been published, so they are modified in place.
     */
 
     private static final int BITS = 5;
     private static final int FANOUT = 1 << BITS;
     private static final int MASK = FANOUT - 1;
 
+    ImmutableHashTrieMap<K, V> put(int shift, K key, V value) {
+        return put(shift, key, value, null);
+    }
+
     abstract ImmutableHashTrieMap<K, V> put(int shift, K key,
-                                            V value);
+                                            V value, Object edit);
 
     abstract ImmutableHashTrieMap<K, V> remove(int shift, K key);
 
@@ -74,7 +174,7 @@ public abstract class ImmutableHashTrieMap<K, V>
             extends ImmutableHashTrieMap<K, V> {
         @Override
         ImmutableHashTrieMap<K, V> put(final int shift, final K key,
-                                       final V value) {
+                                       final V value, final Object edit) {
             return new EntryHashNode<>(key, value);
         }
 
@@ -119,7 +219,7 @@ public abstract class ImmutableHashTrieMap<K, V>
 
         @Override
         ImmutableHashTrieMap<K, V> put(final int shift, final K key,
-                                       final V value) {
+                                       final V value, final Object edit) {
             if (this.key.equals(key)) {
                 // Overwriting this entry
                 return new EntryHashNode<>(key, value);
@@ -131,7 +231,7 @@ public abstract class ImmutableHashTrieMap<K, V>
             // Split this node into an ArrayHashNode with this and the new value
             // as entries.
             return newArrayHashNode(shift, this.key.hashCode(), this,
-                    key.hashCode(), new EntryHashNode<K, V>(key, value));
+                    key.hashCode(), new EntryHashNode<K, V>(key, value), edit);
         }
 
         @Override
@@ -188,14 +288,14 @@ public abstract class ImmutableHashTrieMap<K, V>
 
         @Override
         ImmutableHashTrieMap<K, V> put(final int shift, final K key,
-                                       final V value) {
+                                       final V value, final Object edit) {
             if (entries.head()._1.hashCode() != key.hashCode()) {
                 return newArrayHashNode(shift,
                         entries.head()._1.hashCode(),
                         this,
                         key.hashCode(),
                                         new EntryHashNode<>(
-                                                key, value));
+                                                key, value), edit);
             }
             ImmutableList<Tuple2<K, V>> newList = ImmutableList.empty();
             boolean found = false;
@@ -282,6 +382,7 @@ public abstract class ImmutableHashTrieMap<K, V>
      * @param subNode1 the first node
      * @param hash2 the hash code of the second node
      * @param subNode2 the second node
+     * @param edit the edit token of the transient map creating the node, or null
      * @param <K> the key type
      * @param <V> the value type
      * @return the new node
@@ -292,7 +393,8 @@ public abstract class ImmutableHashTrieMap<K, V>
                          int hash1,
                          ImmutableHashTrieMap<K, V> subNode1,
                          int hash2,
-                         ImmutableHashTrieMap<K, V> subNode2) {
+                         ImmutableHashTrieMap<K, V> subNode2,
+                         Object edit) {
         int curShift = shift;
         int h1 = hash1 >> shift & MASK;
         int h2 = hash2 >> shift & MASK;
@@ -304,9 +406,9 @@ public abstract class ImmutableHashTrieMap<K, V>
             h2 = hash2 >> curShift & MASK;
         }
         ImmutableHashTrieMap<K, V> newNode =
-                new BranchedArrayHashNode<K,V>(h1, subNode1, h2, subNode2);
+                new BranchedArrayHashNode<K,V>(h1, subNode1, h2, subNode2, edit);
         for (Integer bucket : buckets) {
-            newNode = new SingletonArrayHashNode<K,V>(bucket, newNode);
+            newNode = new SingletonArrayHashNode<K,V>(bucket, newNode, edit);
         }
         return newNode;
 
@@ -323,14 +425,17 @@ public abstract class ImmutableHashTrieMap<K, V>
     private static class BranchedArrayHashNode<K, V>
             extends ArrayHashNode<K, V> {
         private final ImmutableHashTrieMap<K, V>[] subnodes;
-        private final int size;
+        private int size;
+        private final Object edit;
 
         public BranchedArrayHashNode(int h1,
                              ImmutableHashTrieMap<K, V> subNode1,
                              int h2,
-                             ImmutableHashTrieMap<K, V> subNode2) {
+                             ImmutableHashTrieMap<K, V> subNode2,
+                             Object edit) {
             assert h1 != h2;
             size = 2;
+            this.edit = edit;
             subnodes = new ImmutableHashTrieMap[FANOUT];
             for (int i = 0; i < FANOUT; i++) {
                 if (i == h1) {
@@ -344,24 +449,32 @@ public abstract class ImmutableHashTrieMap<K, V>
         }
 
         public BranchedArrayHashNode(int size,
-                             final ImmutableHashTrieMap<K, V>[] subnodes) {
+                             final ImmutableHashTrieMap<K, V>[] subnodes,
+                             Object edit) {
             assert subnodes.length == FANOUT;
             this.size = size;
             this.subnodes = subnodes;
+            this.edit = edit;
         }
 
         @Override
         ImmutableHashTrieMap<K, V> put(final int shift, final K key,
-                                       final V value) {
+                                       final V value, final Object edit) {
             final int bucket = getBucket(shift, key);
+            final int newSize =
+                    subnodes[bucket] == EMPTY_NODE ? size + 1 : size;
+            if (edit != null && edit == this.edit) {
+                subnodes[bucket] = subnodes[bucket].put(shift + BITS,
+                        key, value, edit);
+                size = newSize;
+                return this;
+            }
             ImmutableHashTrieMap<K, V>[] newNodes = new ImmutableHashTrieMap[FANOUT];
             System.arraycopy(subnodes, 0, newNodes, 0, FANOUT);
 
-            final int newSize =
-                    newNodes[bucket] == EMPTY_NODE ? size + 1 : size;
             newNodes[bucket] = newNodes[bucket].put(shift + BITS,
-                    key, value);
-            return new BranchedArrayHashNode<K, V>(newSize, newNodes);
+                    key, value, edit);
+            return new BranchedArrayHashNode<K, V>(newSize, newNodes, edit);
         }
 
         @Override
@@ -388,11 +501,11 @@ public abstract class ImmutableHashTrieMap<K, V>
                 ImmutableHashTrieMap<K, V> orphanedEntry =
                         subnodes[orphanedBucket];
                 if (orphanedEntry.isArrayNode()) {
-                    return new SingletonArrayHashNode<>(orphanedBucket, orphanedEntry);
+                    return new SingletonArrayHashNode<>(orphanedBucket, orphanedEntry, null);
                 }
                 return orphanedEntry;
             }
-            return new BranchedArrayHashNode<>(newSize, newNodes);
+            return new BranchedArrayHashNode<>(newSize, newNodes, null);
         }
 
         @Override
@@ -440,25 +553,32 @@ public abstract class ImmutableHashTrieMap<K, V>
     private static class SingletonArrayHashNode<K, V> extends
             ArrayHashNode<K, V> {
         private final int bucket;
-        private final ImmutableHashTrieMap<K, V> subnode;
+        private ImmutableHashTrieMap<K, V> subnode;
+        private final Object edit;
 
         private SingletonArrayHashNode(final int bucket,
-                                       final ImmutableHashTrieMap<K, V> subnode) {
+                                       final ImmutableHashTrieMap<K, V> subnode,
+                                       final Object edit) {
             assert subnode instanceof ArrayHashNode;
             this.bucket = bucket;
             this.subnode = subnode;
+            this.edit = edit;
         }
 
         @Override
         ImmutableHashTrieMap<K, V> put(final int shift, final K key,
-                                       final V value) {
+                                       final V value, final Object edit) {
             final int bucket = getBucket(shift, key);
             if (bucket == this.bucket) {
-                return new SingletonArrayHashNode<>(bucket,
-                                                    subnode.put(shift + BITS, key, value));
+                ImmutableHashTrieMap<K, V> newNode = subnode.put(shift + BITS, key, value, edit);
+                if (edit != null && edit == this.edit) {
+                    subnode = newNode;
+                    return this;
+                }
+                return new SingletonArrayHashNode<>(bucket, newNode, edit);
             }
             return new BranchedArrayHashNode<>(this.bucket, subnode,
-                                               bucket, new EntryHashNode<>(key, value));
+                                               bucket, new EntryHashNode<>(key, value), edit);
         }
 
         @Override
@@ -470,7 +590,7 @@ public abstract class ImmutableHashTrieMap<K, V>
                 if (!newNode.isArrayNode()) {
                     return newNode;
                 }
-                return new SingletonArrayHashNode<>(bucket, newNode);
+                return new SingletonArrayHashNode<>(bucket, newNode, null);
             }
             return this;
         }
@@ -10,7 +10,7 @@ package net.sf.saxon.om;
 import net.sf.saxon.lib.NamespaceConstant;
 
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 /**
@@ -20,11 +20,15 @@ import java.util.concurrent.atomic.AtomicInteger;
  * the URI and the local name to be determined. Some subsystems (notably the Tinytree) use
  * the top 10 bits to represent the prefix, but the NamePool is no longer concerned with
  * managing prefixes, and prefixes do not have global codes.</p>
- * <p>The NamePool has been redesigned in Saxon 9.7 to make use of two Java
- * ConcurrentHashMaps, one from QNames to integers, one from integers to QNames.
- * This gives better scaleability in terms of multithreaded concurrency and in terms
- * of the capacity of the NamePool and retention of performance as the size of
- * the vocabulary increases.</p>
+ * <p>The NamePool has been redesigned in Saxon 9.7 to make use of a Java
+ * ConcurrentHashMap from QNames to integers. This gives better scaleability in terms
+ * of multithreaded concurrency and in terms of the capacity of the NamePool and retention
+ * of performance as the size of the vocabulary increases.</p>
+ * <p>The reverse mapping, from fingerprints to QNames, is held in a segmented array
+ * indexed directly by fingerprint. Segments are allocated on demand and entries are
+ * never removed or overwritten, so a lookup is simply two array accesses, with no locking
+ * and no boxing of the integer fingerprint. Segments and entries are published using volatile
+ * writes, so a thread that sees an entry also sees the fully-constructed QName.</p>
  * <p>Fingerprints in the range 0 to 1023 are reserved for system use, and are allocated as constants
  * mainly to names in the XSLT and XML Schema namespaces: constants representing these names
  * are found in {@link StandardNames}.</p>
@@ -64,14 +68,22 @@ public final class NamePool {
 
     private final ConcurrentHashMap<StructuredQName, Integer> qNameToInteger = new ConcurrentHashMap<>(1000);
 
-    // A map from fingerprints to QNames
+    // A table from fingerprints to QNames, held as an array of segments each containing SEGMENT_SIZE
+    // entries. The table is append-only: entries are written (under the NamePool lock) before the
+    // fingerprint is published via qNameToInteger, and are never changed thereafter. Atomic arrays
+    // are used so that a reader never sees a segment or a QName that is only partly constructed.
 
-    private final ConcurrentHashMap<Integer, StructuredQName> integerToQName = new ConcurrentHashMap<>(1000);
+    private static final int SEGMENT_BITS = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<StructuredQName>> integerToQName =
+            new AtomicReferenceArray<>((MAX_FINGERPRINT >> SEGMENT_BITS) + 1);
 
     // Next fingerprint available to be allocated. Starts at 1024 as low-end fingerprints are statically allocated to system-defined
-    // names
+    // names. Only accessed while holding the NamePool lock.
 
-    private AtomicInteger unique = new AtomicInteger(1024);
+    private int unique = 1024;
 
     // A map containing suggested prefixes for particular URIs
 
@@ -110,7 +122,28 @@ public final class NamePool {
         if ((fp & USER_DEFINED_MASK) == 0) {
             return StandardNames.getUnprefixedQName(fp);
         }
-        return integerToQName.get(fp);
+        AtomicReferenceArray<StructuredQName> segment = integerToQName.get(fp >> SEGMENT_BITS);
+        if (segment != null) {
+            StructuredQName qName = segment.get(fp & SEGMENT_MASK);
+            if (qName != null) {
+                return qName;
+            }
+        }
+        return getUnprefixedQNameSynchronized(fp);
+    }
+
+    /**
+     * Slow path for {@link #getUnprefixedQName(int)}, used if the unsynchronized read of the table
+     * fails to see an entry. This can only happen if the fingerprint was passed to this thread without
+     * any synchronization, or if the fingerprint was never allocated.
+     *
+     * @param fp the fingerprint
+     * @return the corresponding QName, or null if the fingerprint has not been allocated
+     */
+
+    private synchronized StructuredQName getUnprefixedQNameSynchronized(int fp) {
+        AtomicReferenceArray<StructuredQName> segment = integerToQName.get(fp >> SEGMENT_BITS);
+        return segment == null ? null : segment.get(fp & SEGMENT_MASK);
     }
 
     /**
@@ -174,17 +207,19 @@ public final class NamePool {
         if (existing != null) {
             return existing;
         }
-        int next = unique.getAndIncrement();
+        int next = unique;
         if (next > MAX_FINGERPRINT) {
             throw new NamePoolLimitException("Too many distinct names in NamePool");
         }
-        existing = qNameToInteger.putIfAbsent(qName, next);
-        if (existing == null) {
-            integerToQName.put(next, qName);
-            return next;
-        } else {
-            return existing;
+        unique = next + 1;
+        AtomicReferenceArray<StructuredQName> segment = integerToQName.get(next >> SEGMENT_BITS);
+        if (segment == null) {
+            segment = new AtomicReferenceArray<>(SEGMENT_SIZE);
+            integerToQName.set(next >> SEGMENT_BITS, segment);
         }
+        segment.set(next & SEGMENT_MASK, qName);
+        qNameToInteger.put(qName, next);
+        return next;
     }
 
     /**
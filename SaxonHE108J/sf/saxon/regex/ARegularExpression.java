@@ -27,6 +27,8 @@ public class ARegularExpression implements RegularExpression {
     UnicodeString rawPattern;
     String rawFlags;
     REProgram regex;
+    private volatile LazyDFA dfa;
+    private volatile boolean dfaChecked;
 
     /**
      * Create and compile a regular expression
@@ -78,6 +80,22 @@ public class ARegularExpression implements RegularExpression {
         }
     }
 
+    /**
+     * Get the lazy DFA used for operations that do not need to report captured groups,
+     * constructing it on first use
+     *
+     * @return the lazy DFA, or null if the regular expression must be matched using the
+     * backtracking matcher (for example, because it contains back-references)
+     */
+
+    private LazyDFA getLazyDFA() {
+        if (!dfaChecked) {
+            dfa = LazyDFA.make(regex);
+            dfaChecked = true;
+        }
+        return dfa;
+    }
+
     /**
      * Determine whether the regular expression matches a given string in its entirety
      *
@@ -89,6 +107,10 @@ public class ARegularExpression implements RegularExpression {
         if (StringValue.isEmpty(input) && regex.isNullable()) {
             return true;
         }
+        LazyDFA dfa = getLazyDFA();
+        if (dfa != null) {
+            return dfa.matches(UnicodeString.makeUnicodeString(input));
+        }
         REMatcher matcher = new REMatcher(regex);
         return matcher.anchoredMatch(UnicodeString.makeUnicodeString(input));
     }
@@ -101,6 +123,10 @@ public class ARegularExpression implements RegularExpression {
      */
     @Override
     public boolean containsMatch(CharSequence input) {
+        LazyDFA dfa = getLazyDFA();
+        if (dfa != null) {
+            return dfa.containsMatch(UnicodeString.makeUnicodeString(input));
+        }
         REMatcher matcher = new REMatcher(regex);
         return matcher.match(UnicodeString.makeUnicodeString(input), 0);
     }
@@ -113,6 +139,10 @@ public class ARegularExpression implements RegularExpression {
      */
     @Override
     public AtomicIterator tokenize(CharSequence input) {
+        LazyDFA dfa = getLazyDFA();
+        if (dfa != null) {
+            return new DFATokenIterator(UnicodeString.makeUnicodeString(input), dfa);
+        }
         return new ATokenIterator(UnicodeString.makeUnicodeString(input), new REMatcher(regex));
     }
 
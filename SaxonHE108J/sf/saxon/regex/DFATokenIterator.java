@@ -0,0 +1,57 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.regex;
+
+import net.sf.saxon.tree.iter.AtomicIterator;
+import net.sf.saxon.value.StringValue;
+
+/**
+ * A DFATokenIterator is an iterator over the strings that result from tokenizing a string using a regular
+ * expression, where the matches are found using a {@link LazyDFA}. The results are the same as those of
+ * an {@link ATokenIterator}.
+ *
+ * @since 10.8
+ */
+
+public class DFATokenIterator implements AtomicIterator<StringValue> {
+
+    private UnicodeString input;
+    private LazyDFA dfa;
+    private int[] match = new int[2];
+    private int prevEnd = 0;
+
+    /**
+     * Construct a DFATokenIterator.
+     *
+     * @param input the string to be tokenized
+     * @param dfa   the automaton used to find the separators
+     */
+
+    public DFATokenIterator(UnicodeString input, LazyDFA dfa) {
+        this.input = input;
+        this.dfa = dfa;
+    }
+
+    @Override
+    public StringValue next() {
+        if (prevEnd < 0) {
+            return null;
+        }
+
+        UnicodeString current;
+        if (dfa.find(input, prevEnd, match)) {
+            current = input.uSubstring(prevEnd, match[0]);
+            prevEnd = match[1];
+        } else {
+            current = input.uSubstring(prevEnd, input.uLength());
+            prevEnd = -1;
+        }
+        return StringValue.makeStringValue(current);
+    }
+
+}
@@ -7,13 +7,19 @@
 
 package net.sf.saxon.regex;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * An implementation of UnicodeString optimized for strings that contain
  * no characters outside the Latin-1 range (i.e. no characters whose codepoints exceed 255).
+ * <p>The characters are held one byte per character. A LatinString may be a view of part of a
+ * larger byte array, for example a segment of the compact text buffer of a TinyTree.</p>
  */
 public final class LatinString extends UnicodeString {
 
-    private byte[] chars;
+    private final byte[] chars;
+    private final int offset;
+    private final int length;
 
     public final static LatinString SINGLE_SPACE = new LatinString(new byte[]{(byte) 0x20});
 
@@ -27,23 +33,83 @@ public final class LatinString extends UnicodeString {
         for (int i=0; i<len; i++) {
             chars[i] = (byte) (src.charAt(i) & 0xff);
         }
-
+        offset = 0;
+        length = len;
     }
 
     private LatinString(byte[] chars) {
+        this(chars, 0, chars.length);
+    }
+
+    private LatinString(byte[] chars, int offset, int length) {
         this.chars = chars;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Make a LatinString that is a view of part of a byte array, without copying the bytes
+     *
+     * @param bytes  the byte array, in which each byte holds the codepoint of one character. The caller
+     *               must ensure that the relevant part of the array is not subsequently modified.
+     * @param offset the position in the array of the first character
+     * @param length the number of characters
+     * @return a LatinString holding the specified characters
+     * @since 10.8
+     */
+
+    public static LatinString view(byte[] bytes, int offset, int length) {
+        return new LatinString(bytes, offset, length);
     }
 
     @Override
     public LatinString uSubstring(int beginIndex, int endIndex) {
-        byte[] s = new byte[endIndex - beginIndex];
-        System.arraycopy(chars, beginIndex, s, 0, endIndex - beginIndex);
-        return new LatinString(s);
+        if (beginIndex < 0 || beginIndex > endIndex || endIndex > length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int len = endIndex - beginIndex;
+        if (len < chars.length / 4) {
+            // Don't let a short substring keep a much larger array (such as a text buffer segment) alive
+            byte[] copy = new byte[len];
+            System.arraycopy(chars, offset + beginIndex, copy, 0, len);
+            return new LatinString(copy);
+        }
+        return new LatinString(chars, offset + beginIndex, len);
+    }
+
+    /**
+     * Copy characters to a byte array
+     *
+     * @param start    the position of the first character to be copied
+     * @param end      the position after the last character to be copied
+     * @param dest     the destination array
+     * @param destPos  the position in the destination array of the first character
+     * @since 10.8
+     */
+
+    public void getBytes(int start, int end, byte[] dest, int destPos) {
+        System.arraycopy(chars, offset + start, dest, destPos, end - start);
+    }
+
+    /**
+     * Copy characters to a char array
+     *
+     * @param start    the position of the first character to be copied
+     * @param end      the position after the last character to be copied
+     * @param dest     the destination array
+     * @param destPos  the position in the destination array of the first character
+     * @since 10.8
+     */
+
+    public void getChars(int start, int end, char[] dest, int destPos) {
+        for (int i = offset + start, j = destPos; i < offset + end; i++, j++) {
+            dest[j] = (char) (chars[i] & 0xff);
+        }
     }
 
     @Override
     public int uCharAt(int pos) {
-        return chars[pos] & 0xff;
+        return chars[offset + pos] & 0xff;
     }
 
     @Override
@@ -51,9 +117,9 @@ public final class LatinString extends UnicodeString {
         if (search > 255) {
             return -1;
         } else {
-            for (int i = pos; i < chars.length; i++) {
+            for (int i = offset + pos; i < offset + length; i++) {
                 if ((chars[i] & 0xff) == search) {
-                    return i;
+                    return i - offset;
                 }
             }
             return -1;
@@ -62,20 +128,16 @@ public final class LatinString extends UnicodeString {
 
     @Override
     public int uLength() {
-        return chars.length;
+        return length;
     }
 
     @Override
     public boolean isEnd(int pos) {
-        return pos >= chars.length;
+        return pos >= length;
     }
 
     public String toString() {
-        char[] expanded = new char[chars.length];
-        for (int i=0; i<chars.length; i++) {
-            expanded[i] = (char)(chars[i] & 0xff);
-        }
-        return new String(expanded);
+        return new String(chars, offset, length, StandardCharsets.ISO_8859_1);
     }
 
     /**
@@ -86,7 +148,7 @@ public final class LatinString extends UnicodeString {
      */
     @Override
     public int length() {
-        return chars.length;
+        return length;
     }
 
     /**
@@ -105,7 +167,7 @@ public final class LatinString extends UnicodeString {
      */
     @Override
     public char charAt(int index) {
-        return (char)(chars[index] & 0xff);
+        return (char)(chars[offset + index] & 0xff);
     }
 
     /**
@@ -0,0 +1,659 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * An alternative to the backtracking {@link REMatcher} for regular expressions that contain no
+ * back-references. The compiled program is translated into a nondeterministic automaton, which is
+ * executed as a deterministic automaton whose states are constructed lazily, as the input requires them.
+ * Matching therefore takes time linear in the length of the input, however the regular expression is written.
+ * <p>The automaton is used to decide whether a string matches the regular expression in its entirety
+ * or contains a match, and to find successive matches when tokenizing a string. A match found by this class
+ * is the same as the match found by {@link REMatcher}: the match that starts leftmost, and among the matches
+ * starting there, the one that is preferred according to the greediness of quantifiers and the order of
+ * alternatives. The end of the match is found by a forward scan; the start is then found by a backward scan
+ * using an automaton for the reversed regular expression. Captured groups are not reported, so
+ * <code>fn:replace()</code> and <code>xsl:analyze-string</code> continue to use the backtracking matcher.</p>
+ * <p>A <code>LazyDFA</code> is safe for use by multiple threads. The number of states retained for each
+ * automaton is bounded; once the limit is reached, further states are constructed afresh each time they are
+ * needed, which keeps the time linear but loses the benefit of caching.</p>
+ *
+ * @since 10.8
+ */
+
+public final class LazyDFA {
+
+    // instruction codes of the nondeterministic automaton
+    private final static byte CHAR = 0;
+    private final static byte SPLIT = 1;
+    private final static byte JUMP = 2;
+    private final static byte BOL = 3;
+    private final static byte EOL = 4;
+    private final static byte MATCH = 5;
+
+    // classification of the character on either side of a position in the input
+    private final static int NONE = 0;
+    private final static int NEWLINE = 1;
+    private final static int OTHER = 2;
+
+    private final static int MAX_INSTRUCTIONS = 10000;
+    private final static int MAX_CACHED_STATES = 4096;
+    private final static int DIRECT_TRANSITIONS = 256;
+
+    private final boolean multiLine;
+    private final Program forwardProgram;
+    private final Program reverseProgram;
+    private volatile Automaton searcher;
+    private volatile Automaton firstMatchFinder;
+    private volatile Automaton startFinder;
+
+    private LazyDFA(boolean multiLine, Program forwardProgram, Program reverseProgram) {
+        this.multiLine = multiLine;
+        this.forwardProgram = forwardProgram;
+        this.reverseProgram = reverseProgram;
+    }
+
+    /**
+     * Make a lazy DFA for a compiled regular expression
+     *
+     * @param program the compiled regular expression
+     * @return the lazy DFA, or null if the regular expression cannot be matched using a DFA, for example
+     * because it contains back-references, or because counted repetitions make the automaton too large
+     */
+
+    public static LazyDFA make(REProgram program) {
+        if ((program.optimizationFlags & REProgram.OPT_HASBACKREFS) != 0) {
+            return null;
+        }
+        boolean caseBlind = program.flags.isCaseIndependent();
+        try {
+            Program forward = new ProgramBuilder(false, caseBlind).build(program.operation);
+            Program reverse = new ProgramBuilder(true, caseBlind).build(program.operation);
+            return new LazyDFA(program.flags.isMultiLine(), forward, reverse);
+        } catch (NotSupportedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Determine whether the regular expression matches a given string in its entirety
+     *
+     * @param input the string to match
+     * @return true if the string matches
+     */
+
+    public boolean matches(UnicodeString input) {
+        Automaton dfa = getSearcher();
+        State state = dfa.getInitialState(false, NONE);
+        int len = input.uLength();
+        for (int p = 0; p < len; p++) {
+            state = dfa.next(state, input.uCharAt(p));
+            if (state.dead) {
+                return false;
+            }
+        }
+        return state.matchesBefore(NONE);
+    }
+
+    /**
+     * Determine whether a given string contains a match for the regular expression
+     *
+     * @param input the string to search
+     * @return true if some substring of the input matches
+     */
+
+    public boolean containsMatch(UnicodeString input) {
+        Automaton dfa = getSearcher();
+        State state = dfa.getInitialState(true, NONE);
+        int len = input.uLength();
+        for (int p = 0; p < len; p++) {
+            int c = input.uCharAt(p);
+            if (state.matchesBefore(classify(c))) {
+                return true;
+            }
+            state = dfa.next(state, c);
+        }
+        return state.matchesBefore(NONE);
+    }
+
+    /**
+     * Find the first match for the regular expression starting at or after a given position
+     *
+     * @param input  the string to search
+     * @param from   the position at which the search starts
+     * @param result an array of length two, which is set to the start and end positions of the match
+     *               if one is found
+     * @return true if a match was found
+     */
+
+    public boolean find(UnicodeString input, int from, int[] result) {
+        int len = input.uLength();
+
+        // Scan forwards to find the end of the match
+        Automaton dfa = getFirstMatchFinder();
+        State state = dfa.getInitialState(true, from == 0 ? NONE : classify(input.uCharAt(from - 1)));
+        int end = -1;
+        for (int p = from; ; p++) {
+            if (p == len) {
+                if (state.matchesBefore(NONE)) {
+                    end = p;
+                }
+                break;
+            }
+            int c = input.uCharAt(p);
+            if (state.matchesBefore(classify(c))) {
+                end = p;
+            }
+            state = dfa.next(state, c);
+            if (state.dead) {
+                break;
+            }
+        }
+        if (end < 0) {
+            return false;
+        }
+
+        // Scan backwards from the end of the match, using the reversed regular expression, to find
+        // the leftmost position from which the match can start
+        dfa = getStartFinder();
+        state = dfa.getInitialState(false, end == len ? NONE : classify(input.uCharAt(end)));
+        int start = end;
+        for (int p = end; ; p--) {
+            if (state.matchesBefore(p == 0 ? NONE : classify(input.uCharAt(p - 1)))) {
+                start = p;
+            }
+            if (p == from) {
+                break;
+            }
+            state = dfa.next(state, input.uCharAt(p - 1));
+            if (state.dead) {
+                break;
+            }
+        }
+        result[0] = start;
+        result[1] = end;
+        return true;
+    }
+
+    private Automaton getSearcher() {
+        Automaton dfa = searcher;
+        if (dfa == null) {
+            searcher = dfa = new Automaton(forwardProgram, false, false);
+        }
+        return dfa;
+    }
+
+    private Automaton getFirstMatchFinder() {
+        Automaton dfa = firstMatchFinder;
+        if (dfa == null) {
+            firstMatchFinder = dfa = new Automaton(forwardProgram, false, true);
+        }
+        return dfa;
+    }
+
+    private Automaton getStartFinder() {
+        Automaton dfa = startFinder;
+        if (dfa == null) {
+            startFinder = dfa = new Automaton(reverseProgram, true, false);
+        }
+        return dfa;
+    }
+
+    private static int classify(int c) {
+        return c == '\n' ? NEWLINE : OTHER;
+    }
+
+    /**
+     * A nondeterministic automaton, held as a set of parallel arrays indexed by instruction number.
+     * A CHAR instruction consumes a character satisfying its predicate and continues with the next
+     * instruction; SPLIT continues with both of its targets, preferring the first; JUMP continues with
+     * its target; BOL and EOL continue with the next instruction if the current position is at the start
+     * or end of a line; MATCH indicates that a match has been found.
+     */
+
+    private static class Program {
+        byte[] codes;
+        int[] targets;
+        int[] alternatives;
+        IntPredicate[] predicates;
+        int size;
+    }
+
+    /**
+     * Translates the operations of a compiled regular expression into a nondeterministic automaton
+     */
+
+    private static class ProgramBuilder {
+
+        private final boolean reverse;
+        private final boolean caseBlind;
+        private final Program program = new Program();
+
+        ProgramBuilder(boolean reverse, boolean caseBlind) {
+            this.reverse = reverse;
+            this.caseBlind = caseBlind;
+            program.codes = new byte[64];
+            program.targets = new int[64];
+            program.alternatives = new int[64];
+            program.predicates = new IntPredicate[64];
+        }
+
+        Program build(Operation op) {
+            compile(op);
+            emit(MATCH, null);
+            return program;
+        }
+
+        private int emit(byte code, IntPredicate predicate) {
+            int pc = program.size;
+            if (pc >= MAX_INSTRUCTIONS) {
+                throw new NotSupportedException();
+            }
+            if (pc == program.codes.length) {
+                int newSize = pc * 2;
+                program.codes = Arrays.copyOf(program.codes, newSize);
+                program.targets = Arrays.copyOf(program.targets, newSize);
+                program.alternatives = Arrays.copyOf(program.alternatives, newSize);
+                program.predicates = Arrays.copyOf(program.predicates, newSize);
+            }
+            program.codes[pc] = code;
+            program.predicates[pc] = predicate;
+            program.size++;
+            return pc;
+        }
+
+        private void setSplit(int pc, int preferred, int other) {
+            program.targets[pc] = preferred;
+            program.alternatives[pc] = other;
+        }
+
+        private void compile(Operation op) {
+            if (op instanceof Operation.OpAtom) {
+                UnicodeString atom = ((Operation.OpAtom) op).getAtom();
+                int len = atom.uLength();
+                for (int i = 0; i < len; i++) {
+                    emit(CHAR, makeCharacterPredicate(atom.uCharAt(reverse ? len - 1 - i : i)));
+                }
+            } else if (op instanceof Operation.OpCharClass) {
+                emit(CHAR, ((Operation.OpCharClass) op).getPredicate());
+            } else if (op instanceof Operation.OpSequence) {
+                List<Operation> operations = ((Operation.OpSequence) op).getOperations();
+                int n = operations.size();
+                for (int i = 0; i < n; i++) {
+                    compile(operations.get(reverse ? n - 1 - i : i));
+                }
+            } else if (op instanceof Operation.OpChoice) {
+                List<Operation> branches = ((Operation.OpChoice) op).branches;
+                List<Integer> jumps = new ArrayList<>(branches.size());
+                for (int i = 0; i < branches.size(); i++) {
+                    if (i < branches.size() - 1) {
+                        int split = emit(SPLIT, null);
+                        compile(branches.get(i));
+                        jumps.add(emit(JUMP, null));
+                        setSplit(split, split + 1, program.size);
+                    } else {
+                        compile(branches.get(i));
+                    }
+                }
+                for (int jump : jumps) {
+                    program.targets[jump] = program.size;
+                }
+            } else if (op instanceof Operation.OpRepeat) {
+                Operation.OpRepeat repeat = (Operation.OpRepeat) op;
+                for (int i = 0; i < repeat.min; i++) {
+                    compile(repeat.op);
+                }
+                if (repeat.max == Integer.MAX_VALUE) {
+                    int split = emit(SPLIT, null);
+                    compile(repeat.op);
+                    int jump = emit(JUMP, null);
+                    program.targets[jump] = split;
+                    makeOptional(split, program.size, repeat.greedy);
+                } else {
+                    List<Integer> splits = new ArrayList<>();
+                    for (int i = repeat.min; i < repeat.max; i++) {
+                        splits.add(emit(SPLIT, null));
+                        compile(repeat.op);
+                    }
+                    for (int split : splits) {
+                        makeOptional(split, program.size, repeat.greedy);
+                    }
+                }
+            } else if (op instanceof Operation.OpCapture) {
+                compile(((Operation.OpCapture) op).childOp);
+            } else if (op instanceof Operation.OpBOL) {
+                emit(BOL, null);
+            } else if (op instanceof Operation.OpEOL) {
+                emit(EOL, null);
+            } else if (op instanceof Operation.OpNothing || op instanceof Operation.OpEndProgram) {
+                // no action: the end of the program is handled by the MATCH instruction
+            } else {
+                throw new NotSupportedException();
+            }
+        }
+
+        private void makeOptional(int split, int exit, boolean greedy) {
+            if (greedy) {
+                setSplit(split, split + 1, exit);
+            } else {
+                setSplit(split, exit, split + 1);
+            }
+        }
+
+        private IntPredicate makeCharacterPredicate(int ch) {
+            if (caseBlind) {
+                int[] variants = CaseVariants.getCaseVariants(ch);
+                if (variants.length > 0) {
+                    return c -> {
+                        if (c == ch) {
+                            return true;
+                        }
+                        for (int v : variants) {
+                            if (c == v) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    };
+                }
+            }
+            return c -> c == ch;
+        }
+    }
+
+    /**
+     * A deterministic automaton whose states are constructed on demand. Each state represents the
+     * ordered list of threads of the nondeterministic automaton that are alive at a position in the
+     * input, together with the classification of the character preceding that position (in the
+     * direction of the scan), which is needed to evaluate the "^" and "$" anchors.
+     */
+
+    private class Automaton {
+
+        private final Program program;
+        private final boolean reverse;
+        private final boolean leftmostFirst;
+        private final ConcurrentHashMap<State, State> states = new ConcurrentHashMap<>();
+        private final State deadState;
+
+        /**
+         * Create an automaton
+         *
+         * @param program       the nondeterministic automaton to be executed
+         * @param reverse       true if the program is for the reversed regular expression, and the
+         *                      input is scanned backwards
+         * @param leftmostFirst true if the automaton is used to find the end of the preferred match: threads
+         *                      of lower priority than a thread that has found a match are abandoned, and no
+         *                      new match is started once a match has been found
+         */
+
+        Automaton(Program program, boolean reverse, boolean leftmostFirst) {
+            this.program = program;
+            this.reverse = reverse;
+            this.leftmostFirst = leftmostFirst;
+            this.deadState = new State(new int[0], NONE, false, 0, true);
+        }
+
+        /**
+         * Get the state at the start of a scan
+         *
+         * @param floating true if a match may start at any position; false if it must start
+         *                 at the first position scanned
+         * @param behind   the classification of the character preceding the start position
+         * @return the initial state
+         */
+
+        State getInitialState(boolean floating, int behind) {
+            return getState(floating ? new int[0] : new int[]{0}, behind, floating);
+        }
+
+        State next(State state, int c) {
+            if (state.dead) {
+                return state;
+            }
+            State next = state.getTransition(c);
+            if (next == null) {
+                next = computeTransition(state, c);
+                if (state.cached) {
+                    state.setTransition(c, next);
+                }
+            }
+            return next;
+        }
+
+        private State getState(int[] threads, int behind, boolean floating) {
+            if (threads.length == 0 && !floating) {
+                return deadState;
+            }
+            int matchMask = 0;
+            for (int ahead = NONE; ahead <= OTHER; ahead++) {
+                IntList closure = closure(threads, floating, behind, ahead);
+                for (int i = 0; i < closure.size; i++) {
+                    if (program.codes[closure.values[i]] == MATCH) {
+                        matchMask |= 1 << ahead;
+                        break;
+                    }
+                }
+            }
+            State state = new State(threads, behind, floating, matchMask, false);
+            if (states.size() >= MAX_CACHED_STATES) {
+                // The cache is full: a state that is not already cached is used once and discarded,
+                // so its transitions are not retained
+                State existing = states.get(state);
+                return existing == null ? state : existing;
+            }
+            state.cached = true;
+            State existing = states.putIfAbsent(state, state);
+            return existing == null ? state : existing;
+        }
+
+        private State computeTransition(State state, int c) {
+            IntList closure = closure(state.threads, state.floating, state.behind, classify(c));
+            boolean[] seen = new boolean[program.size];
+            IntList next = new IntList();
+            boolean matched = false;
+            for (int i = 0; i < closure.size; i++) {
+                int pc = closure.values[i];
+                if (program.codes[pc] == MATCH) {
+                    matched = true;
+                    if (leftmostFirst) {
+                        break;
+                    }
+                } else if (program.predicates[pc].test(c) && !seen[pc + 1]) {
+                    seen[pc + 1] = true;
+                    next.add(pc + 1);
+                }
+            }
+            boolean floating = state.floating && !(leftmostFirst && matched);
+            return getState(next.toArray(), classify(c), floating);
+        }
+
+        /**
+         * Compute the instructions reachable from a set of threads without consuming a character
+         *
+         * @param threads  the instructions at which the threads are positioned, in priority order
+         * @param floating true if a new thread is to be started at this position, with lowest priority
+         * @param behind   the classification of the preceding character in the direction of the scan
+         * @param ahead    the classification of the following character in the direction of the scan
+         * @return the CHAR and MATCH instructions reached, in priority order
+         */
+
+        private IntList closure(int[] threads, boolean floating, int behind, int ahead) {
+            int left = reverse ? ahead : behind;
+            int right = reverse ? behind : ahead;
+            boolean atLineStart = left == NONE || (multiLine && left == NEWLINE && right != NONE);
+            boolean atLineEnd = right == NONE || (multiLine && right == NEWLINE);
+            boolean[] visited = new boolean[program.size];
+            IntList result = new IntList();
+            IntList stack = new IntList();
+            int roots = threads.length + (floating ? 1 : 0);
+            for (int r = 0; r < roots; r++) {
+                stack.add(r < threads.length ? threads[r] : 0);
+                while (stack.size > 0) {
+                    int pc = stack.values[--stack.size];
+                    if (visited[pc]) {
+                        continue;
+                    }
+                    visited[pc] = true;
+                    switch (program.codes[pc]) {
+                        case JUMP:
+                            stack.add(program.targets[pc]);
+                            break;
+                        case SPLIT:
+                            stack.add(program.alternatives[pc]);
+                            stack.add(program.targets[pc]);
+                            break;
+                        case BOL:
+                            if (atLineStart) {
+                                stack.add(pc + 1);
+                            }
+                            break;
+                        case EOL:
+                            if (atLineEnd) {
+                                stack.add(pc + 1);
+                            }
+                            break;
+                        default:
+                            result.add(pc);
+                            break;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A state of the deterministic automaton. The transitions from a cached state are computed when first
+     * needed, and retained. The tables holding the transitions are allocated when the first transition is
+     * retained, and the table for characters below 256 grows only as far as the highest character seen.
+     */
+
+    private static final class State {
+        final int[] threads;
+        final int behind;
+        final boolean floating;
+        final int matchMask;
+        final boolean dead;
+        final int hash;
+        boolean cached;
+        private volatile State[] directTransitions;
+        private volatile ConcurrentHashMap<Integer, State> otherTransitions;
+
+        State(int[] threads, int behind, boolean floating, int matchMask, boolean dead) {
+            this.threads = threads;
+            this.behind = behind;
+            this.floating = floating;
+            this.matchMask = matchMask;
+            this.dead = dead;
+            this.hash = (Arrays.hashCode(threads) * 31 + behind) * 2 + (floating ? 1 : 0);
+        }
+
+        /**
+         * Get the retained transition for a character
+         *
+         * @param c the character
+         * @return the next state, or null if the transition has not been retained
+         */
+
+        State getTransition(int c) {
+            if (c < DIRECT_TRANSITIONS) {
+                State[] table = directTransitions;
+                return table != null && c < table.length ? table[c] : null;
+            } else {
+                ConcurrentHashMap<Integer, State> map = otherTransitions;
+                return map == null ? null : map.get(c);
+            }
+        }
+
+        /**
+         * Retain a transition. Readers are not synchronized: a reader that does not see a transition
+         * recorded by another thread simply computes it again.
+         *
+         * @param c    the character
+         * @param next the next state
+         */
+
+        synchronized void setTransition(int c, State next) {
+            if (c < DIRECT_TRANSITIONS) {
+                State[] table = directTransitions;
+                if (table == null || c >= table.length) {
+                    int size = Math.min(DIRECT_TRANSITIONS, Math.max(16, Integer.highestOneBit(c) << 1));
+                    table = table == null ? new State[size] : Arrays.copyOf(table, size);
+                    table[c] = next;
+                    directTransitions = table;
+                } else {
+                    table[c] = next;
+                }
+            } else {
+                ConcurrentHashMap<Integer, State> map = otherTransitions;
+                if (map == null) {
+                    otherTransitions = map = new ConcurrentHashMap<>();
+                }
+                map.put(c, next);
+            }
+        }
+
+        /**
+         * Ask whether a match ends at the current position
+         *
+         * @param ahead the classification of the next character in the direction of the scan
+         * @return true if a match ends here
+         */
+
+        boolean matchesBefore(int ahead) {
+            return (matchMask & (1 << ahead)) != 0;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof State)) {
+                return false;
+            }
+            State other = (State) obj;
+            return hash == other.hash && behind == other.behind && floating == other.floating &&
+                    Arrays.equals(threads, other.threads);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class IntList {
+        int[] values = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private static class NotSupportedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        NotSupportedException() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.regex;
+
+import java.util.Arrays;
+
+/**
+ * Searches a {@link UnicodeString} for occurrences of a literal string, using the Boyer-Moore-Horspool
+ * algorithm. This is used to find the prefix of a regular expression, or a literal substring that any match
+ * must contain, without running the backtracking matcher at every position of the input. The shift table is
+ * indexed by the low-order eight bits of each codepoint, so characters that share the same low-order bits
+ * share the smallest of their shifts.
+ *
+ * @since 10.8
+ */
+
+public final class LiteralFinder {
+
+    private final int[] literal;
+    private final int[] shift = new int[256];
+
+    /**
+     * Create a finder for a literal string
+     *
+     * @param literal the string to be searched for, which must not be empty
+     */
+
+    public LiteralFinder(UnicodeString literal) {
+        int len = literal.uLength();
+        this.literal = new int[len];
+        for (int i = 0; i < len; i++) {
+            this.literal[i] = literal.uCharAt(i);
+        }
+        Arrays.fill(shift, len);
+        for (int i = 0; i < len - 1; i++) {
+            shift[this.literal[i] & 0xff] = len - 1 - i;
+        }
+    }
+
+    /**
+     * Get the length of the literal
+     *
+     * @return the number of codepoints in the literal
+     */
+
+    public int getLength() {
+        return literal.length;
+    }
+
+    /**
+     * Find the first occurrence of the literal in a string, starting at or after a given position
+     *
+     * @param search the string to be searched
+     * @param from   the position at which the search starts
+     * @return the position of the first occurrence of the literal at or after <code>from</code>,
+     * or -1 if there is none
+     */
+
+    public int indexIn(UnicodeString search, int from) {
+        int len = literal.length;
+        if (len == 1) {
+            return from < 0 ? -1 : search.uIndexOf(literal[0], from);
+        }
+        int last = len - 1;
+        int limit = search.uLength() - len;
+        int i = Math.max(from, 0);
+        while (i <= limit) {
+            int c = search.uCharAt(i + last);
+            if (c == literal[last]) {
+                int j = last - 1;
+                while (j >= 0 && search.uCharAt(i + j) == literal[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += shift[c & 0xff];
+        }
+        return -1;
+    }
+}
@@ -172,6 +172,8 @@ public class REMatcher {
 
     Operation operation;
     boolean anchoredMatch;
+    private UnicodeString preconditionSearch;     // The string in which literal preconditions have been located
+    private int[] preconditionPositions;          // Positions at which literal preconditions were found
 
 
     /**
@@ -410,6 +412,23 @@ public class REMatcher {
 
         // Can we optimize the search by looking for a prefix string?
         if (program.prefix == null) {
+            if (program.anchorFinder != null) {
+                // no prefix known; but the match must contain a literal string at a known offset
+                if (!checkPreconditions(i)) {
+                    return false;
+                }
+                LiteralFinder finder = program.anchorFinder;
+                int offset = program.anchorOffset;
+                int found;
+                while ((found = finder.indexIn(search, i + offset)) >= 0) {
+                    i = found - offset;
+                    if (matchAt(i, false)) {
+                        return true;
+                    }
+                    i++;
+                }
+                return false;
+            }
             if (program.initialCharClass != null) {
                 // no prefix known; but the first character must match a predicate
                 IntPredicate pred = program.initialCharClass;
@@ -436,6 +455,16 @@ public class REMatcher {
             return false;
         } else {
             // Prefix-anchored matching is possible
+            if (program.prefixFinder != null) {
+                LiteralFinder finder = program.prefixFinder;
+                while ((i = finder.indexIn(search, i)) >= 0) {
+                    if (matchAt(i, false)) {
+                        return true;
+                    }
+                    i++;
+                }
+                return false;
+            }
             UnicodeString prefix = program.prefix;
             int prefixLength = prefix.uLength();
             boolean ignoreCase = program.flags.isCaseIndependent();
@@ -477,7 +506,9 @@ public class REMatcher {
      */
 
     private boolean checkPreconditions(int start) {
-        for (RegexPrecondition condition : program.preconditions) {
+        List<RegexPrecondition> preconditions = program.preconditions;
+        for (int k = 0; k < preconditions.size(); k++) {
+            RegexPrecondition condition = preconditions.get(k);
             if (condition.fixedPosition != -1) {
                 boolean match = condition.operation.iterateMatches(this, condition.fixedPosition).hasNext();
                 if (!match) {
@@ -489,11 +520,14 @@ public class REMatcher {
                     i = condition.minPosition;
                 }
                 boolean found = false;
-                for (; !search.isEnd(i); i++) {
-                    if ((condition.fixedPosition == -1 || condition.fixedPosition == i) &&
-                        condition.operation.iterateMatches(this, i).hasNext()) {
-                        found = true;
-                        break;
+                if (condition.literalFinder != null) {
+                    found = findLiteralPrecondition(k, condition.literalFinder, i);
+                } else {
+                    for (; !search.isEnd(i); i++) {
+                        if (condition.operation.iterateMatches(this, i).hasNext()) {
+                            found = true;
+                            break;
+                        }
                     }
                 }
                 if (!found) {
@@ -504,6 +538,32 @@ public class REMatcher {
         return true;
     }
 
+    /**
+     * Search for a literal string that must be present if the regular expression is to match.
+     * The position at which the literal was found is remembered, so that successive searches of
+     * the same input (for example, when finding all the matches in a string) do not repeatedly
+     * scan the text preceding it.
+     *
+     * @param k      the index of the precondition
+     * @param finder the finder for the literal string
+     * @param from   the position at which the search starts
+     * @return true if the literal is present at or after the given position
+     */
+
+    private boolean findLiteralPrecondition(int k, LiteralFinder finder, int from) {
+        if (preconditionSearch != search) {
+            preconditionSearch = search;
+            preconditionPositions = new int[program.preconditions.size()];
+            Arrays.fill(preconditionPositions, -1);
+        }
+        int found = preconditionPositions[k];
+        if (found < from) {
+            found = finder.indexIn(search, from);
+            preconditionPositions[k] = found;
+        }
+        return found >= 0;
+    }
+
     /**
      * Matches the current regular expression program against a String.
      *
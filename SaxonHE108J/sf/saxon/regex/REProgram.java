@@ -46,6 +46,9 @@ public class REProgram {
     REFlags flags;
     UnicodeString prefix;              // Prefix string optimization
     IntPredicate initialCharClass;
+    LiteralFinder prefixFinder;        // Finds occurrences of the prefix, if the match is case-sensitive
+    LiteralFinder anchorFinder;        // Finds a literal at a fixed offset from the start of every match
+    int anchorOffset = -1;             // The offset of the anchor literal from the start of the match
     List<RegexPrecondition> preconditions = new java.util.ArrayList<RegexPrecondition>();
     int minimumLength = 0;
     int fixedLength = -1;
@@ -95,10 +98,13 @@ public class REProgram {
                 optimizationFlags |= REProgram.OPT_HASBOL;
             } else if (first instanceof Operation.OpAtom) {
                 prefix = ((Operation.OpAtom)first).getAtom();
+                if (!flags.isCaseIndependent() && prefix.uLength() > 0) {
+                    prefixFinder = new LiteralFinder(prefix);
+                }
             } else if (first instanceof Operation.OpCharClass) {
                 initialCharClass = ((Operation.OpCharClass)first).getPredicate();
             }
-            addPrecondition(operation, -1, 0);
+            addPrecondition(operation, -1, 0, 0);
         }
 
         minimumLength = operation.getMinimumMatchLength();
@@ -114,9 +120,30 @@ public class REProgram {
         return backtrackingLimit;
     }
 
-    private void addPrecondition(Operation op, int fixedPosition, int minPosition) {
+    /**
+     * Add preconditions for the operation to the list of preconditions
+     *
+     * @param op            the operation
+     * @param fixedPosition the position in the input at which the operation must match, or -1 if not known
+     * @param minPosition   the minimum position in the input at which the operation can match
+     * @param fixedOffset   the offset of the operation from the start of the match, or -1 if not known
+     */
+
+    private void addPrecondition(Operation op, int fixedPosition, int minPosition, int fixedOffset) {
         if (op instanceof Operation.OpAtom || op instanceof Operation.OpCharClass) {
-            preconditions.add(new RegexPrecondition(op, fixedPosition, minPosition));
+            RegexPrecondition condition = new RegexPrecondition(op, fixedPosition, minPosition);
+            if (op instanceof Operation.OpAtom && !flags.isCaseIndependent()) {
+                UnicodeString atom = ((Operation.OpAtom) op).getAtom();
+                if (atom.uLength() > 0) {
+                    condition.literalFinder = new LiteralFinder(atom);
+                    // prefer the longest literal at a known offset as the anchor for the search
+                    if (fixedOffset > 0 && (anchorFinder == null || atom.uLength() > anchorFinder.getLength())) {
+                        anchorFinder = condition.literalFinder;
+                        anchorOffset = fixedOffset;
+                    }
+                }
+            }
+            preconditions.add(condition);
         } else if (op instanceof Operation.OpRepeat && ((Operation.OpRepeat) op).min >= 1) {
             Operation.OpRepeat parent = (Operation.OpRepeat) op;
             Operation child = parent.op;
@@ -128,23 +155,30 @@ public class REProgram {
                     preconditions.add(new RegexPrecondition(parent2, fixedPosition, minPosition));
                 }
             } else {
-                addPrecondition(child, fixedPosition, minPosition);
+                addPrecondition(child, fixedPosition, minPosition, fixedOffset);
             }
         } else if (op instanceof Operation.OpCapture) {
-            addPrecondition(((Operation.OpCapture)op).childOp, fixedPosition, minPosition);
+            addPrecondition(((Operation.OpCapture)op).childOp, fixedPosition, minPosition, fixedOffset);
         } else if (op instanceof Operation.OpSequence) {
             int fp = fixedPosition;
             int mp = minPosition;
+            int fo = fixedOffset;
             for (Operation o : ((Operation.OpSequence)op).getOperations()) {
                 if (o instanceof Operation.OpBOL) {
                     fp = 0;
                 }
-                addPrecondition(o, fp, mp);
-                if (fp != -1 && o.getMatchLength() != -1) {
-                    fp += o.getMatchLength();
+                addPrecondition(o, fp, mp, fo);
+                int len = o.getMatchLength();
+                if (fp != -1 && len != -1) {
+                    fp += len;
                 } else {
                     fp = -1;
                 }
+                if (fo != -1 && len != -1) {
+                    fo += len;
+                } else {
+                    fo = -1;
+                }
                 mp += o.getMinimumMatchLength();
             }
         }
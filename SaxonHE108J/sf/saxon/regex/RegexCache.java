@@ -0,0 +1,222 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.regex;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, thread-safe cache of compiled regular expressions, held by the
+ * {@link net.sf.saxon.Configuration}. The cache is used when a regular expression is not known
+ * statically (for example when the regex argument of <code>matches()</code> is computed at run-time),
+ * so that a pattern that is used repeatedly is compiled only once.
+ * <p>Entries are keyed on the regular expression, the flags, the host language, and the regex engine
+ * in use. When the cache is full, entries that have not been used since the previous eviction sweep
+ * are discarded (a "second chance" approximation to least-recently-used).</p>
+ * <p>The cache maintains counts of hits and misses, which can be used to assess its effectiveness.</p>
+ */
+
+public class RegexCache {
+
+    private final ConcurrentHashMap<Key, Entry> map = new ConcurrentHashMap<>();
+    private volatile int maximumSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a regex cache
+     *
+     * @param maximumSize the maximum number of compiled regular expressions to be retained.
+     *                    Zero means that no caching takes place.
+     */
+
+    public RegexCache(int maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Set the maximum number of compiled regular expressions to be retained
+     *
+     * @param maximumSize the maximum size. Zero means that no caching takes place.
+     */
+
+    public void setMaximumSize(int maximumSize) {
+        this.maximumSize = maximumSize;
+        if (map.size() > maximumSize) {
+            clear();
+        }
+    }
+
+    /**
+     * Get the maximum number of compiled regular expressions to be retained
+     *
+     * @return the maximum size
+     */
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Get a compiled regular expression from the cache
+     *
+     * @param regex        the regular expression as a string
+     * @param flags        the flags
+     * @param hostLanguage the host language
+     * @param engine       a code identifying the regex engine in use
+     * @return the compiled regular expression if present in the cache, or null otherwise
+     */
+
+    public RegularExpression get(String regex, String flags, String hostLanguage, String engine) {
+        Entry entry = map.get(new Key(regex, flags, hostLanguage, engine));
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        entry.used = true;
+        return entry.regex;
+    }
+
+    /**
+     * Add a compiled regular expression to the cache
+     *
+     * @param regex        the regular expression as a string
+     * @param flags        the flags
+     * @param hostLanguage the host language
+     * @param engine       a code identifying the regex engine in use
+     * @param compiled     the compiled regular expression
+     */
+
+    public void put(String regex, String flags, String hostLanguage, String engine, RegularExpression compiled) {
+        int max = maximumSize;
+        if (max <= 0) {
+            return;
+        }
+        if (map.size() >= max) {
+            evict(max);
+        }
+        map.putIfAbsent(new Key(regex, flags, hostLanguage, engine), new Entry(compiled));
+    }
+
+    /**
+     * Remove entries to make space for a new entry. Entries that have been used since the last sweep
+     * are given a second chance (their usage flag is cleared); others are removed, until the cache
+     * has space for at least one more entry.
+     *
+     * @param max the maximum size of the cache
+     */
+
+    private void evict(int max) {
+        for (int pass = 0; pass < 2 && map.size() >= max; pass++) {
+            Iterator<Entry> iter = map.values().iterator();
+            while (iter.hasNext() && map.size() >= max) {
+                Entry entry = iter.next();
+                if (entry.used) {
+                    entry.used = false;
+                } else {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all entries from the cache. This is necessary, for example, if configuration properties
+     * affecting regex compilation are changed.
+     */
+
+    public void clear() {
+        map.clear();
+    }
+
+    /**
+     * Get the number of compiled regular expressions currently held in the cache
+     *
+     * @return the number of entries
+     */
+
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Get the number of requests that were satisfied from the cache
+     *
+     * @return the number of cache hits
+     */
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of requests that were not satisfied from the cache
+     *
+     * @return the number of cache misses
+     */
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the proportion of requests that were satisfied from the cache
+     *
+     * @return the hit rate, as a number in the range 0 to 1; zero if there have been no requests
+     */
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    private static class Key {
+
+        private final String regex;
+        private final String flags;
+        private final String hostLanguage;
+        private final String engine;
+        private final int hash;
+
+        Key(String regex, String flags, String hostLanguage, String engine) {
+            this.regex = regex;
+            this.flags = flags;
+            this.hostLanguage = hostLanguage;
+            this.engine = engine;
+            this.hash = ((regex.hashCode() * 31 + flags.hashCode()) * 31 + hostLanguage.hashCode()) * 31 + engine.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && regex.equals(other.regex) && flags.equals(other.flags) &&
+                    hostLanguage.equals(other.hostLanguage) && engine.equals(other.engine);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class Entry {
+
+        private final RegularExpression regex;
+        private volatile boolean used = false;
+
+        Entry(RegularExpression regex) {
+            this.regex = regex;
+        }
+    }
+}
@@ -8,13 +8,17 @@
 package net.sf.saxon.regex;
 
 /**
- * A precondition that must be true if a regular expression is to match
+ * A precondition that must be true if a regular expression is to match.
+ * <p>If the operation is a literal string that is matched case-sensitively, the field
+ * <code>literalFinder</code> may be set, allowing the input to be searched for the literal
+ * without testing the operation at every position.</p>
  */
 public class RegexPrecondition {
 
     public Operation operation;
     public int fixedPosition;
     public int minPosition;
+    public LiteralFinder literalFinder;
 
     /**
      * Create a precondition for a regular expression to be true
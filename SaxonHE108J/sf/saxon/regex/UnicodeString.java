@@ -8,6 +8,7 @@
 package net.sf.saxon.regex;
 
 import net.sf.saxon.expr.sort.AtomicMatchKey;
+import net.sf.saxon.tree.tiny.CharSlice;
 import net.sf.saxon.tree.util.FastStringBuffer;
 import net.sf.saxon.value.AtomicValue;
 import net.sf.saxon.value.Base64BinaryValue;
@@ -37,7 +38,10 @@ public abstract class UnicodeString implements CharSequence, Comparable<UnicodeS
             return EmptyString.THE_INSTANCE;
         }
         int width = getMaxWidth(in);
-        if (width == 1) {
+        if (in instanceof CharSlice && width <= 2) {
+            // a view of a character array, typically the text buffer of a tree: wrap it without copying
+            return new BMPString(in);
+        } else if (width == 1) {
             return new LatinString(in);
         } else if (width == 2) {
             return new BMPString(in);
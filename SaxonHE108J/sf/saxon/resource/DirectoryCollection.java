@@ -27,10 +27,16 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This class represents a resource collection containing all, or selected, files within a filestore
  * directory.
+ * <p>If multi-threading is enabled in the configuration, XML files in the directory are parsed on the
+ * worker pool of the configuration ahead of their being consumed, so that parsing overlaps with processing
+ * of the documents already delivered. The documents are delivered in directory order unless the
+ * query parameter <code>stable=no</code> is present, in which case they are delivered in the order in
+ * which parsing completes.</p>
  */
 
 public class DirectoryCollection extends AbstractResourceCollection {
@@ -38,6 +44,12 @@ public class DirectoryCollection extends AbstractResourceCollection {
     private File dirFile;
     private SpaceStrippingRule whitespaceRules;
 
+    /**
+     * The number of resources read ahead for each worker thread when parsing in parallel
+     */
+
+    private final static int PREFETCH_PER_THREAD = 2;
+
     /**
      * Create a directory collection
      * @param collectionURI the collection URI
@@ -92,7 +104,7 @@ public class DirectoryCollection extends AbstractResourceCollection {
         final boolean metadata = metadataParam != null && metadataParam;
         Iterator<String> resourceURIs = getResourceURIs(context);
 
-        return new MappingJavaIterator<>(resourceURIs,
+        Iterator<Resource> resources = new MappingJavaIterator<>(resourceURIs,
              in -> {
                  try {
                      InputDetails details = getInputDetails(in);
@@ -122,6 +134,15 @@ public class DirectoryCollection extends AbstractResourceCollection {
                      }
                  }
              });
+
+        Configuration config = context.getConfiguration();
+        if (config.isMultithreadingEnabled()) {
+            ForkJoinPool pool = config.getWorkerPool();
+            boolean ordered = !Boolean.FALSE.equals(params.getStable());
+            return new PrefetchingResourceIterator(
+                    resources, context, pool, pool.getParallelism() * PREFETCH_PER_THREAD, ordered);
+        }
+        return resources;
     }
 
     /**
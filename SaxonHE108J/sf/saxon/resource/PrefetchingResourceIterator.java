@@ -0,0 +1,218 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.resource;
+
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.Resource;
+import net.sf.saxon.trans.UncheckedXPathException;
+import net.sf.saxon.trans.XPathException;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+
+/**
+ * An iterator over the resources in a collection that parses XML resources in advance of their being
+ * consumed. Up to a fixed number of resources are read ahead from the underlying iterator, and each
+ * {@link XmlResource} is parsed by a task running on the supplied executor, so that I/O and parsing overlap
+ * with processing of the resources already delivered.
+ * <p>If the iterator is ordered, resources are delivered in the order of the underlying iterator. Otherwise
+ * they are delivered in the order in which parsing completes.</p>
+ * <p>Parsing errors are handled as they would be when parsing on demand: if the collection is to fail
+ * on errors, the resource is replaced by a {@link FailedResource} which reports the error when its
+ * content is requested; otherwise it is omitted from the iteration (after a warning, if requested).</p>
+ * <p>The consumer may itself be running in the ForkJoinPool that executes the parsing tasks: waits for
+ * a task to complete are therefore made using {@link ForkJoinPool#managedBlock}.</p>
+ */
+
+public class PrefetchingResourceIterator implements Iterator<Resource>, Closeable {
+
+    private final Iterator<Resource> base;
+    private final XPathContext context;
+    private final int window;
+    private final boolean ordered;
+    private final ArrayDeque<Future<Resource>> pending = new ArrayDeque<>();
+    private final Executor executor;
+    private final CompletionService<Resource> completionService;  // used only if unordered
+    private int inFlight = 0;
+    private Resource nextResource = null;
+
+    /**
+     * Create a prefetching iterator
+     *
+     * @param base     the underlying iterator, which delivers resources that have not yet been parsed
+     * @param context  the dynamic context, used for reporting warnings
+     * @param executor the executor on which parsing tasks are run
+     * @param window   the maximum number of resources that are read ahead of the consumer
+     * @param ordered  true if resources are to be delivered in the order of the underlying iterator
+     */
+
+    public PrefetchingResourceIterator(Iterator<Resource> base, XPathContext context,
+                                       Executor executor, int window, boolean ordered) {
+        this.base = base;
+        this.context = context;
+        this.window = Math.max(1, window);
+        this.ordered = ordered;
+        this.executor = executor;
+        // In ordered mode the results are taken from the pending queue, so a completion service
+        // would retain every completed result (and its parsed document) until the iterator is discarded
+        this.completionService = ordered ? null : new ExecutorCompletionService<>(executor);
+    }
+
+    private void fill() {
+        while (inFlight < window && base.hasNext()) {
+            Resource resource;
+            try {
+                resource = base.next();
+            } catch (NoSuchElementException e) {
+                // the underlying iterator may discard trailing resources that could not be read
+                break;
+            }
+            if (ordered) {
+                FutureTask<Resource> task = new FutureTask<>(() -> prefetch(resource));
+                executor.execute(task);
+                pending.addLast(task);
+            } else {
+                pending.addLast(completionService.submit(() -> prefetch(resource)));
+            }
+            inFlight++;
+        }
+    }
+
+    /**
+     * Parse a resource. Errors are handled according to the on-error policy of the collection, which
+     * the resource applies itself: if the policy is to fail, the resource is replaced by one that reports
+     * the error when its content is requested; otherwise the resource is dropped, so that it is not parsed
+     * a second time when the consumer asks for its content.
+     *
+     * @param resource the resource to be parsed
+     * @return the parsed resource, or null if it could not be parsed and is to be skipped
+     */
+
+    private Resource prefetch(Resource resource) {
+        if (resource instanceof XmlResource) {
+            try {
+                if (resource.getItem(context) == null) {
+                    return null;
+                }
+            } catch (XPathException e) {
+                return new FailedResource(resource.getResourceURI(), e);
+            }
+        }
+        return resource;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextResource == null) {
+            fill();
+            if (inFlight == 0) {
+                return false;
+            }
+            nextResource = take();
+        }
+        return true;
+    }
+
+    @Override
+    public Resource next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Resource result = nextResource;
+        nextResource = null;
+        return result;
+    }
+
+    /**
+     * Wait for the next parsing task to complete. The wait is managed by the ForkJoinPool, so that if the
+     * consumer is itself running in the pool (for example in a prong of xsl:fork), the pool can activate
+     * another worker to run the parsing tasks rather than starving.
+     *
+     * @return the result of the task, which is null if the resource is to be skipped
+     */
+
+    private Resource take() {
+        try {
+            TaskBlocker blocker = new TaskBlocker();
+            ForkJoinPool.managedBlock(blocker);
+            inFlight--;
+            return blocker.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedXPathException(new XPathException("collection(): interrupted while reading resources", e));
+        } catch (ExecutionException e) {
+            throw new UncheckedXPathException(XPathException.makeXPathException(
+                    e.getCause() instanceof Exception ? (Exception) e.getCause() : e));
+        }
+    }
+
+    /**
+     * Waits for the next task to be delivered: in ordered mode, the oldest task, and otherwise
+     * whichever task completes first
+     */
+
+    private class TaskBlocker implements ForkJoinPool.ManagedBlocker {
+
+        Future<Resource> future;
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (ordered) {
+                if (future == null) {
+                    future = pending.removeFirst();
+                }
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // reported when the result is retrieved
+                }
+            } else if (future == null) {
+                future = completionService.take();
+                pending.remove(future);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            if (future != null) {
+                return future.isDone();
+            }
+            if (ordered) {
+                if (pending.getFirst().isDone()) {
+                    future = pending.removeFirst();
+                    return true;
+                }
+                return false;
+            }
+            future = completionService.poll();
+            if (future != null) {
+                pending.remove(future);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Cancel any parsing tasks that have not yet started. This is called if the consumer abandons
+     * the iteration before reaching the end.
+     */
+
+    @Override
+    public void close() {
+        for (Future<Resource> future : pending) {
+            future.cancel(false);
+        }
+        pending.clear();
+        nextResource = null;
+    }
+}
@@ -16,6 +16,8 @@ import net.sf.saxon.lib.Validation;
 import net.sf.saxon.om.*;
 import net.sf.saxon.query.XQueryExpression;
 import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.tiny.TinyTree;
+import net.sf.saxon.tree.tiny.TinyTreeSnapshot;
 import net.sf.saxon.value.Whitespace;
 
 import javax.xml.transform.Source;
@@ -373,6 +375,51 @@ public class DocumentBuilder {
         return build(new StreamSource(file));
     }
 
+    /**
+     * Save a document in a compact binary form, from which it can subsequently be reloaded
+     * using {@link #buildFromSnapshot(File)} much faster than by re-parsing the original XML.
+     *
+     * @param document the document to be saved. This must be the root of a tree built
+     *                 using the TinyTree model, and it must not be schema-validated.
+     * @param file     the file to which the snapshot is to be written
+     * @throws SaxonApiException if the document cannot be saved, or if an I/O error occurs
+     * @since 10.8
+     */
+
+    public void saveSnapshot(XdmNode document, File file) throws SaxonApiException {
+        TreeInfo tree = document.getUnderlyingNode().getTreeInfo();
+        if (!(tree instanceof TinyTree) || !document.getUnderlyingNode().equals(tree.getRootNode())) {
+            throw new SaxonApiException("Only the root node of a TinyTree can be saved as a snapshot");
+        }
+        try {
+            TinyTreeSnapshot.save((TinyTree) tree, file);
+        } catch (XPathException e) {
+            throw new SaxonApiException(e);
+        }
+    }
+
+    /**
+     * Load a document from a snapshot previously written using {@link #saveSnapshot(XdmNode, File)}.
+     * The document is reconstructed directly from the saved tree, without parsing. The file may have
+     * been written by a different Processor, or in a different Java VM.
+     * <p>The options set on this {@code DocumentBuilder} (such as whitespace stripping, line numbering,
+     * and validation) are not applied: the document is reconstructed exactly as it was saved.</p>
+     *
+     * @param file the file containing the snapshot
+     * @return the root node of the reconstructed document
+     * @throws SaxonApiException if the file cannot be read or is not a valid snapshot
+     * @since 10.8
+     */
+
+    public XdmNode buildFromSnapshot(File file) throws SaxonApiException {
+        try {
+            TinyTree tree = TinyTreeSnapshot.load(config, file);
+            return new XdmNode(tree.getRootNode());
+        } catch (XPathException e) {
+            throw new SaxonApiException(e);
+        }
+    }
+
     /**
      * Get an {@link org.xml.sax.ContentHandler} that may be used to build the document programmatically.
      *
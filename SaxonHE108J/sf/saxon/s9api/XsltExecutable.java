@@ -10,17 +10,23 @@ package net.sf.saxon.s9api;
 import net.sf.saxon.Configuration;
 import net.sf.saxon.PreparedStylesheet;
 import net.sf.saxon.event.Receiver;
+import net.sf.saxon.expr.PackageData;
 import net.sf.saxon.expr.instruct.GlobalParam;
 import net.sf.saxon.om.StructuredQName;
 import net.sf.saxon.style.StylesheetPackage;
 import net.sf.saxon.trace.ExpressionPresenter;
+import net.sf.saxon.om.TreeInfo;
 import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.trans.XsltController;
 import net.sf.saxon.value.SequenceType;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * An XsltExecutable represents the compiled form of a stylesheet.
@@ -262,6 +268,34 @@ public class XsltExecutable {
     }
 
 
+    /**
+     * Build the indexes for the keys (<code>xsl:key</code> declarations) in this stylesheet for a particular
+     * document, in the background. The indexes are built on the worker pool of the Configuration,
+     * one task per key, and are then shared by all transformations using this stylesheet and this
+     * document. This is useful for a document that is held in memory and used by many transformations,
+     * as it avoids the delay that would otherwise occur when the first transformation calls the
+     * <code>key()</code> function.
+     * <p>Keys whose definitions depend on global variables or parameters cannot be shared across
+     * transformations, and are not built by this method.</p>
+     *
+     * @param document the document to be indexed. This should be a document node.
+     * @return a future that completes when all the indexes have been built. If construction of any index
+     * fails, the future completes exceptionally; the error is also reported if the index is subsequently
+     * used by a transformation.
+     * @since 10.8
+     */
+
+    public CompletableFuture<Void> prebuildKeyIndexes(XdmNode document) {
+        TreeInfo doc = document.getUnderlyingNode().getTreeInfo();
+        XsltController controller = new XsltController(processor.getUnderlyingConfiguration(), preparedStylesheet);
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (PackageData pack : preparedStylesheet.getPackages()) {
+            tasks.add(pack.getKeyManager().buildIndexesAsynchronously(
+                    doc, controller, processor.getUnderlyingConfiguration().getWorkerPool()));
+        }
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]));
+    }
+
     /**
      * Get the underlying implementation object representing the compiled stylesheet. This provides
      * an escape hatch into lower-level APIs. The object returned by this method may change from release
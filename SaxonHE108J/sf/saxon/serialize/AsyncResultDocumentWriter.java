@@ -0,0 +1,162 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.serialize;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.trans.SaxonErrorCode;
+import net.sf.saxon.trans.XPathException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Writes secondary result documents (produced by <code>xsl:result-document</code>) to files asynchronously.
+ * Each result document is serialized into memory on the transformation thread; when it is complete, the
+ * serialized bytes are handed to a background thread which writes them to the file, so that the transformation
+ * does not wait for the filesystem.
+ * <p>The number of completed documents awaiting writing is limited by
+ * {@link Configuration#getAsyncResultDocumentQueueSize()}; when the limit is reached, the transformation thread
+ * waits until a document has been written. Failures to write a file are retained, and are reported by
+ * {@link #complete()} at the end of the transformation.</p>
+ *
+ * @since 10.8
+ */
+
+public class AsyncResultDocumentWriter {
+
+    private final Executor pool;
+    private final int capacity;
+    private final Semaphore permits;
+    private final Queue<XPathException> errors = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Create an asynchronous writer
+     *
+     * @param pool     the pool of threads used to write files
+     * @param capacity the maximum number of completed documents held in memory awaiting writing
+     */
+
+    public AsyncResultDocumentWriter(Executor pool, int capacity) {
+        this.pool = pool;
+        this.capacity = capacity;
+        this.permits = new Semaphore(capacity);
+    }
+
+    /**
+     * Make an output stream that holds the serialized content of a result document in memory. The content
+     * is written to the file when {@link #submit} is called.
+     *
+     * @param systemId the URI of the output file, which must use the "file" scheme
+     * @return an output stream to be used as the destination of the serializer
+     */
+
+    public PendingDocument makePendingDocument(String systemId) {
+        return new PendingDocument(systemId);
+    }
+
+    /**
+     * Hand a completed result document to a background thread to be written. If the maximum number of
+     * documents are already awaiting writing, the method waits until one of them has been written.
+     *
+     * @param document the completed document
+     * @throws XPathException if the thread is interrupted while waiting
+     */
+
+    public void submit(PendingDocument document) throws XPathException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException("Interrupted while waiting to write " + document.systemId, e);
+        }
+        try {
+            pool.execute(() -> {
+                try {
+                    document.write();
+                } catch (XPathException e) {
+                    errors.add(e);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the pool has been shut down: write the document on this thread instead
+            try {
+                document.write();
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Wait until all submitted documents have been written, ignoring any failures
+     */
+
+    public void awaitCompletion() {
+        permits.acquireUninterruptibly(capacity);
+        permits.release(capacity);
+    }
+
+    /**
+     * Wait until all submitted documents have been written, and report the first failure, if any
+     *
+     * @throws XPathException if writing any of the documents failed
+     */
+
+    public void complete() throws XPathException {
+        awaitCompletion();
+        XPathException err = errors.poll();
+        errors.clear();
+        if (err != null) {
+            throw err;
+        }
+    }
+
+    /**
+     * The serialized content of a result document, held in memory until it is written
+     */
+
+    public static class PendingDocument extends ByteArrayOutputStream {
+
+        private final String systemId;
+
+        private PendingDocument(String systemId) {
+            super(8192);
+            this.systemId = systemId;
+        }
+
+        private void write() throws XPathException {
+            try {
+                File file = ExpandedStreamResult.makeWritableOutputFile(systemId);
+                try (OutputStream out = new FileOutputStream(file)) {
+                    out.write(buf, 0, count);
+                }
+            } catch (XPathException e) {
+                throw e;
+            } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+                XPathException err = new XPathException("Failed to write result document " + systemId + ": " + e.getMessage(), e);
+                err.setErrorCode(SaxonErrorCode.SXRD0004);
+                throw err;
+            } finally {
+                // release the memory as soon as the document has been written
+                buf = new byte[0];
+                count = 0;
+            }
+        }
+    }
+}
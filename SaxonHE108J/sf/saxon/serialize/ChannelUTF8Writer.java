@@ -0,0 +1,361 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.serialize;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A UTF-8 writer that encodes characters directly into a reusable direct {@link ByteBuffer}, and
+ * writes the buffer to a {@link WritableByteChannel} when it is full. This avoids the intermediate
+ * copy made by a stream-based writer when the destination is a file.
+ * <p>In addition to the methods of {@link Writer}, the class provides {@link #writeEscaped}, which
+ * encodes a run of characters while replacing the XML special characters by their entity references,
+ * allowing the {@link XMLEmitter} to escape ordinary text in a single call.</p>
+ *
+ * @since 10.8
+ */
+
+public final class ChannelUTF8Writer extends Writer {
+
+    private final static int MIN_BUF_LEN = 32;
+    private final static int DEFAULT_BUF_LEN = 65536;
+
+    /**
+     * The replacement text for those ASCII characters that the serializer escapes using a fixed
+     * entity or character reference, indexed by character; null for all other characters
+     */
+
+    private final static byte[][] escapes = new byte[128][];
+
+    static {
+        escapes['<'] = ascii("&lt;");
+        escapes['>'] = ascii("&gt;");
+        escapes['&'] = ascii("&amp;");
+        escapes['\"'] = ascii("&#34;");
+        escapes['\''] = ascii("&#39;");
+        escapes['\n'] = ascii("&#xA;");
+        escapes['\r'] = ascii("&#xD;");
+        escapes['\t'] = ascii("&#x9;");
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private WritableByteChannel channel;
+    private ByteBuffer buffer;
+    private final int limit;
+    private int pos = 0;
+
+    /**
+     * Pending first half of a surrogate pair, written in a previous call, or zero
+     */
+
+    private int surrogate = 0;
+
+    /**
+     * Create a writer with a default buffer size
+     *
+     * @param channel the channel to which the encoded bytes are written
+     */
+
+    public ChannelUTF8Writer(WritableByteChannel channel) {
+        this(channel, DEFAULT_BUF_LEN);
+    }
+
+    /**
+     * Create a writer
+     *
+     * @param channel      the channel to which the encoded bytes are written
+     * @param bufferLength the size of the buffer, in bytes
+     */
+
+    public ChannelUTF8Writer(WritableByteChannel channel, int bufferLength) {
+        if (bufferLength < MIN_BUF_LEN) {
+            bufferLength = MIN_BUF_LEN;
+        }
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferLength);
+        // leave room for the longest replacement string, or a 4-byte character
+        this.limit = bufferLength - 8;
+    }
+
+    /**
+     * Ask whether a ChannelUTF8Writer can be used to write to a given output stream. This is the case
+     * when the stream is a {@link FileOutputStream} (and not a subclass, which might override its
+     * write methods), in which case the writer uses the stream's file channel.
+     *
+     * @param stream the output stream
+     * @return true if the stream has a channel that the writer can use
+     */
+
+    public static boolean isApplicable(OutputStream stream) {
+        return stream != null && stream.getClass() == FileOutputStream.class;
+    }
+
+    /**
+     * Make a writer that writes to the file channel of a {@link FileOutputStream}. Bytes are written
+     * at the current position of the stream, and closing the writer closes the stream.
+     *
+     * @param stream the output stream, for which {@link #isApplicable} must return true
+     * @return a writer that encodes characters as UTF-8 and writes them to the stream
+     */
+
+    public static ChannelUTF8Writer forFileOutputStream(OutputStream stream) {
+        return new ChannelUTF8Writer(((FileOutputStream) stream).getChannel());
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (surrogate != 0) {
+            c = convertSurrogate(c);
+        } else if (c >= UTF8Writer.SURR1_FIRST && c <= UTF8Writer.SURR2_LAST) {
+            if (c > UTF8Writer.SURR1_LAST) {
+                throwIllegal(c);
+            }
+            surrogate = c;
+            return;
+        }
+        if (pos >= limit) {
+            flushBuffer();
+        }
+        encode(c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        final int end = off + len;
+        while (off < end) {
+            if (surrogate != 0) {
+                write(cbuf[off++]);
+                continue;
+            }
+            int p = pos;
+            final ByteBuffer buf = buffer;
+            final int lim = Math.min(limit, p + (end - off));
+            // tight loop for ASCII characters
+            char c = 0;
+            while (p < lim && (c = cbuf[off]) < 0x80) {
+                buf.put(p++, (byte) c);
+                off++;
+            }
+            pos = p;
+            if (p >= limit) {
+                flushBuffer();
+            } else if (off < end) {
+                if (c >= UTF8Writer.SURR1_FIRST && c <= UTF8Writer.SURR2_LAST) {
+                    write(c);
+                } else {
+                    encode(c);
+                }
+                off++;
+            }
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        final int end = off + len;
+        while (off < end) {
+            if (surrogate != 0) {
+                write(str.charAt(off++));
+                continue;
+            }
+            int p = pos;
+            final ByteBuffer buf = buffer;
+            final int lim = Math.min(limit, p + (end - off));
+            // tight loop for ASCII characters
+            char c = 0;
+            while (p < lim && (c = str.charAt(off)) < 0x80) {
+                buf.put(p++, (byte) c);
+                off++;
+            }
+            pos = p;
+            if (p >= limit) {
+                flushBuffer();
+            } else if (off < end) {
+                if (c >= UTF8Writer.SURR1_FIRST && c <= UTF8Writer.SURR2_LAST) {
+                    write(c);
+                } else {
+                    encode(c);
+                }
+                off++;
+            }
+        }
+    }
+
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        String s = String.valueOf(csq);
+        write(s, 0, s.length());
+        return this;
+    }
+
+    /**
+     * Write a sequence of characters, replacing special characters by entity or character references.
+     * A character is special if it is an ASCII character marked as special in the supplied table. Special
+     * characters for which a fixed replacement exists (such as <code>&lt;</code> and <code>&amp;</code>) are
+     * replaced; on reaching any other special character, or any character that the caller must handle
+     * itself (a C1 control character, LINE SEPARATOR, or an incomplete surrogate pair), the method returns
+     * without writing it. All other characters are written as UTF-8.
+     *
+     * @param chars        the characters to be written
+     * @param start        the position of the first character to be written
+     * @param end          the position after the last character to be written
+     * @param specialChars a table indexed by character code (for characters below 127), indicating which
+     *                     characters are to be escaped
+     * @return the position of the first character not written; equal to <code>end</code> if all characters
+     * were written
+     * @throws IOException if writing to the channel fails
+     */
+
+    public int writeEscaped(CharSequence chars, int start, int end, boolean[] specialChars) throws IOException {
+        if (surrogate != 0) {
+            return start;
+        }
+        int i = start;
+        int p = pos;
+        final ByteBuffer buf = buffer;
+        while (i < end) {
+            if (p >= limit) {
+                pos = p;
+                flushBuffer();
+                p = 0;
+            }
+            final char c = chars.charAt(i);
+            if (c < 127) {
+                if (specialChars[c]) {
+                    byte[] rep = escapes[c];
+                    if (rep == null) {
+                        break;
+                    }
+                    for (byte b : rep) {
+                        buf.put(p++, b);
+                    }
+                } else {
+                    buf.put(p++, (byte) c);
+                }
+            } else if (c < 160 || c == 0x2028) {
+                break;
+            } else if (c < 0x800) {
+                buf.put(p++, (byte) (0xc0 | (c >> 6)));
+                buf.put(p++, (byte) (0x80 | (c & 0x3f)));
+            } else if (c < UTF8Writer.SURR1_FIRST || c > UTF8Writer.SURR2_LAST) {
+                buf.put(p++, (byte) (0xe0 | (c >> 12)));
+                buf.put(p++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+                buf.put(p++, (byte) (0x80 | (c & 0x3f)));
+            } else {
+                char d;
+                if (c > UTF8Writer.SURR1_LAST || i + 1 >= end ||
+                        (d = chars.charAt(i + 1)) < UTF8Writer.SURR2_FIRST || d > UTF8Writer.SURR2_LAST) {
+                    break;
+                }
+                int cp = 0x10000 + ((c - UTF8Writer.SURR1_FIRST) << 10) + (d - UTF8Writer.SURR2_FIRST);
+                buf.put(p++, (byte) (0xf0 | (cp >> 18)));
+                buf.put(p++, (byte) (0x80 | ((cp >> 12) & 0x3f)));
+                buf.put(p++, (byte) (0x80 | ((cp >> 6) & 0x3f)));
+                buf.put(p++, (byte) (0x80 | (cp & 0x3f)));
+                i++;
+            }
+            i++;
+        }
+        pos = p;
+        return i;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            flushBuffer();
+            channel.close();
+            channel = null;
+            buffer = null;
+            if (surrogate != 0) {
+                int code = surrogate;
+                surrogate = 0;
+                throwIllegal(code);
+            }
+        }
+    }
+
+    /**
+     * Encode a character that is not part of a surrogate pair, or a combined surrogate pair.
+     * The caller must ensure that there is room in the buffer.
+     *
+     * @param c the Unicode code point
+     * @throws IOException if the code point is out of range
+     */
+
+    private void encode(int c) throws IOException {
+        final ByteBuffer buf = buffer;
+        int p = pos;
+        if (c < 0x80) {
+            buf.put(p++, (byte) c);
+        } else if (c < 0x800) {
+            buf.put(p++, (byte) (0xc0 | (c >> 6)));
+            buf.put(p++, (byte) (0x80 | (c & 0x3f)));
+        } else if (c <= 0xFFFF) {
+            buf.put(p++, (byte) (0xe0 | (c >> 12)));
+            buf.put(p++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+            buf.put(p++, (byte) (0x80 | (c & 0x3f)));
+        } else {
+            if (c > 0x10FFFF) {
+                throwIllegal(c);
+            }
+            buf.put(p++, (byte) (0xf0 | (c >> 18)));
+            buf.put(p++, (byte) (0x80 | ((c >> 12) & 0x3f)));
+            buf.put(p++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+            buf.put(p++, (byte) (0x80 | (c & 0x3f)));
+        }
+        pos = p;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0 && buffer != null) {
+            buffer.clear();
+            buffer.limit(pos);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+            pos = 0;
+        }
+    }
+
+    private int convertSurrogate(int secondPart) throws IOException {
+        int firstPart = surrogate;
+        surrogate = 0;
+        if (secondPart < UTF8Writer.SURR2_FIRST || secondPart > UTF8Writer.SURR2_LAST) {
+            throw new IOException("Broken surrogate pair: first char 0x" + Integer.toHexString(firstPart) +
+                                          ", second 0x" + Integer.toHexString(secondPart) + "; illegal combination");
+        }
+        return 0x10000 + ((firstPart - UTF8Writer.SURR1_FIRST) << 10) + (secondPart - UTF8Writer.SURR2_FIRST);
+    }
+
+    private static void throwIllegal(int code) throws IOException {
+        if (code > 0x10FFFF) {
+            throw new IOException("Illegal character point (0x" + Integer.toHexString(code) +
+                                          ") to output; max is 0x10FFFF as per RFC 3629");
+        }
+        if (code >= UTF8Writer.SURR1_FIRST && code <= UTF8Writer.SURR1_LAST) {
+            throw new IOException("Unmatched first part of surrogate pair (0x" + Integer.toHexString(code) + ")");
+        }
+        throw new IOException("Unmatched second part of surrogate pair (0x" + Integer.toHexString(code) + ")");
+    }
+}
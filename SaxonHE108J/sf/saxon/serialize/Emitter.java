@@ -250,7 +250,9 @@ public abstract class Emitter extends SequenceReceiver implements ReceiverWithOu
                         javaEncoding = "US-ASCII";
                     }
                     if (encoding.equalsIgnoreCase("UTF8")) {
-                        writer = new UTF8Writer(outputStream);
+                        writer = ChannelUTF8Writer.isApplicable(outputStream)
+                                ? ChannelUTF8Writer.forFileOutputStream(outputStream)
+                                : new UTF8Writer(outputStream);
                     } else {
                         writer = new BufferedWriter(
                                 new OutputStreamWriter(
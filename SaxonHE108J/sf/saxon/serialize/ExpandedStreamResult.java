@@ -215,7 +215,9 @@ public class ExpandedStreamResult {
                         javaEncoding = "US-ASCII";
                     }
                     if (encoding.equalsIgnoreCase("UTF8")) {
-                        writer = new UTF8Writer(outputStream);
+                        writer = ChannelUTF8Writer.isApplicable(outputStream)
+                            ? ChannelUTF8Writer.forFileOutputStream(outputStream)
+                            : new UTF8Writer(outputStream);
                     } else {
                         writer = new BufferedWriter(
                             new OutputStreamWriter(
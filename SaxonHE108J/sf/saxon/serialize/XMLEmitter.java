@@ -823,8 +823,18 @@ public class XMLEmitter extends Emitter {
         }
 
         final int clength = chars.length();
+        final ChannelUTF8Writer channelWriter =
+                writer instanceof ChannelUTF8Writer && characterSet instanceof UTF8CharacterSet
+                        ? (ChannelUTF8Writer) writer : null;
         while (segstart < clength) {
             int i = segstart;
+            if (channelWriter != null && !disabled) {
+                // the writer encodes and escapes ordinary text itself, stopping at any character needing special treatment
+                i = segstart = channelWriter.writeEscaped(chars, segstart, clength, specialChars);
+                if (i >= clength) {
+                    return;
+                }
+            }
             // find a maximal sequence of "ordinary" characters
             while (i < clength) {
                 final char c = chars.charAt(i);
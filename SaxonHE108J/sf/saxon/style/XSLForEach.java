@@ -98,8 +98,9 @@ public class XSLForEach extends StyleElement {
                     compileWarning("saxon:threads - no multithreading takes place when compiling with trace enabled",
                             SaxonErrorCode.SXWN9012);
                     threads = new StringLiteral("0");
-                } else if (!"EE".equals(getConfiguration().getEditionCode())) {
-                    compileWarning("saxon:threads - ignored when not running Saxon-EE",
+                } else if (!"EE".equals(getConfiguration().getEditionCode()) &&
+                        !getConfiguration().isMultithreadingEnabled()) {
+                    compileWarning("saxon:threads - ignored when multithreading is not enabled",
                             SaxonErrorCode.SXWN9013);
                     threads = new StringLiteral("0");
                 }
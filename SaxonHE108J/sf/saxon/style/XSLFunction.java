@@ -12,6 +12,7 @@ import net.sf.saxon.expr.Component;
 import net.sf.saxon.expr.Expression;
 import net.sf.saxon.expr.Literal;
 import net.sf.saxon.expr.TailCallLoop;
+import net.sf.saxon.expr.instruct.MemoFunction;
 import net.sf.saxon.expr.instruct.SlotManager;
 import net.sf.saxon.expr.instruct.UserFunction;
 import net.sf.saxon.expr.instruct.UserFunctionParameter;
@@ -46,6 +47,7 @@ public class XSLFunction extends StyleElement implements StylesheetComponent {
     private SequenceType resultType = SequenceType.ANY_SEQUENCE;
     private SlotManager stackFrameMap;
     private boolean memoFunction = false;
+    private boolean sharedCache = false;
     private String overrideExtensionFunctionAtt = null;
     private boolean overrideExtensionFunction = true;
     private int numberOfArguments = -1;  // -1 means not yet known
@@ -236,7 +238,13 @@ public class XSLFunction extends StyleElement implements StylesheetComponent {
 
         boolean cache = false;
         if (cacheAtt != null) {
-            cache = processBooleanAttribute("cache", cacheAtt);
+            if ("shared".equals(cacheAtt)) {
+                requireSyntaxExtensions("cache");
+                cache = true;
+                sharedCache = true;
+            } else {
+                cache = processBooleanAttribute("cache", cacheAtt);
+            }
         }
 
         if (determinism == UserFunction.Determinism.DETERMINISTIC || cache) {
@@ -646,6 +654,9 @@ public class XSLFunction extends StyleElement implements StylesheetComponent {
             if (memoFunction) {
                 annotations.add(new Annotation(new StructuredQName("saxon", NamespaceConstant.SAXON, "memo-function")));
             }
+            if (fn instanceof MemoFunction) {
+                ((MemoFunction) fn).setSharedCache(sharedCache);
+            }
             fn.setAnnotations(new AnnotationList(annotations));
             fn.setOverrideExtensionFunction(overrideExtensionFunction);
             compiledFunction = fn;
@@ -17,6 +17,7 @@ import net.sf.saxon.expr.sort.GlobalOrderComparer;
 import net.sf.saxon.expr.sort.LocalOrderComparer;
 import net.sf.saxon.lib.ConversionRules;
 import net.sf.saxon.lib.StringCollator;
+import net.sf.saxon.expr.LastPositionFinder;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.om.StandardNames;
@@ -25,8 +26,12 @@ import net.sf.saxon.pattern.Pattern;
 import net.sf.saxon.regex.UnicodeString;
 import net.sf.saxon.tree.iter.EmptyIterator;
 import net.sf.saxon.tree.iter.ListIterator;
+import net.sf.saxon.tree.iter.LookaheadIterator;
 import net.sf.saxon.tree.iter.ManualIterator;
 import net.sf.saxon.tree.iter.SingleNodeIterator;
+import net.sf.saxon.tree.tiny.TinyAttributeImpl;
+import net.sf.saxon.tree.tiny.TinyNodeImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
 import net.sf.saxon.type.*;
 import net.sf.saxon.value.AtomicValue;
 import net.sf.saxon.value.UntypedAtomicValue;
@@ -49,13 +54,19 @@ import java.util.*;
  * through this list converting each untypedAtomic value to a date and indexing it as such. In principle this
  * can happen for an arbitrary number of data types, though it is unlikely in practice because not many
  * types have overlapping lexical spaces.</p>
+ *
+ * <p>Once built, an index on a TinyTree can be frozen into a compact read-only form (see {@link #freeze}),
+ * in which the keys are held in an open-addressed hash table and the nodes for each key are held as
+ * a run of TinyTree node numbers in a single int array. This avoids retaining a NodeInfo object and
+ * a list for every indexed node, which matters for large documents whose indexes are shared across
+ * many transformations.</p>
  */
 public class KeyIndex {
 
     public enum Status {UNDER_CONSTRUCTION, BUILT, FAILED}
 
-    // The entry in an index is either a NodeInfo or a List<NodeInfo>
-    private Map <AtomicMatchKey, Object> index;
+    // The entry in an index is either an immutable singleton list or an ArrayList of nodes
+    private Map <AtomicMatchKey, List<NodeInfo>> index;
     private UType keyTypesPresent = UType.VOID;
     private UType keyTypesConvertedFromUntyped = UType.STRING_LIKE;
     private List <UntypedAtomicValue> untypedKeys;
@@ -63,7 +74,16 @@ public class KeyIndex {
     private int implicitTimezone;
     private StringCollator collation;
     private long creatingThread;
-    private Status status;
+    private volatile Status status;
+
+    // The frozen form of the index: an open-addressed hash table of keys, with parallel arrays giving
+    // the start and length of the run of node numbers for each key within frozenNodes. Attribute
+    // nodes are represented by -(attributeNumber + 1).
+    private TinyTree frozenTree;
+    private AtomicMatchKey[] frozenKeys;
+    private int[] frozenStarts;
+    private int[] frozenCounts;
+    private int[] frozenNodes;
 
     public KeyIndex(boolean isRangeKey) {
         index = isRangeKey ? new TreeMap<>() : new HashMap<>(100);
@@ -73,11 +93,11 @@ public class KeyIndex {
 
     /**
      * Get the underlying map
-     * @return the underlying map. The "Object" in the map entry is either a @code{NodeInfo}
-     * or a {@code List<NodeInfo>}
+     * @return the underlying map. The value in each map entry is the list of nodes having that key,
+     * in document order. Returns null if the index has been frozen.
      */
 
-    public Map <AtomicMatchKey, Object> getUnderlyingMap() {
+    public Map <AtomicMatchKey, List<NodeInfo>> getUnderlyingMap() {
         return index;
     }
 
@@ -231,20 +251,18 @@ public class KeyIndex {
     }
 
     private void addEntry(AtomicMatchKey val, NodeInfo curr, boolean isFirst) {
-        Object value = index.get(val);
-        if (value == null) {
+        List<NodeInfo> nodes = index.get(val);
+        if (nodes == null) {
             // this is the first node with this key value; we store the entry as a singleton
-            // node to avoid the overhead of creating a list
-            index.put(val, curr);
+            // list to avoid the overhead of creating a growable list
+            index.put(val, Collections.singletonList(curr));
         } else {
-            List<NodeInfo> nodes;
-            if (value instanceof NodeInfo) {
-                // replace the singleton key entry with a list-valued key entry
+            if (!(nodes instanceof ArrayList)) {
+                // replace the singleton key entry with a growable list
+                NodeInfo first = nodes.get(0);
                 nodes = new ArrayList<>(4);
-                nodes.add((NodeInfo)value);
+                nodes.add(first);
                 index.put(val, nodes);
-            } else {
-                nodes = (List<NodeInfo>)value;
             }
             // this is not the first node with this key value.
             // add the node to the list of nodes for this key,
@@ -311,14 +329,8 @@ public class KeyIndex {
             AtomicMatchKey uk = getCollationKey(v, collation, implicitTimezone);
             AtomicValue convertedValue = converter.convertString(v.getStringValueCS()).asAtomic();
             AtomicMatchKey amk = getCollationKey(convertedValue, collation, implicitTimezone);
-            Object value = index.get(uk);
-            if (value instanceof NodeInfo) {
-                addEntry(amk, ((NodeInfo)value), false);
-            } else {
-                List<NodeInfo> nodes = (List<NodeInfo>)value;
-                for (NodeInfo node : nodes) {
-                    addEntry(amk, node, false);
-                }
+            for (NodeInfo node : index.get(uk)) {
+                addEntry(amk, node, false);
             }
         }
 
@@ -330,7 +342,175 @@ public class KeyIndex {
      */
 
     public boolean isEmpty() {
-        return index.isEmpty();
+        return frozenKeys == null ? index.isEmpty() : frozenNodes.length == 0;
+    }
+
+    /**
+     * Convert the index to its compact read-only form. This is possible only for a non-range index on
+     * a TinyTree whose entries are all ordinary TinyTree nodes or attributes, and which does not need to
+     * support re-indexing of untyped atomic values. In other cases the call has no effect.
+     * The method must be called after the index is fully built and before it is made available to
+     * other threads.
+     *
+     * @param doc the document to which the index applies
+     * @return true if the index was frozen
+     */
+
+    public boolean freeze(TreeInfo doc) {
+        if (frozenKeys != null) {
+            return true;
+        }
+        if (!(doc instanceof TinyTree) || !(index instanceof HashMap) || untypedKeys != null) {
+            return false;
+        }
+        TinyTree tree = (TinyTree) doc;
+        int size = index.size();
+        int capacity = 2;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        int total = 0;
+        for (List<NodeInfo> value : index.values()) {
+            total += value.size();
+        }
+        AtomicMatchKey[] keys = new AtomicMatchKey[capacity];
+        int[] starts = new int[capacity];
+        int[] counts = new int[capacity];
+        int[] nodes = new int[total];
+        int mask = capacity - 1;
+        int next = 0;
+        for (Map.Entry<AtomicMatchKey, List<NodeInfo>> entry : index.entrySet()) {
+            int slot = spread(entry.getKey().hashCode()) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = entry.getKey();
+            starts[slot] = next;
+            for (NodeInfo node : entry.getValue()) {
+                int nr = encodeNode(node, tree);
+                if (nr == Integer.MIN_VALUE) {
+                    return false;
+                }
+                nodes[next++] = nr;
+            }
+            counts[slot] = next - starts[slot];
+        }
+        frozenTree = tree;
+        frozenKeys = keys;
+        frozenStarts = starts;
+        frozenCounts = counts;
+        frozenNodes = nodes;
+        index = null;
+        return true;
+    }
+
+    /**
+     * Ask whether the index has been frozen into its compact read-only form
+     *
+     * @return true if the index has been frozen
+     */
+
+    public boolean isFrozen() {
+        return frozenKeys != null;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Get the integer representation of a node in the frozen index
+     *
+     * @param node the node
+     * @param tree the tree to which the index applies
+     * @return the node number for an ordinary node, -(attribute number + 1) for an attribute, or
+     * Integer.MIN_VALUE if the node cannot be represented by a number in this tree
+     */
+
+    private static int encodeNode(NodeInfo node, TinyTree tree) {
+        if (!(node instanceof TinyNodeImpl) || ((TinyNodeImpl) node).getTree() != tree) {
+            return Integer.MIN_VALUE;
+        }
+        int nr = ((TinyNodeImpl) node).getNodeNumber();
+        if (node instanceof TinyAttributeImpl) {
+            return -(nr + 1);
+        } else if (node.getNodeKind() == Type.NAMESPACE) {
+            return Integer.MIN_VALUE;
+        } else {
+            return nr;
+        }
+    }
+
+    private NodeInfo decodeNode(int nr) {
+        return nr >= 0 ? frozenTree.getNode(nr) : new TinyAttributeImpl(frozenTree, -nr - 1);
+    }
+
+    /**
+     * Find the slot in the frozen hash table holding a given key
+     *
+     * @param key the key value
+     * @return the slot number, or -1 if the key is not present
+     */
+
+    private int findFrozenSlot(AtomicMatchKey key) {
+        AtomicMatchKey[] keys = frozenKeys;
+        int mask = keys.length - 1;
+        int slot = spread(key.hashCode()) & mask;
+        AtomicMatchKey k;
+        while ((k = keys[slot]) != null) {
+            if (k.equals(key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Add the nodes having a given key value to a list
+     *
+     * @param key    the key value
+     * @param result the list to which the nodes are to be added
+     * @return true if any nodes were found
+     */
+
+    private boolean addEntryNodes(AtomicMatchKey key, List<NodeInfo> result) {
+        if (frozenKeys != null) {
+            int slot = findFrozenSlot(key);
+            if (slot < 0) {
+                return false;
+            }
+            int start = frozenStarts[slot];
+            int end = start + frozenCounts[slot];
+            for (int i = start; i < end; i++) {
+                result.add(decodeNode(frozenNodes[i]));
+            }
+            return true;
+        }
+        List<NodeInfo> nodes = index.get(key);
+        if (nodes == null) {
+            return false;
+        }
+        result.addAll(nodes);
+        return true;
+    }
+
+    /**
+     * Get an iterator over the nodes having a given key value
+     *
+     * @param key the key value
+     * @return an iterator over the nodes, in document order
+     */
+
+    private SequenceIterator entryIterator(AtomicMatchKey key) {
+        if (frozenKeys != null) {
+            int slot = findFrozenSlot(key);
+            if (slot < 0) {
+                return EmptyIterator.ofNodes();
+            }
+            return new FrozenEntryIterator(frozenStarts[slot], frozenCounts[slot]);
+        }
+        return entryIterator(index.get(key));
     }
 
     /**
@@ -352,14 +532,8 @@ public class KeyIndex {
             for (PrimitiveUType type : keyTypesPresent.decompose()) {
                 AtomicType targetType = (AtomicType)type.toItemType();
                 AtomicValue converted = Converter.convert(soughtValue, targetType, rules);
-                Object value = index.get(getCollationKey(converted, collation, implicitTimezone));
-                if (value != null) {
+                if (addEntryNodes(getCollationKey(converted, collation, implicitTimezone), resultNodes)) {
                     counter++;
-                    if (value instanceof NodeInfo) {
-                        resultNodes.add(((NodeInfo) value));
-                    } else {
-                        resultNodes.addAll((List<NodeInfo>) value);
-                    }
                 }
             }
             SequenceIterator result = new ListIterator<>(resultNodes);
@@ -368,18 +542,16 @@ public class KeyIndex {
             }
             return result;
         } else {
-            Object value = index.get(getCollationKey(soughtValue, collation, implicitTimezone));
-            return entryIterator(value);
+            return entryIterator(getCollationKey(soughtValue, collation, implicitTimezone));
         }
     }
 
-    private SequenceIterator entryIterator(Object value) {
-        if (value == null) {
+    private SequenceIterator entryIterator(List<NodeInfo> nodes) {
+        if (nodes == null) {
             return EmptyIterator.ofNodes();
-        } else if (value instanceof NodeInfo) {
-            return SingleNodeIterator.makeIterator((NodeInfo) value);
+        } else if (nodes.size() == 1) {
+            return SingleNodeIterator.makeIterator(nodes.get(0));
         } else {
-            List<NodeInfo> nodes = (List<NodeInfo>) value;
             return new ListIterator<>(nodes);
         }
     }
@@ -397,8 +569,7 @@ public class KeyIndex {
         List<AtomicMatchKey> amks = new ArrayList<>(4);
         soughtValue.forEachOrFail(
                 keyVal -> amks.add(getCollationKey((AtomicValue)keyVal, collation, implicitTimezone)));
-        Object value = index.get(new CompositeAtomicMatchKey(amks));
-        return entryIterator(value);
+        return entryIterator(new CompositeAtomicMatchKey(amks));
     }
 
     private static AtomicMatchKey getCollationKey(AtomicValue value, StringCollator collation, int implicitTimezone)
@@ -414,6 +585,43 @@ public class KeyIndex {
         }
     }
 
+    /**
+     * Iterator over the run of node numbers held for one key in the frozen form of the index
+     */
+
+    private class FrozenEntryIterator implements SequenceIterator, LookaheadIterator, LastPositionFinder {
+
+        private final int start;
+        private final int end;
+        private int next;
+
+        FrozenEntryIterator(int start, int count) {
+            this.start = start;
+            this.end = start + count;
+            this.next = start;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < end;
+        }
+
+        @Override
+        public NodeInfo next() {
+            return next < end ? decodeNode(frozenNodes[next++]) : null;
+        }
+
+        @Override
+        public int getLength() {
+            return end - start;
+        }
+
+        @Override
+        public EnumSet<Property> getProperties() {
+            return EnumSet.of(Property.LOOKAHEAD, Property.LAST_POSITION_FINDER);
+        }
+    }
+
     private class CompositeAtomicMatchKey implements AtomicMatchKey {
 
         private List<AtomicMatchKey> keys;
@@ -36,6 +36,10 @@ import net.sf.saxon.z.IntHashMap;
 
 import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static net.sf.saxon.trans.KeyIndex.Status.*;
 
@@ -52,6 +56,12 @@ import static net.sf.saxon.trans.KeyIndex.Status.*;
  * references to the nodes in the document. The Controller holds a strong reference to the
  * list of indexes used for each document, so that indexes remain in memory for the duration
  * of a transformation even if the documents themselves are garbage collected.</p>
+ * <p>Reusable indexes (those that do not depend on transformation-specific data) are shared by all
+ * transformations using the same stylesheet. Looking up an existing index requires no locking: the
+ * indexes for each document are held in a {@link ConcurrentHashMap} keyed on the document number, and
+ * the indexes for one document are held in an array indexed by key set number. Locks are taken only
+ * when an index is registered. Once a shared index has been built it is converted to a compact
+ * read-only form (see {@link KeyIndex#freeze}) before it is made available to other threads.</p>
  * <p>Potentially there is a need for more than one index for a given key name, depending
  * on the primitive type of the value provided to the key() function. An index is built
  * corresponding to the type of the requested value; if subsequently the key() function is
@@ -89,10 +99,11 @@ public class KeyManager {
     private HashMap<StructuredQName, KeyDefinitionSet> keyDefinitions;
     // one entry for each named key; the entry contains
     // a KeyDefinitionSet holding the key definitions with that name
-    private transient WeakHashMap<TreeInfo, WeakReference<IntHashMap<KeyIndex>>> docIndexes;
-    // one entry for each document that is in memory;
-    // the entry contains a HashMap mapping the fingerprint of the key name plus the primitive item type
-    // to the HashMap that is the actual index of key/value pairs.
+    private transient volatile ConcurrentHashMap<Long, WeakReference<IndexList>> docIndexes;
+    // one entry for each document that is in memory, keyed on the document number;
+    // the entry contains an IndexList holding the index for each key set number.
+    private transient int sweepThreshold = 16;
+    // size of docIndexes at which entries for garbage-collected documents are next purged
 
     /**
      * Create a KeyManager and initialise variables
@@ -104,7 +115,7 @@ public class KeyManager {
     public KeyManager(Configuration config, PackageData pack) {
         packageData = pack;
         keyDefinitions = new HashMap<>(10);
-        docIndexes = new WeakHashMap<>(10);
+        docIndexes = new ConcurrentHashMap<>(10);
         // Create a key definition for the idref() function
         registerIdrefKey(config);
     }
@@ -390,7 +401,16 @@ public class KeyManager {
                 }
             }
             // Now we build the index (which isn't synchronized because it doesn't write to any shared data)
-            buildIndex(index, keySet, doc, context);
+            try {
+                buildIndex(index, keySet, doc, context);
+                // Convert the index to its compact read-only form before other threads can see it as built
+                index.freeze(doc);
+            } catch (XPathException | RuntimeException e) {
+                // Withdraw the partial index, so that a later request (perhaps following a failed
+                // asynchronous build) constructs it afresh and reports the real error
+                removeSharedIndex(doc, keySetNumber, index);
+                throw e;
+            }
             // On completion we synchronize again, and decide whether to use this index, or one that was
             // completed earlier by a different thread.
             synchronized(this) {
@@ -460,16 +480,54 @@ public class KeyManager {
         return index;
     }
 
+    /**
+     * Build, asynchronously, the indexes for all the reusable keys managed by this KeyManager, for
+     * a given document. Each index is built as a separate task using the supplied executor. The
+     * indexes are built in exactly the same way as when the key() function is first used, and are
+     * then available to all transformations that use this stylesheet and this document. Keys that
+     * depend on transformation-specific data (such as global variables or parameters) cannot be shared,
+     * and are not built.
+     *
+     * <p>The typical use is for a document that is held in a document pool and used repeatedly,
+     * so that the cost of building the indexes is not incurred by the first transformation that
+     * uses them.</p>
+     *
+     * @param doc        the document to be indexed
+     * @param controller a Controller for the executable containing these key definitions. This
+     *                   is used only to provide a dynamic context for building the indexes.
+     * @param executor   the executor used to run the tasks, for example the worker pool of the Configuration
+     * @return a future that completes when all the indexes have been built. If any index cannot be
+     * built, the future completes exceptionally, the cause being an {@link UncheckedXPathException}.
+     */
+
+    public CompletableFuture<Void> buildIndexesAsynchronously(TreeInfo doc, Controller controller, Executor executor) {
+        StructuredQName idrefs = StandardNames.getStructuredQName(StandardNames.XS_IDREFS);
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (KeyDefinitionSet keySet : getAllKeyDefinitionSets()) {
+            if (keySet.isReusable() && !keySet.getKeyName().equals(idrefs)) {
+                tasks.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        obtainSharedIndex(keySet, doc, controller.newXPathContext());
+                    } catch (XPathException e) {
+                        throw new UncheckedXPathException(e);
+                    }
+                }, executor));
+            }
+        }
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]));
+    }
+
     /**
      * Save the index associated with a particular key, a particular item type,
      * and a particular document. This needs to be done in such a way that the index is
-     * discarded by the garbage collector if the document is discarded. We therefore use a
-     * WeakHashMap indexed on the DocumentInfo, which returns HashMap giving the index for
-     * each key fingerprint. This index is itself another HashMap.
+     * discarded by the garbage collector if the document is discarded. We therefore hold
+     * a weak reference to the list of indexes for each document, the strong reference being
+     * held either by the document or by the Controller.
      *
-     * <p>The methods need to be synchronized because several concurrent transformations (which share
+     * <p>The method needs to be synchronized because several concurrent transformations (which share
      * the same KeyManager) may be creating indexes for the same or different documents at the same
-     * time. In addition, multiple threads within the same transformation may be active.</p>
+     * time. In addition, multiple threads within the same transformation may be active. Readers,
+     * however, do not need to synchronize (see {@link #getSharedIndex}).</p>
      *
      * @param doc            the document being indexed
      * @param keyFingerprint represents the name of the key definition
@@ -478,14 +536,17 @@ public class KeyManager {
      */
 
     private synchronized KeyIndex putSharedIndex(TreeInfo doc, int keyFingerprint, KeyIndex index, XPathContext context) {
-        if (docIndexes == null) {
-            // it's transient, so it will be null when reloading a compiled stylesheet
-            docIndexes = new WeakHashMap<>(10);
-        }
-        WeakReference<IntHashMap<KeyIndex>> indexRef = docIndexes.get(doc);
-        IntHashMap<KeyIndex> indexList;
+        ConcurrentHashMap<Long, WeakReference<IndexList>> docIndexes = getDocIndexes();
+        WeakReference<IndexList> indexRef = docIndexes.get(doc.getDocumentNumber());
+        IndexList indexList;
         if (indexRef == null || indexRef.get() == null) {
-            indexList = new IntHashMap<>(10);
+            // Discard entries for documents whose indexes have been garbage collected. This is done
+            // only when the map has doubled in size since the last sweep, to keep registration cheap
+            if (docIndexes.size() >= sweepThreshold) {
+                docIndexes.values().removeIf(ref -> ref.get() == null);
+                sweepThreshold = Math.max(16, docIndexes.size() * 2);
+            }
+            indexList = new IndexList();
             // Ensure there is a firm reference to the indexList for the duration of a transformation
             // But for keys associated with temporary trees, or documents that have been discarded from
             // the document pool, keep the reference within the document node itself.
@@ -495,7 +556,7 @@ public class KeyManager {
             } else {
                 doc.setUserData("saxon:key-index-list", indexList);
             }
-            docIndexes.put(doc, new WeakReference<>(indexList));
+            docIndexes.put(doc.getDocumentNumber(), new WeakReference<>(indexList));
         } else {
             indexList = indexRef.get();
         }
@@ -508,6 +569,23 @@ public class KeyManager {
         return result;
     }
 
+    /**
+     * Withdraw a shared index whose construction has failed, provided it has not already
+     * been superseded by an index built in another thread
+     *
+     * @param doc            the document being indexed
+     * @param keyFingerprint represents the name of the key definition
+     * @param index          the index whose construction failed
+     */
+
+    private synchronized void removeSharedIndex(TreeInfo doc, int keyFingerprint, KeyIndex index) {
+        WeakReference<IndexList> indexRef = getDocIndexes().get(doc.getDocumentNumber());
+        IndexList indexList = indexRef == null ? null : indexRef.get();
+        if (indexList != null && indexList.get(keyFingerprint) == index) {
+            indexList.put(keyFingerprint, null);
+        }
+    }
+
     /**
      * Save the index associated with a particular key, a particular item type,
      * and a particular document. This version of the method is used for indexes that are
@@ -543,23 +621,20 @@ public class KeyManager {
 
     /**
      * Get the shared index associated with a particular key, a particular source document,
-     * and a particular primitive item type
+     * and a particular primitive item type. This method is not synchronized: an index that is
+     * marked as built is fully initialized before it is published.
      *
      * @param doc            the document whose index is required
      * @param keyFingerprint the name of the key definition
      * @return either an index (as a HashMap), or the dummy map "under construction", or null
      */
 
-    private synchronized KeyIndex getSharedIndex(TreeInfo doc, int keyFingerprint) {
-        if (docIndexes == null) {
-            // it's transient, so it will be null when reloading a compiled stylesheet
-            docIndexes = new WeakHashMap<>(10);
-        }
-        WeakReference<IntHashMap<KeyIndex>> ref = docIndexes.get(doc);
+    private KeyIndex getSharedIndex(TreeInfo doc, int keyFingerprint) {
+        WeakReference<IndexList> ref = getDocIndexes().get(doc.getDocumentNumber());
         if (ref == null) {
             return null;
         }
-        IntHashMap<KeyIndex> indexList = ref.get();
+        IndexList indexList = ref.get();
         if (indexList == null) {
             return null;
         }
@@ -596,7 +671,27 @@ public class KeyManager {
      */
 
     public synchronized void clearDocumentIndexes(TreeInfo doc) {
-        docIndexes.remove(doc);
+        getDocIndexes().remove(doc.getDocumentNumber());
+    }
+
+    /**
+     * Get the map holding the shared indexes for each document, creating it if necessary
+     *
+     * @return the map from document numbers to index lists
+     */
+
+    private ConcurrentHashMap<Long, WeakReference<IndexList>> getDocIndexes() {
+        ConcurrentHashMap<Long, WeakReference<IndexList>> map = docIndexes;
+        if (map == null) {
+            // it's transient, so it will be null when reloading a compiled stylesheet
+            synchronized (this) {
+                map = docIndexes;
+                if (map == null) {
+                    map = docIndexes = new ConcurrentHashMap<>(10);
+                }
+            }
+        }
+        return map;
     }
 
     /**
@@ -636,5 +731,35 @@ public class KeyManager {
             }
         }
     }
-}
 
+    /**
+     * The shared indexes for one document, held in an array indexed by key set number. The array
+     * can be read without locking; it is replaced by a larger copy when an index is added for a key
+     * set number beyond its current size. Updates are made only while holding the lock on the KeyManager.
+     */
+
+    private static class IndexList {
+
+        private volatile AtomicReferenceArray<KeyIndex> slots = new AtomicReferenceArray<>(8);
+
+        KeyIndex get(int keySetNumber) {
+            AtomicReferenceArray<KeyIndex> a = slots;
+            return keySetNumber < a.length() ? a.get(keySetNumber) : null;
+        }
+
+        void put(int keySetNumber, KeyIndex index) {
+            AtomicReferenceArray<KeyIndex> a = slots;
+            if (keySetNumber >= a.length()) {
+                AtomicReferenceArray<KeyIndex> b =
+                        new AtomicReferenceArray<>(Math.max(keySetNumber + 1, a.length() * 2));
+                for (int i = 0; i < a.length(); i++) {
+                    b.set(i, a.get(i));
+                }
+                b.set(keySetNumber, index);
+                slots = b;
+            } else {
+                a.set(keySetNumber, index);
+            }
+        }
+    }
+}
@@ -417,7 +417,7 @@ public class SaxonErrorCode {
     public static final String SXWN9012 = "SXWN9012";
 
     /**
-     * SXWN9013: saxon:threads ignored when not running under Saxon-EE
+     * SXWN9013: saxon:threads ignored when not running under Saxon-EE, or when multithreading is not enabled
      */
 
     public static final String SXWN9013 = "SXWN9013";
@@ -18,6 +18,7 @@ import net.sf.saxon.expr.parser.Loc;
 import net.sf.saxon.lib.*;
 import net.sf.saxon.om.*;
 import net.sf.saxon.s9api.Destination;
+import net.sf.saxon.serialize.AsyncResultDocumentWriter;
 import net.sf.saxon.serialize.Emitter;
 import net.sf.saxon.serialize.MessageEmitter;
 import net.sf.saxon.serialize.PrincipalOutputGatekeeper;
@@ -58,6 +59,7 @@ public class XsltController extends Controller {
     private AccumulatorManager accumulatorManager = new AccumulatorManager();
     private PrincipalOutputGatekeeper gatekeeper = null;
     private Destination principalDestination;
+    private AsyncResultDocumentWriter asyncResultDocumentWriter;
 
     public XsltController(Configuration config, PreparedStylesheet pss) {
         super(config, pss);
@@ -510,6 +512,59 @@ public class XsltController extends Controller {
         this.resultDocumentResolver = resultDocumentResolver;
     }
 
+    /**
+     * Get the writer used to write secondary result documents asynchronously, creating it if necessary
+     *
+     * @return the asynchronous writer, or null if result documents are to be written synchronously (which is
+     * the case unless {@link Configuration#setAsyncResultDocumentQueueSize(int)} has been called)
+     * @since 10.8
+     */
+
+    public synchronized AsyncResultDocumentWriter getAsyncResultDocumentWriter() {
+        if (asyncResultDocumentWriter == null) {
+            Configuration config = getConfiguration();
+            int queueSize = config.getAsyncResultDocumentQueueSize();
+            if (queueSize > 0) {
+                asyncResultDocumentWriter = new AsyncResultDocumentWriter(config.getOutputWriterPool(), queueSize);
+            }
+        }
+        return asyncResultDocumentWriter;
+    }
+
+    /**
+     * Wait for any secondary result documents that are being written asynchronously, and report
+     * the first failure to write one of them
+     *
+     * @throws XPathException if writing a result document failed
+     */
+
+    private void completeAsyncResultDocuments() throws XPathException {
+        AsyncResultDocumentWriter writer;
+        synchronized (this) {
+            writer = asyncResultDocumentWriter;
+            asyncResultDocumentWriter = null;
+        }
+        if (writer != null) {
+            writer.complete();
+        }
+    }
+
+    /**
+     * Wait for any secondary result documents that are being written asynchronously, ignoring failures.
+     * This is used when the transformation has already failed.
+     */
+
+    private void abandonAsyncResultDocuments() {
+        AsyncResultDocumentWriter writer;
+        synchronized (this) {
+            writer = asyncResultDocumentWriter;
+            asyncResultDocumentWriter = null;
+        }
+        if (writer != null) {
+            writer.awaitCompletion();
+        }
+    }
+
     /**
      * Get the output URI resolver.
      *
@@ -668,6 +723,7 @@ public class XsltController extends Controller {
             initialContext.waitForChildThreads();
 
             dest.close();
+            completeAsyncResultDocuments();
 
         } catch (TerminationException err) {
             //System.err.println("Processing terminated using xsl:message");
@@ -681,6 +737,7 @@ public class XsltController extends Controller {
             handleXPathException(err);
         } finally {
             inUse = false;
+            abandonAsyncResultDocuments();
             closeMessageEmitter();
             if (traceListener != null) {
                 traceListener.close();
@@ -856,11 +913,13 @@ public class XsltController extends Controller {
 
             initialContext.waitForChildThreads();
             dest.close();
+            completeAsyncResultDocuments();
         } catch (UncheckedXPathException err) {
             handleXPathException(err.getXPathException());
         } catch (XPathException err) {
             handleXPathException(err);
         } finally {
+            abandonAsyncResultDocuments();
             if (traceListener != null) {
                 traceListener.close();
             }
@@ -958,6 +1017,7 @@ public class XsltController extends Controller {
 
             initialContext.waitForChildThreads();
             dest.close();
+            completeAsyncResultDocuments();
 
 
         } catch (TerminationException err) {
@@ -972,6 +1032,7 @@ public class XsltController extends Controller {
             handleXPathException(err);
         } finally {
             inUse = false;
+            abandonAsyncResultDocuments();
             if (close && source instanceof AugmentedSource) {
                 ((AugmentedSource) source).close();
             }
@@ -7,6 +7,7 @@
 
 package net.sf.saxon.tree.tiny;
 
+import net.sf.saxon.regex.LatinString;
 import net.sf.saxon.tree.util.FastStringBuffer;
 
 import java.util.Arrays;
@@ -21,6 +22,10 @@ import java.util.Arrays;
  * are rare. As used within the TinyTree, extraction of the string value of a node
  * requires character copying only in the case where the value crosses segment
  * boundaries.</p>
+ * <p>In compact mode, each segment is held as an array of bytes for as long as all the characters
+ * in the segment are in the Latin-1 range, halving the space needed for such text. A segment is widened
+ * to an array of chars when a character outside this range is appended to it. Extracting a value from
+ * a byte segment delivers a {@link LatinString} that is a view of the segment, without copying.</p>
  */
 
 public final class LargeStringBuffer implements AppendableCharSequence {
@@ -32,15 +37,32 @@ public final class LargeStringBuffer implements AppendableCharSequence {
     // Variant of LargeStringBuffer using fixed-length segments
 
     private char[][] data;
+    private byte[][] latinData; // in compact mode, the segments whose characters are all Latin-1; otherwise null
     private int length;         // total length of the CharSequence
     private int segmentsUsed;
+    private char[] scratch;
 
     /**
      * Create an empty LargeStringBuffer with default space allocation
      */
 
     public LargeStringBuffer() {
+        this(false);
+    }
+
+    /**
+     * Create an empty LargeStringBuffer with default space allocation
+     *
+     * @param compact true if segments containing only Latin-1 characters are to be held
+     *                as arrays of bytes
+     * @since 10.8
+     */
+
+    public LargeStringBuffer(boolean compact) {
         data = new char[1][];
+        if (compact) {
+            latinData = new byte[1][];
+        }
         segmentsUsed = 0;
         length = 0;
     }
@@ -59,10 +81,98 @@ public final class LargeStringBuffer implements AppendableCharSequence {
                 throw new IllegalStateException("Source document too large: more than 1G characters in text nodes");
             }
             data = Arrays.copyOf(data, segs * 2);
+            if (latinData != null) {
+                latinData = Arrays.copyOf(latinData, segs * 2);
+            }
         }
         data[segmentsUsed++] = seg;
     }
 
+    /**
+     * Add a segment holding Latin-1 characters, in compact mode
+     */
+
+    private void addLatinSegment() {
+        addSegment(null);
+        latinData[segmentsUsed - 1] = new byte[SEGLEN];
+    }
+
+    /**
+     * Convert a segment holding Latin-1 characters to one that can hold any characters
+     *
+     * @param seg the segment number
+     * @return the new segment
+     */
+
+    private char[] widenSegment(int seg) {
+        byte[] bytes = latinData[seg];
+        char[] chars = new char[SEGLEN];
+        for (int i = 0; i < SEGLEN; i++) {
+            chars[i] = (char) (bytes[i] & 0xff);
+        }
+        data[seg] = chars;
+        latinData[seg] = null;
+        return chars;
+    }
+
+    /**
+     * Append a CharSequence to this LargeStringBuffer, in compact mode
+     *
+     * @param s the data to be appended
+     */
+
+    private void catCompact(CharSequence s) {
+        final int len = s.length();
+        int start = 0;
+        while (start < len) {
+            int segOffset = length & MASK;
+            if (segOffset == 0) {
+                addLatinSegment();
+            }
+            int seg = length >> BITS;
+            int chunk = Math.min(len - start, SEGLEN - segOffset);
+            byte[] bytes = latinData[seg];
+            if (bytes != null && s instanceof LatinString) {
+                ((LatinString) s).getBytes(start, start + chunk, bytes, segOffset);
+            } else {
+                if (scratch == null) {
+                    scratch = new char[SEGLEN];
+                }
+                getChars(s, start, start + chunk, scratch, 0);
+                if (bytes != null) {
+                    int i = 0;
+                    while (i < chunk && scratch[i] <= 255) {
+                        bytes[segOffset + i] = (byte) scratch[i];
+                        i++;
+                    }
+                    if (i < chunk) {
+                        System.arraycopy(scratch, i, widenSegment(seg), segOffset + i, chunk - i);
+                    }
+                } else {
+                    System.arraycopy(scratch, 0, data[seg], segOffset, chunk);
+                }
+            }
+            start += chunk;
+            length += chunk;
+        }
+    }
+
+    private static void getChars(CharSequence s, int start, int end, char[] dest, int destPos) {
+        if (s instanceof String) {
+            ((String) s).getChars(start, end, dest, destPos);
+        } else if (s instanceof CharSlice) {
+            ((CharSlice) s).getChars(start, end, dest, destPos);
+        } else if (s instanceof FastStringBuffer) {
+            ((FastStringBuffer) s).getChars(start, end, dest, destPos);
+        } else if (s instanceof LatinString) {
+            ((LatinString) s).getChars(start, end, dest, destPos);
+        } else {
+            for (int i = start, j = destPos; i < end; i++, j++) {
+                dest[j] = s.charAt(i);
+            }
+        }
+    }
+
     /**
      * Append a CharSequence to this LargeStringBuffer
      *
@@ -82,6 +192,11 @@ public final class LargeStringBuffer implements AppendableCharSequence {
             return cat(fsb);
         }
 
+        if (latinData != null) {
+            catCompact(s);
+            return this;
+        }
+
         final int len = s.length();
         char[] firstSeg;
         int firstSegOffset = length & MASK;
@@ -191,6 +306,11 @@ public final class LargeStringBuffer implements AppendableCharSequence {
             int usedInLastSegment = length & MASK;
             this.length = length;
             this.segmentsUsed = length / SEGLEN + (usedInLastSegment == 0 ? 0 : 1);
+            if (latinData != null) {
+                for (int i = segmentsUsed; i < latinData.length; i++) {
+                    latinData[i] = null;
+                }
+            }
         }
     }
 
@@ -210,6 +330,12 @@ public final class LargeStringBuffer implements AppendableCharSequence {
         if (index < 0 || index >= length) {
             throw new IndexOutOfBoundsException(index + "");
         }
+        if (latinData != null) {
+            byte[] bytes = latinData[index >> BITS];
+            if (bytes != null) {
+                return (char) (bytes[index & MASK] & 0xff);
+            }
+        }
         return data[index >> BITS][index & MASK];
     }
 
@@ -232,6 +358,14 @@ public final class LargeStringBuffer implements AppendableCharSequence {
     public CharSequence subSequence(int start, int end) {
         int firstSeg = start >> BITS;
         int lastSeg = (end - 1) >> BITS;
+        if (latinData != null) {
+            if (firstSeg == lastSeg && latinData[firstSeg] != null) {
+                return LatinString.view(latinData[firstSeg], start & MASK, end - start);
+            }
+            if (firstSeg != lastSeg || start == end) {
+                return compactSubSequence(start, end);
+            }
+        }
         if (firstSeg == lastSeg) {
             try {
                 return new CharSlice(data[firstSeg], start & MASK, end - start);
@@ -258,6 +392,50 @@ public final class LargeStringBuffer implements AppendableCharSequence {
         }
     }
 
+    /**
+     * Get a subsequence that spans more than one segment, in compact mode. If all the segments
+     * hold Latin-1 characters, the result is a LatinString.
+     *
+     * @param start the start index, inclusive
+     * @param end   the end index, exclusive
+     * @return the specified subsequence
+     */
+
+    private CharSequence compactSubSequence(int start, int end) {
+        if (start == end) {
+            return "";
+        }
+        boolean allLatin = true;
+        for (int seg = start >> BITS; seg <= (end - 1) >> BITS; seg++) {
+            if (latinData[seg] == null) {
+                allLatin = false;
+                break;
+            }
+        }
+        if (allLatin) {
+            byte[] bytes = new byte[end - start];
+            for (int pos = start; pos < end; ) {
+                int seg = pos >> BITS;
+                int chunk = Math.min(end - pos, SEGLEN - (pos & MASK));
+                System.arraycopy(latinData[seg], pos & MASK, bytes, pos - start, chunk);
+                pos += chunk;
+            }
+            return LatinString.view(bytes, 0, bytes.length);
+        }
+        FastStringBuffer fsb = new FastStringBuffer(end - start);
+        for (int pos = start; pos < end; ) {
+            int seg = pos >> BITS;
+            int chunk = Math.min(end - pos, SEGLEN - (pos & MASK));
+            if (latinData[seg] != null) {
+                fsb.cat(LatinString.view(latinData[seg], pos & MASK, chunk));
+            } else {
+                fsb.append(data[seg], pos & MASK, chunk);
+            }
+            pos += chunk;
+        }
+        return fsb;
+    }
+
     /**
      * Convert to a string
      */
@@ -281,10 +459,8 @@ public final class LargeStringBuffer implements AppendableCharSequence {
     public int hashCode() {
         // Same algorithm as String#hashCode(), but not cached
         int h = 0;
-        for (char[] chars : data) {
-            for (int i = 0; i < SEGLEN; i++) {
-                h = 31 * h + chars[i];
-            }
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + charAt(i);
         }
         return h;
     }
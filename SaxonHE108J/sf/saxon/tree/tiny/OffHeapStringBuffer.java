@@ -0,0 +1,330 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.tree.tiny;
+
+import net.sf.saxon.tree.util.FastStringBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+
+/**
+ * An implementation of {@link AppendableCharSequence} that holds its characters outside the Java heap.
+ * Like {@link LargeStringBuffer}, the characters are held in fixed-size segments of 65536 characters;
+ * but each segment is a direct {@link ByteBuffer}, or (if a directory is supplied) a region of a
+ * single memory-mapped temporary file, which grows as segments are added. This allows the text content of very large documents to be held
+ * in a TinyTree without occupying space in the Java heap, at the cost of copying characters
+ * whenever a value is extracted.
+ * <p>The buffer is append-only, apart from truncation using {@link #setLength}, so once the tree
+ * has been built it can safely be read by multiple threads.</p>
+ */
+
+public final class OffHeapStringBuffer implements AppendableCharSequence {
+
+    private final static int BITS = 16;
+    private final static int SEGLEN = 1 << BITS;
+    private final static int MASK = SEGLEN - 1;
+
+    private CharBuffer[] data;
+    private int length;         // total length of the CharSequence
+    private int segmentsUsed;
+    private int segmentsAllocated;
+    private final File directory;
+    private File file;          // the backing file, if segments are memory-mapped
+    private char[] scratch;
+
+    /**
+     * Create an empty OffHeapStringBuffer
+     *
+     * @param directory if null, segments are allocated as direct byte buffers. Otherwise, segments are
+     *                  allocated in a temporary file created in this directory, which is mapped into memory.
+     *                  The file is deleted once this buffer has been garbage collected and the mappings
+     *                  have been released.
+     */
+
+    public OffHeapStringBuffer(File directory) {
+        this.directory = directory;
+        data = new CharBuffer[1];
+        segmentsUsed = 0;
+        segmentsAllocated = 0;
+        length = 0;
+    }
+
+    /**
+     * Allocate a new segment, or reuse one that was released by {@link #setLength}
+     */
+
+    private void addSegment() {
+        if (segmentsUsed < segmentsAllocated) {
+            segmentsUsed++;
+            return;
+        }
+        int segs = data.length;
+        if (segmentsUsed + 1 > segs) {
+            if (segmentsUsed == 32768) {
+                throw new IllegalStateException("Source document too large: more than 1G characters in text nodes");
+            }
+            data = Arrays.copyOf(data, segs * 2);
+        }
+        data[segmentsUsed++] = allocateSegment(segmentsAllocated);
+        segmentsAllocated++;
+    }
+
+    private CharBuffer allocateSegment(int segmentNumber) {
+        if (directory == null) {
+            return ByteBuffer.allocateDirect(SEGLEN * 2).asCharBuffer();
+        }
+        try {
+            if (file == null) {
+                file = File.createTempFile("saxon-tree", ".tmp", directory);
+                BackingFile.register(this, file);
+            }
+            // The file grows by one segment at a time. The mapping remains valid after the channel is closed,
+            // so no file handle is held between allocations
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) segmentNumber * SEGLEN * 2, SEGLEN * 2)
+                        .asCharBuffer();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot allocate memory-mapped storage for tree", e);
+        }
+    }
+
+    /**
+     * Append a CharSequence to this OffHeapStringBuffer
+     *
+     * @param s the data to be appended
+     */
+
+    @Override
+    public OffHeapStringBuffer cat(CharSequence s) {
+        if (s instanceof CompressedWhitespace) {
+            FastStringBuffer fsb = new FastStringBuffer(FastStringBuffer.C64);
+            ((CompressedWhitespace) s).uncompress(fsb);
+            return cat(fsb);
+        }
+        if (!(s instanceof String || s instanceof CharSlice || s instanceof FastStringBuffer)) {
+            s = s.toString();
+        }
+        final int len = s.length();
+        int start = 0;
+        while (start < len) {
+            int offset = length & MASK;
+            if (offset == 0) {
+                addSegment();
+            }
+            int chunk = Math.min(len - start, SEGLEN - offset);
+            CharBuffer seg = data[length >> BITS].duplicate();
+            seg.position(offset);
+            if (s instanceof String) {
+                seg.put((String) s, start, start + chunk);
+            } else {
+                char[] chars = getScratch(chunk);
+                if (s instanceof CharSlice) {
+                    ((CharSlice) s).getChars(start, start + chunk, chars, 0);
+                } else {
+                    ((FastStringBuffer) s).getChars(start, start + chunk, chars, 0);
+                }
+                seg.put(chars, 0, chunk);
+            }
+            start += chunk;
+            length += chunk;
+        }
+        return this;
+    }
+
+    private char[] getScratch(int size) {
+        if (scratch == null || scratch.length < size) {
+            scratch = new char[Math.max(size, 1024)];
+        }
+        return scratch;
+    }
+
+    @Override
+    public OffHeapStringBuffer cat(char c) {
+        return cat("" + c);
+    }
+
+    /**
+     * Returns the length of this character sequence.  The length is the number
+     * of 16-bit UTF-16 characters in the sequence.
+     *
+     * @return the number of characters in this sequence
+     */
+    @Override
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Set the length. If this exceeds the current length, this method is a no-op.
+     * If this is less than the current length, characters beyond the specified point
+     * are deleted. Storage that is no longer used is retained for reuse.
+     *
+     * @param length the new length
+     */
+
+    @Override
+    public void setLength(int length) {
+        if (length < this.length) {
+            int usedInLastSegment = length & MASK;
+            this.length = length;
+            this.segmentsUsed = length / SEGLEN + (usedInLastSegment == 0 ? 0 : 1);
+        }
+    }
+
+    /**
+     * Returns the character at the specified index.
+     *
+     * @param index the index of the character to be returned
+     * @return the specified character
+     * @throws IndexOutOfBoundsException if the <tt>index</tt> argument is negative or not less than
+     *                                   <tt>length()</tt>
+     */
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(index + "");
+        }
+        return data[index >> BITS].get(index & MASK);
+    }
+
+    /**
+     * Returns a new character sequence that is a subsequence of this sequence. The characters
+     * are copied to the Java heap.
+     *
+     * @param start the start index, inclusive
+     * @param end   the end index, exclusive
+     * @return the specified subsequence
+     * @throws IndexOutOfBoundsException if <tt>start</tt> or <tt>end</tt> are negative,
+     *                                   if <tt>end</tt> is greater than <tt>length()</tt>,
+     *                                   or if <tt>start</tt> is greater than <tt>end</tt>
+     */
+    /*@NotNull*/
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException(start + "," + end);
+        }
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new CharSlice(chars);
+    }
+
+    /**
+     * Copy characters from this buffer to a character array
+     *
+     * @param start       the start index, inclusive
+     * @param end         the end index, exclusive
+     * @param destination the array to which the characters are to be copied
+     * @param destOffset  the position in the destination array of the first copied character
+     */
+
+    public void getChars(int start, int end, char[] destination, int destOffset) {
+        while (start < end) {
+            int offset = start & MASK;
+            int chunk = Math.min(end - start, SEGLEN - offset);
+            // Use a duplicate so that concurrent readers do not interfere with each other's position
+            CharBuffer seg = data[start >> BITS].duplicate();
+            seg.position(offset);
+            seg.get(destination, destOffset, chunk);
+            start += chunk;
+            destOffset += chunk;
+        }
+    }
+
+    /**
+     * Convert to a string
+     */
+
+    public String toString() {
+        return subSequence(0, length).toString();
+    }
+
+    /**
+     * Compare equality
+     */
+
+    public boolean equals(Object other) {
+        return other instanceof CharSequence && toString().equals(other.toString());
+    }
+
+    /**
+     * Generate a hash code
+     */
+
+    public int hashCode() {
+        // Same algorithm as String#hashCode(), but not cached
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + charAt(i);
+        }
+        return h;
+    }
+
+
+    /**
+     * Tracks the backing file of an OffHeapStringBuffer, so that the file can be deleted once the buffer
+     * has been garbage collected. A file cannot be deleted on some platforms (notably Windows) while
+     * it is still mapped, and the mappings are only released when the mapped buffers themselves are
+     * collected; a file whose deletion fails is therefore retried on subsequent sweeps. A sweep is made
+     * whenever a new backing file is created. Any files that remain when the Java VM exits are deleted
+     * by a shutdown hook, where the platform allows.
+     */
+
+    private static final class BackingFile extends PhantomReference<OffHeapStringBuffer> {
+
+        private final static ReferenceQueue<OffHeapStringBuffer> queue = new ReferenceQueue<>();
+        private final static Set<BackingFile> live = new HashSet<>();
+        private final static List<File> pending = new ArrayList<>();
+        private static boolean hookRegistered = false;
+
+        private final File file;
+
+        private BackingFile(OffHeapStringBuffer buffer, File file) {
+            super(buffer, queue);
+            this.file = file;
+        }
+
+        static synchronized void register(OffHeapStringBuffer buffer, File file) {
+            sweep();
+            live.add(new BackingFile(buffer, file));
+            if (!hookRegistered) {
+                Runtime.getRuntime().addShutdownHook(new Thread(BackingFile::deleteAll));
+                hookRegistered = true;
+            }
+        }
+
+        private static synchronized void deleteAll() {
+            for (BackingFile ref : live) {
+                ref.file.delete();
+            }
+            for (File f : pending) {
+                f.delete();
+            }
+        }
+
+        private static void sweep() {
+            Reference<? extends OffHeapStringBuffer> ref;
+            while ((ref = queue.poll()) != null) {
+                live.remove(ref);
+                pending.add(((BackingFile) ref).file);
+            }
+            pending.removeIf(f -> f.delete() || !f.exists());
+        }
+    }
+}
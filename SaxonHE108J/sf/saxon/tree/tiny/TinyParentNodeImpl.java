@@ -86,6 +86,33 @@ TinyParentNodeImpl extends TinyNodeImpl {
             }
         }
 
+        // if the text of the descendant text nodes is held contiguously in the character buffer, as it is unless
+        // there are whitespace text nodes or the tree was built out of order, the value is a slice of the buffer
+
+        int start = -1;
+        int end = -1;
+        boolean contiguous = true;
+        for (int n = next; n < tree.numberOfNodes && tree.depth[n] > level; n++) {
+            final byte kind = tree.nodeKind[n];
+            if (kind == Type.TEXT || kind == Type.TEXTUAL_ELEMENT) {
+                if (start < 0) {
+                    start = tree.alpha[n];
+                    end = start;
+                }
+                if (tree.alpha[n] != end) {
+                    contiguous = false;
+                    break;
+                }
+                end += tree.beta[n];
+            } else if (kind == Type.WHITESPACE_TEXT) {
+                contiguous = false;
+                break;
+            }
+        }
+        if (contiguous) {
+            return start < 0 ? "" : tree.charBuffer.subSequence(start, end);
+        }
+
         // now handle the general case
 
         FastStringBuffer sb = null;
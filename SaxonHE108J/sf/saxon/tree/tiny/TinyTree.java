@@ -200,7 +200,7 @@ public final class TinyTree extends GenericTreeInfo implements NodeVectorTree {
         numberOfNamespaces = 0;
         namespaceMaps = new NamespaceMap[namespaces];
 
-        charBuffer = characters > 65000 ? new LargeStringBuffer() : new FastStringBuffer(characters);
+        charBuffer = characters > 65000 ? makeLargeCharBuffer(config) : new FastStringBuffer(characters);
 
         setConfiguration(config);
     }
@@ -371,12 +371,28 @@ public final class TinyTree extends GenericTreeInfo implements NodeVectorTree {
 
     void appendChars(CharSequence chars) {
         if (charBuffer instanceof FastStringBuffer && charBuffer.length() > 65000) {
-            LargeStringBuffer lsb = new LargeStringBuffer();
-            charBuffer = lsb.cat(charBuffer);
+            charBuffer = makeLargeCharBuffer(getConfiguration()).cat(charBuffer);
         }
         charBuffer.cat(chars);
     }
 
+    /**
+     * Create a buffer to hold the character content of a large tree: either a {@link LargeStringBuffer}
+     * (in compact mode if compact tree text is enabled in the configuration), or an {@link OffHeapStringBuffer}
+     * if off-heap tree storage is enabled in the configuration
+     *
+     * @param config the Saxon configuration
+     * @return a new empty buffer
+     */
+
+    private static AppendableCharSequence makeLargeCharBuffer(Configuration config) {
+        if (config != null && config.isOffHeapTreeStorage()) {
+            return new OffHeapStringBuffer(config.getOffHeapTreeDirectory());
+        } else {
+            return new LargeStringBuffer(config != null && config.isCompactTreeText());
+        }
+    }
+
     /**
      * Create a new text node that is a copy of an existing text node
      *
@@ -1262,6 +1278,26 @@ public final class TinyTree extends GenericTreeInfo implements NodeVectorTree {
         return -1;
     }
 
+    /**
+     * Get the array holding line numbers of nodes, for use when saving the tree
+     *
+     * @return the array of line numbers, or null if line numbering is off
+     */
+
+    int[] getLineNumberArray() {
+        return lineNumbers;
+    }
+
+    /**
+     * Get the array holding column numbers of nodes, for use when saving the tree
+     *
+     * @return the array of column numbers, or null if line numbering is off
+     */
+
+    int[] getColumnNumberArray() {
+        return columnNumbers;
+    }
+
     /**
      * Set an element node to be marked as nilled
      *
@@ -1304,6 +1340,16 @@ public final class TinyTree extends GenericTreeInfo implements NodeVectorTree {
 
     }
 
+    /**
+     * Get the table of registered element IDs, for use when saving the tree
+     *
+     * @return the map from ID values to elements, or null if no IDs have been registered
+     */
+
+    Map<String, NodeInfo> getIdTable() {
+        return idTable;
+    }
+
     /**
      * Get the element with a given ID.
      *
@@ -0,0 +1,202 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.tree.tiny;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.NamespaceMap;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.type.SimpleType;
+import net.sf.saxon.type.Type;
+
+import java.util.Arrays;
+
+/**
+ * Builds a TinyTree by appending nodes directly to its arrays, without going through the
+ * {@link net.sf.saxon.event.Receiver} pipeline. This is intended for code that generates a document
+ * whose structure is known to be well-formed by construction, for example the XML representation of
+ * JSON produced by the <code>json-to-xml</code> function: there is no namespace fixup, no checking of
+ * duplicate attributes, and all elements are untyped and share a single set of in-scope namespaces.
+ * <p>The resulting tree is equivalent to the tree that a {@link TinyBuilder} would construct from the
+ * equivalent sequence of events, except that no line numbers are recorded. Because the in-scope namespaces
+ * are known to be the same throughout, every element whose only content is a text node (other than the
+ * outermost element) is held as a single textual element node.</p>
+ *
+ * @since 10.8
+ */
+
+public class TinyTreeAppender {
+
+    private final static int PARENT_POINTER_INTERVAL = 10;
+
+    private final TinyTree tree;
+    private final TinyDocumentImpl root;
+    private final NamespaceMap namespaces;
+    private final Statistics statistics;
+    private final String systemId;
+
+    private int currentDepth;
+    private int currentElement = -1;
+    private int[] prevAtDepth = new int[100];
+    private int[] siblingsAtDepth = new int[100];
+
+    /**
+     * Create a TinyTreeAppender, and start a new document
+     *
+     * @param config     the Saxon configuration
+     * @param systemId   the system ID (document URI) of the new document
+     * @param namespaces the in-scope namespaces of every element in the document
+     */
+
+    public TinyTreeAppender(Configuration config, String systemId, NamespaceMap namespaces) {
+        this.statistics = config.getTreeStatistics().TEMPORARY_TREE_STATISTICS;
+        this.tree = new TinyTree(config, statistics);
+        this.namespaces = namespaces;
+        this.systemId = systemId;
+        tree.setUniformBaseUri(null);
+        root = new TinyDocumentImpl(tree);
+        root.setSystemId(systemId);
+        int nodeNr = tree.addDocumentNode(root);
+        tree.next[nodeNr] = -1;
+        prevAtDepth[0] = nodeNr;
+        prevAtDepth[1] = -1;
+        currentDepth = 1;
+    }
+
+    /**
+     * Get the name code to be used in the tree for a given element or attribute name. The caller
+     * can compute this once for each name that it uses
+     *
+     * @param name the name of the element or attribute
+     * @return the name code, combining the fingerprint and the code for the prefix
+     */
+
+    public int getNameCode(NodeName name) {
+        int fp = name.obtainFingerprint(tree.getNamePool());
+        String prefix = name.getPrefix();
+        return prefix.isEmpty() ? fp : (tree.prefixPool.obtainPrefixCode(prefix) << 20) | fp;
+    }
+
+    /**
+     * Start a new element
+     *
+     * @param nameCode the name code of the element, as returned by {@link #getNameCode(NodeName)}
+     */
+
+    public void startElement(int nameCode) {
+        TinyTree tt = tree;
+        if (siblingsAtDepth[currentDepth] > PARENT_POINTER_INTERVAL) {
+            int pointer = tt.addNode(Type.PARENT_POINTER, currentDepth, prevAtDepth[currentDepth - 1], 0, 0);
+            link(pointer);
+            siblingsAtDepth[currentDepth] = 0;
+        }
+        int nodeNr = tt.addNode(Type.ELEMENT, currentDepth, -1, -1, nameCode);
+        link(nodeNr);
+        siblingsAtDepth[currentDepth]++;
+        if (currentDepth == 1) {
+            tt.setSystemId(nodeNr, systemId);
+        }
+        tt.addNamespaces(nodeNr, namespaces);
+        currentElement = nodeNr;
+
+        currentDepth++;
+        if (currentDepth == prevAtDepth.length) {
+            prevAtDepth = Arrays.copyOf(prevAtDepth, currentDepth * 2);
+            siblingsAtDepth = Arrays.copyOf(siblingsAtDepth, currentDepth * 2);
+        }
+        prevAtDepth[currentDepth] = -1;
+        siblingsAtDepth[currentDepth] = 0;
+    }
+
+    /**
+     * Add an attribute to the element most recently started. This must be called before any
+     * children are added to the element
+     *
+     * @param nameCode the name code of the attribute, as returned by {@link #getNameCode(NodeName)}
+     * @param type     the type annotation of the attribute
+     * @param value    the value of the attribute
+     */
+
+    public void attribute(int nameCode, SimpleType type, String value) {
+        tree.addAttribute(root, currentElement, nameCode, type, value, 0);
+    }
+
+    /**
+     * Add a text node as a child of the current element. Adjacent text nodes are merged
+     *
+     * @param chars the content of the text node; if empty, no text node is added
+     */
+
+    public void characters(CharSequence chars) {
+        int len = chars.length();
+        if (len == 0) {
+            return;
+        }
+        TinyTree tt = tree;
+        int bufferStart = tt.getCharacterBuffer().length();
+        tt.appendChars(chars);
+        int n = tt.numberOfNodes - 1;
+        if (tt.nodeKind[n] == Type.TEXT && tt.depth[n] == currentDepth) {
+            tt.beta[n] += len;
+        } else {
+            int nodeNr = tt.addNode(Type.TEXT, currentDepth, bufferStart, len, -1);
+            link(nodeNr);
+            siblingsAtDepth[currentDepth]++;
+        }
+    }
+
+    /**
+     * End the current element
+     */
+
+    public void endElement() {
+        TinyTree tt = tree;
+        prevAtDepth[currentDepth] = -1;
+        siblingsAtDepth[currentDepth] = 0;
+        currentDepth--;
+        int n = tt.numberOfNodes - 1;
+        if (currentDepth > 1 &&
+                tt.nodeKind[n] == Type.TEXT &&
+                tt.nodeKind[n - 1] == Type.ELEMENT &&
+                tt.depth[n] == tt.depth[n - 1] + 1 &&
+                tt.alpha[n - 1] == -1) {
+            // Collapse an element whose only content is a text node into a single node, as TinyBuilder
+            // does. This is not done for the outermost element, which holds the namespace declarations
+            tt.nodeKind[n - 1] = Type.TEXTUAL_ELEMENT;
+            tt.alpha[n - 1] = tt.alpha[n];
+            tt.beta[n - 1] = tt.beta[n];
+            tt.numberOfNodes--;
+        }
+    }
+
+    /**
+     * Complete the document
+     *
+     * @return the document node of the constructed tree
+     */
+
+    public TinyDocumentImpl close() {
+        tree.addNode(Type.STOPPER, 0, 0, 0, -1);
+        tree.condense(statistics);
+        return root;
+    }
+
+    /**
+     * Link a newly added node to its preceding sibling, or to its parent if it is the last child
+     *
+     * @param nodeNr the node number of the new node
+     */
+
+    private void link(int nodeNr) {
+        int prev = prevAtDepth[currentDepth];
+        if (prev > 0) {
+            tree.next[prev] = nodeNr;
+        }
+        tree.next[nodeNr] = prevAtDepth[currentDepth - 1];   // owner pointer in last sibling
+        prevAtDepth[currentDepth] = nodeNr;
+    }
+}
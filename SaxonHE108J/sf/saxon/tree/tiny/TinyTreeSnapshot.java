@@ -0,0 +1,549 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.tree.tiny;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.*;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.util.FastStringBuffer;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.z.IntHashMap;
+import net.sf.saxon.z.IntHashSet;
+import net.sf.saxon.z.IntIterator;
+import net.sf.saxon.z.IntSet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Saves a TinyTree to a file in a compact binary format, and reloads it, so that a document
+ * that is used repeatedly does not need to be re-parsed.
+ * <p>The snapshot contains the node arrays of the tree, the text and comment buffers, the attribute
+ * and namespace tables, the base URIs established by xml:base, and a dictionary of the names used
+ * in the tree. Since name codes are local to a NamePool, the names are re-registered in the NamePool
+ * of the receiving Configuration when the snapshot is loaded, and the name codes in the tree are
+ * translated accordingly. Text and names are held in the file in UTF-8. The file is read sequentially
+ * through a buffer of fixed size, from which the arrays of the tree are filled in bulk, so there is no
+ * limit on the size of a snapshot other than the limits on the size of a tree.</p>
+ * <p>Only untyped trees can be saved: a tree that has been validated against a schema is rejected.
+ * Information that is recomputed on demand (such as the index of preceding siblings) is not saved.</p>
+ */
+
+public class TinyTreeSnapshot {
+
+    private final static int MAGIC = 0x53585454;   // "SXTT"
+    private final static int VERSION = 3;
+    private final static int CHUNK = 65536;
+
+    private TinyTreeSnapshot() {
+    }
+
+    /**
+     * Write a snapshot of a TinyTree to a file
+     *
+     * @param tree the tree to be saved
+     * @param file the file to be written
+     * @throws XPathException if the tree cannot be saved (for example because it is schema-validated),
+     *                        or if an I/O error occurs
+     */
+
+    public static void save(TinyTree tree, File file) throws XPathException {
+        if (tree.typeArray != null || tree.attType != null) {
+            throw new XPathException("Cannot save a snapshot of a schema-validated document");
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), CHUNK))) {
+            write(tree, out);
+        } catch (IOException e) {
+            throw new XPathException("Failed to write tree snapshot " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void write(TinyTree tree, DataOutputStream out) throws IOException {
+        int nodes = tree.numberOfNodes;
+        int atts = tree.numberOfAttributes;
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        // Name dictionary: the prefix codes, and the fingerprints in use with their URIs and local names
+        NamePool pool = tree.getNamePool();
+        IntHashSet fingerprints = new IntHashSet();
+        int maxPrefix = 0;
+        for (int i = 0; i < nodes; i++) {
+            int code = tree.nameCode[i];
+            if (isNamed(tree.nodeKind[i], code)) {
+                fingerprints.add(code & NamePool.FP_MASK);
+                maxPrefix = Math.max(maxPrefix, code >> 20);
+            }
+        }
+        for (int i = 0; i < atts; i++) {
+            int code = tree.attCode[i];
+            fingerprints.add(code & NamePool.FP_MASK);
+            maxPrefix = Math.max(maxPrefix, code >> 20);
+        }
+        out.writeInt(maxPrefix);
+        for (int p = 1; p <= maxPrefix; p++) {
+            writeString(out, tree.prefixPool.getPrefix(p));
+        }
+        out.writeInt(fingerprints.size());
+        IntIterator fps = fingerprints.iterator();
+        while (fps.hasNext()) {
+            int fp = fps.next();
+            out.writeInt(fp);
+            writeString(out, pool.getURI(fp));
+            writeString(out, pool.getLocalName(fp));
+        }
+
+        // Node arrays
+        out.writeInt(nodes);
+        out.write(tree.nodeKind, 0, nodes);
+        for (int i = 0; i < nodes; i++) {
+            out.writeShort(tree.depth[i]);
+        }
+        writeInts(out, tree.next, nodes);
+        writeInts(out, tree.alpha, nodes);
+        writeInts(out, tree.beta, nodes);
+        writeInts(out, tree.nameCode, nodes);
+
+        // Attributes
+        out.writeInt(atts);
+        writeInts(out, tree.attParent, atts);
+        writeInts(out, tree.attCode, atts);
+        for (int i = 0; i < atts; i++) {
+            writeString(out, tree.attValue[i].toString());
+        }
+
+        // Namespaces
+        out.writeBoolean(tree.usesNamespaces);
+        out.writeInt(tree.numberOfNamespaces);
+        for (int i = 0; i < tree.numberOfNamespaces; i++) {
+            NamespaceMap map = tree.namespaceMaps[i];
+            out.writeInt(map.size());
+            for (NamespaceBinding binding : map) {
+                writeString(out, binding.getPrefix());
+                writeString(out, binding.getURI());
+            }
+        }
+
+        // Text and comments
+        writeChars(out, tree.charBuffer);
+        writeChars(out, tree.commentBuffer);
+
+        // System IDs and base URIs
+        writeString(out, tree.getUniformBaseUri());
+        NodeInfo root = tree.getRootNode();
+        writeString(out, root instanceof TinyDocumentImpl ? root.getBaseURI() : null);
+        String previous = null;
+        List<Integer> changes = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            String systemId = tree.getSystemId(i);
+            if (systemId != null && !systemId.equals(previous)) {
+                changes.add(i);
+                previous = systemId;
+            }
+        }
+        out.writeInt(changes.size());
+        for (int nr : changes) {
+            out.writeInt(nr);
+            writeString(out, tree.getSystemId(nr));
+        }
+
+        // Base URIs of elements that carry xml:base or start an external entity; other elements
+        // inherit their base URI from these
+        List<Integer> baseNodes = new ArrayList<>();
+        if (tree.getUniformBaseUri() == null) {
+            for (int i = 0; i < nodes; i++) {
+                if (tree.nodeKind[i] == Type.ELEMENT && (hasXmlBase(tree, i) || tree.isTopWithinEntity(i))) {
+                    baseNodes.add(i);
+                }
+            }
+        }
+        out.writeInt(baseNodes.size());
+        for (int nr : baseNodes) {
+            out.writeInt(nr);
+            writeString(out, tree.getNode(nr).getBaseURI());
+        }
+
+        // Line numbers
+        int[] lines = tree.getLineNumberArray();
+        out.writeBoolean(lines != null);
+        if (lines != null) {
+            writeInts(out, lines, nodes);
+            writeInts(out, tree.getColumnNumberArray(), nodes);
+        }
+
+        // IDs, IDREF attributes, unparsed entities, entity boundaries, defaulted attributes
+        Map<String, NodeInfo> ids = tree.getIdTable();
+        out.writeInt(ids == null ? 0 : ids.size());
+        if (ids != null) {
+            for (Map.Entry<String, NodeInfo> entry : ids.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(((TinyNodeImpl) entry.getValue()).getNodeNumber());
+            }
+        }
+        writeIntSet(out, tree.idRefAttributes);
+        out.writeInt(tree.entityTable == null ? 0 : tree.entityTable.size());
+        if (tree.entityTable != null) {
+            for (Map.Entry<String, String[]> entry : tree.entityTable.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue()[0]);
+                writeString(out, entry.getValue()[1]);
+            }
+        }
+        writeIntSet(out, tree.topWithinEntity);
+        writeIntSet(out, tree.defaultedAttributes);
+        out.writeInt(MAGIC);
+    }
+
+    private static boolean hasXmlBase(TinyTree tree, int nodeNr) {
+        for (int a = tree.alpha[nodeNr]; a >= 0 && a < tree.numberOfAttributes && tree.attParent[a] == nodeNr; a++) {
+            if ((tree.attCode[a] & NamePool.FP_MASK) == StandardNames.XML_BASE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    private static void writeIntSet(DataOutputStream out, IntSet set) throws IOException {
+        if (set == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(set.size());
+        IntIterator iter = set.iterator();
+        while (iter.hasNext()) {
+            out.writeInt(iter.next());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Write a possibly very long sequence of characters, as its length in characters followed by a
+     * sequence of chunks, each being a byte count followed by UTF-8 bytes. A chunk never ends in the
+     * middle of a surrogate pair.
+     */
+
+    private static void writeChars(DataOutputStream out, CharSequence value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        int length = value.length();
+        out.writeInt(length);
+        int start = 0;
+        while (start < length) {
+            int end = Math.min(length, start + CHUNK);
+            if (end < length && Character.isHighSurrogate(value.charAt(end - 1))) {
+                end--;
+            }
+            writeString(out, value.subSequence(start, end).toString());
+            start = end;
+        }
+    }
+
+    /**
+     * Load a TinyTree from a snapshot file
+     *
+     * @param config the Saxon configuration. The names used in the document are registered in
+     *               the NamePool of this configuration.
+     * @param file   the file containing the snapshot, previously written using {@link #save}
+     * @return the reconstructed tree
+     * @throws XPathException if the file cannot be read or is not a valid snapshot
+     */
+
+    public static TinyTree load(Configuration config, File file) throws XPathException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            return read(config, new SnapshotInput(channel));
+        } catch (IOException | RuntimeException e) {
+            throw new XPathException("Failed to read tree snapshot " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static TinyTree read(Configuration config, SnapshotInput in) throws XPathException, IOException {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new XPathException("Not a tree snapshot, or written by an incompatible version");
+        }
+
+        // Name dictionary
+        int maxPrefix = in.getInt();
+        String[] prefixes = new String[maxPrefix + 1];
+        for (int p = 1; p <= maxPrefix; p++) {
+            prefixes[p] = readString(in);
+        }
+        NamePool pool = config.getNamePool();
+        int names = in.getInt();
+        IntHashMap<Integer> fingerprintMap = new IntHashMap<>(names);
+        for (int i = 0; i < names; i++) {
+            int fp = in.getInt();
+            String uri = readString(in);
+            String local = readString(in);
+            fingerprintMap.put(fp, pool.allocateFingerprint(uri, local));
+        }
+
+        // The arrays allocated by the constructor are replaced, so start with the smallest possible size
+        TinyTree tree = new TinyTree(config, new Statistics(0, 0, 0, 0));
+        for (int p = 1; p <= maxPrefix; p++) {
+            tree.prefixPool.obtainPrefixCode(prefixes[p]);
+        }
+
+        // Node arrays
+        int nodes = in.getInt();
+        tree.numberOfNodes = nodes;
+        in.getBytes(tree.nodeKind = new byte[nodes]);
+        in.getShorts(tree.depth = new short[nodes]);
+        tree.next = readInts(in, nodes);
+        tree.alpha = readInts(in, nodes);
+        tree.beta = readInts(in, nodes);
+        tree.nameCode = readInts(in, nodes);
+        for (int i = 0; i < nodes; i++) {
+            int code = tree.nameCode[i];
+            if (isNamed(tree.nodeKind[i], code)) {
+                tree.nameCode[i] = translateNameCode(code, fingerprintMap);
+            }
+        }
+
+        // Attributes
+        int atts = in.getInt();
+        tree.numberOfAttributes = atts;
+        tree.attParent = readInts(in, atts);
+        tree.attCode = readInts(in, atts);
+        for (int i = 0; i < atts; i++) {
+            tree.attCode[i] = translateNameCode(tree.attCode[i], fingerprintMap);
+        }
+        tree.attValue = new String[atts];
+        for (int i = 0; i < atts; i++) {
+            tree.attValue[i] = readString(in);
+        }
+
+        // Namespaces
+        tree.usesNamespaces = in.get() != 0;
+        int namespaces = in.getInt();
+        tree.numberOfNamespaces = namespaces;
+        tree.namespaceMaps = new NamespaceMap[namespaces];
+        for (int i = 0; i < namespaces; i++) {
+            int bindings = in.getInt();
+            List<NamespaceBinding> list = new ArrayList<>(bindings);
+            for (int b = 0; b < bindings; b++) {
+                String prefix = readString(in);
+                String uri = readString(in);
+                list.add(new NamespaceBinding(prefix, uri));
+            }
+            tree.namespaceMaps[i] = new NamespaceMap(list);
+        }
+
+        // Text and comments
+        int length = in.getInt();
+        if (length > 0) {
+            readChars(in, length, tree::appendChars);
+        }
+        length = in.getInt();
+        if (length >= 0) {
+            FastStringBuffer comments = new FastStringBuffer(Math.max(length, FastStringBuffer.C16));
+            readChars(in, length, comments::cat);
+            tree.commentBuffer = comments;
+        }
+
+        tree.setDocumentNumber(config.getDocumentNumberAllocator().allocateDocumentNumber());
+
+        // System IDs and base URIs
+        tree.setUniformBaseUri(readString(in));
+        String baseUri = readString(in);
+        int changes = in.getInt();
+        for (int i = 0; i < changes; i++) {
+            int nr = in.getInt();
+            tree.setSystemId(nr, readString(in));
+        }
+        NodeInfo root = tree.getRootNode();
+        if (root instanceof TinyDocumentImpl && baseUri != null) {
+            ((TinyDocumentImpl) root).setBaseURI(baseUri);
+        }
+        int baseNodes = in.getInt();
+        if (baseNodes > 0) {
+            tree.knownBaseUris = new IntHashMap<>(baseNodes);
+            for (int i = 0; i < baseNodes; i++) {
+                int nr = in.getInt();
+                tree.knownBaseUris.put(nr, readString(in));
+            }
+        }
+
+        // Line numbers
+        if (in.get() != 0) {
+            tree.setLineNumbering();
+            int[] lines = readInts(in, nodes);
+            int[] columns = readInts(in, nodes);
+            for (int i = 0; i < nodes; i++) {
+                tree.setLineNumber(i, lines[i], columns[i]);
+            }
+        }
+
+        // IDs, IDREF attributes, unparsed entities, entity boundaries, defaulted attributes
+        int ids = in.getInt();
+        for (int i = 0; i < ids; i++) {
+            String id = readString(in);
+            tree.registerID(tree.getNode(in.getInt()), id);
+        }
+        tree.idRefAttributes = readIntSet(in);
+        int entities = in.getInt();
+        for (int i = 0; i < entities; i++) {
+            String name = readString(in);
+            String uri = readString(in);
+            tree.setUnparsedEntity(name, uri, readString(in));
+        }
+        tree.topWithinEntity = readIntSet(in);
+        tree.defaultedAttributes = readIntSet(in);
+        if (in.getInt() != MAGIC) {
+            throw new XPathException("Tree snapshot is corrupt");
+        }
+        return tree;
+    }
+
+    /**
+     * Ask whether the nameCode entry for a node holds a name. For other kinds of node (such as parent
+     * pointers) the entry may hold an arbitrary value.
+     */
+
+    private static boolean isNamed(byte kind, int code) {
+        return code != -1 &&
+                (kind == Type.ELEMENT || kind == Type.TEXTUAL_ELEMENT || kind == Type.PROCESSING_INSTRUCTION);
+    }
+
+    private static int translateNameCode(int code, IntHashMap<Integer> fingerprintMap) {
+        return (code & ~NamePool.FP_MASK) | fingerprintMap.get(code & NamePool.FP_MASK);
+    }
+
+    private static int[] readInts(SnapshotInput in, int count) throws IOException {
+        int[] values = new int[count];
+        in.getInts(values);
+        return values;
+    }
+
+    private static IntSet readIntSet(SnapshotInput in) throws IOException {
+        int size = in.getInt();
+        if (size == 0) {
+            return null;
+        }
+        IntHashSet set = new IntHashSet(size);
+        for (int i = 0; i < size; i++) {
+            set.add(in.getInt());
+        }
+        return set;
+    }
+
+    private static String readString(SnapshotInput in) throws IOException {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.getBytes(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void readChars(SnapshotInput in, int length, Consumer<CharSequence> destination) throws IOException {
+        int done = 0;
+        while (done < length) {
+            String chunk = readString(in);
+            destination.accept(chunk);
+            done += chunk.length();
+        }
+    }
+
+    /**
+     * Reads the primitive values in a snapshot from a channel, through a buffer of fixed size
+     */
+
+    private static final class SnapshotInput {
+
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK * 4);
+
+        SnapshotInput(ReadableByteChannel channel) {
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        /**
+         * Ensure that the buffer holds at least a given number of bytes
+         *
+         * @param n the number of bytes required, which must not exceed the capacity of the buffer
+         * @throws IOException if the end of the file is reached
+         */
+
+        private void require(int n) throws IOException {
+            if (buffer.remaining() < n) {
+                buffer.compact();
+                while (buffer.position() < n) {
+                    if (channel.read(buffer) < 0) {
+                        throw new EOFException("Tree snapshot is truncated");
+                    }
+                }
+                buffer.flip();
+            }
+        }
+
+        byte get() throws IOException {
+            require(1);
+            return buffer.get();
+        }
+
+        int getInt() throws IOException {
+            require(4);
+            return buffer.getInt();
+        }
+
+        void getBytes(byte[] dest) throws IOException {
+            for (int done = 0; done < dest.length; ) {
+                int n = Math.min(dest.length - done, buffer.capacity());
+                require(n);
+                buffer.get(dest, done, n);
+                done += n;
+            }
+        }
+
+        void getShorts(short[] dest) throws IOException {
+            for (int done = 0; done < dest.length; ) {
+                int n = Math.min(dest.length - done, buffer.capacity() / 2);
+                require(n * 2);
+                buffer.asShortBuffer().get(dest, done, n);
+                buffer.position(buffer.position() + n * 2);
+                done += n;
+            }
+        }
+
+        void getInts(int[] dest) throws IOException {
+            for (int done = 0; done < dest.length; ) {
+                int n = Math.min(dest.length - done, buffer.capacity() / 4);
+                require(n * 4);
+                buffer.asIntBuffer().get(dest, done, n);
+                buffer.position(buffer.position() + n * 4);
+                done += n;
+            }
+        }
+    }
+}
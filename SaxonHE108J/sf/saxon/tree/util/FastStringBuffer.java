@@ -9,6 +9,7 @@ package net.sf.saxon.tree.util;
 
 import net.sf.saxon.regex.BMPString;
 import net.sf.saxon.regex.GeneralUnicodeString;
+import net.sf.saxon.regex.LatinString;
 import net.sf.saxon.regex.UnicodeString;
 import net.sf.saxon.serialize.charcode.UTF16CharacterSet;
 import net.sf.saxon.tree.tiny.AppendableCharSequence;
@@ -142,6 +143,8 @@ public final class FastStringBuffer implements AppendableCharSequence, CharSeque
             ((String) s).getChars(0, len, array, used);
         } else if (s instanceof FastStringBuffer) {
             ((FastStringBuffer) s).getChars(0, len, array, used);
+        } else if (s instanceof LatinString) {
+            ((LatinString) s).getChars(0, len, array, used);
         } else if (s instanceof CompressedWhitespace) {
             ((CompressedWhitespace) s).uncompress(this);
             return this;
@@ -50,6 +50,13 @@ public class StringValue extends AtomicValue {
      * Constructor. Note that although a StringValue may wrap any kind of CharSequence
      * (usually a String, but it can also be, for example, a StringBuffer), the caller
      * is responsible for ensuring that the value is immutable.
+     * <p>A java.lang.String is held as supplied, even if all its characters are in the Latin-1 range.
+     * On Java 8 (and on IKVM) such a String occupies two bytes per character, but converting every
+     * value eagerly would add a scan and a copy to the construction of values that are mostly short-lived,
+     * and {@link #getStringValue()} would then have to rebuild the String on each call. Instead, the
+     * value is replaced by a {@link LatinString}, using one byte per character, the first time it is
+     * used as a {@link UnicodeString} (for example by regular expression matching, substring(),
+     * or string-length()).</p>
      *
      * @param value the String value. Null is taken as equivalent to "".
      */
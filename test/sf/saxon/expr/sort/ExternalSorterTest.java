@@ -0,0 +1,249 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.expr.sort;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XQueryCompiler;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XdmNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ExternalSorter}, checking that sorting with runs spilled to temporary files gives the same
+ * result as an in-memory stable sort, and that the temporary files are deleted
+ */
+
+public class ExternalSorterTest {
+
+    private File directory;
+
+    private static class Record {
+        final int key;
+        final int position;
+
+        Record(int key, int position) {
+            this.key = key;
+            this.position = position;
+        }
+
+        @Override
+        public String toString() {
+            return key + "@" + position;
+        }
+    }
+
+    private static final Comparator<Record> BY_KEY_THEN_POSITION =
+            Comparator.<Record>comparingInt(r -> r.key).thenComparingInt(r -> r.position);
+
+    // Records with a negative key are treated as not encodable
+    private static final SortRecordCodec<Record> CODEC = new SortRecordCodec<Record>() {
+        @Override
+        public boolean isEncodable(Record record) {
+            return record.key >= 0;
+        }
+
+        @Override
+        public void write(Record record, DataOutputStream out) throws IOException {
+            out.writeInt(record.key);
+            out.writeInt(record.position);
+        }
+
+        @Override
+        public Record read(DataInputStream in) throws IOException {
+            return new Record(in.readInt(), in.readInt());
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("externalsortertest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private Configuration makeConfiguration(int threshold) {
+        Configuration config = new Configuration();
+        config.setSortSpillThreshold(threshold);
+        config.setSortSpillDirectory(directory);
+        return config;
+    }
+
+    private int countTemporaryFiles() {
+        String[] names = directory.list();
+        return names == null ? 0 : names.length;
+    }
+
+    private static List<Record> randomRecords(int count, int range, Random random) {
+        List<Record> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(new Record(random.nextInt(range), i));
+        }
+        return records;
+    }
+
+    private List<Record> sortExternally(List<Record> records, int threshold) throws Exception {
+        try (ExternalSorter<Record> sorter =
+                     new ExternalSorter<>(makeConfiguration(threshold), BY_KEY_THEN_POSITION, CODEC)) {
+            for (Record record : records) {
+                sorter.add(record);
+            }
+            assertEquals(records.size(), sorter.size());
+            List<Record> result = new ArrayList<>(records.size());
+            Iterator<Record> iter = sorter.iterator();
+            while (iter.hasNext()) {
+                result.add(iter.next());
+            }
+            return result;
+        }
+    }
+
+    private static List<Record> sortInMemory(List<Record> records) {
+        List<Record> sorted = new ArrayList<>(records);
+        sorted.sort(Comparator.comparingInt(r -> r.key));    // a stable sort
+        return sorted;
+    }
+
+    @Test
+    public void testSingleMergePass() throws Exception {
+        List<Record> records = randomRecords(10000, 500, new Random(1));
+        assertEquals(sortInMemory(records).toString(), sortExternally(records, 1000).toString());
+        assertEquals(0, countTemporaryFiles());
+    }
+
+    @Test
+    public void testIntermediateMerges() throws Exception {
+        // More runs than can be merged in one pass
+        List<Record> records = randomRecords(50000, 1000, new Random(2));
+        assertEquals(sortInMemory(records).toString(), sortExternally(records, 100).toString());
+        assertEquals(0, countTemporaryFiles());
+    }
+
+    @Test
+    public void testNoSpill() throws Exception {
+        List<Record> records = randomRecords(500, 50, new Random(3));
+        try (ExternalSorter<Record> sorter =
+                     new ExternalSorter<>(makeConfiguration(1000), BY_KEY_THEN_POSITION, CODEC)) {
+            for (Record record : records) {
+                sorter.add(record);
+            }
+            assertFalse(sorter.hasSpilled());
+            assertEquals(0, countTemporaryFiles());
+        }
+        assertEquals(sortInMemory(records).toString(), sortExternally(records, 1000).toString());
+    }
+
+    @Test
+    public void testUnencodableRecord() throws Exception {
+        // Once a record cannot be encoded, the remaining records are held in memory
+        List<Record> records = randomRecords(5000, 100, new Random(4));
+        records.set(2500, new Record(-1, 2500));
+        assertEquals(sortInMemory(records).toString(), sortExternally(records, 300).toString());
+        assertEquals(0, countTemporaryFiles());
+    }
+
+    @Test
+    public void testAbandonedIteration() throws Exception {
+        List<Record> records = randomRecords(5000, 100, new Random(5));
+        ExternalSorter<Record> sorter = new ExternalSorter<>(makeConfiguration(200), BY_KEY_THEN_POSITION, CODEC);
+        for (Record record : records) {
+            sorter.add(record);
+        }
+        assertTrue(sorter.hasSpilled());
+        assertEquals(25, countTemporaryFiles());
+        Iterator<Record> iter = sorter.iterator();
+        for (int i = 0; i < 10; i++) {
+            iter.next();
+        }
+        sorter.close();
+        assertEquals(0, countTemporaryFiles());
+    }
+
+    @Test
+    public void testClosedBeforeIteration() throws Exception {
+        ExternalSorter<Record> sorter = new ExternalSorter<>(makeConfiguration(200), BY_KEY_THEN_POSITION, CODEC);
+        for (Record record : randomRecords(1000, 100, new Random(6))) {
+            sorter.add(record);
+        }
+        assertTrue(countTemporaryFiles() > 0);
+        sorter.close();
+        assertEquals(0, countTemporaryFiles());
+    }
+
+    private static String runQueries(Processor processor) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        XQueryCompiler xquery = processor.newXQueryCompiler();
+        String[] queries = {
+                "for $i in 1 to 5000 let $k := ($i * 7919) mod 1000 order by $k descending, string($i) " +
+                        "return $i",
+                "for $i in 1 to 3000 order by codepoints-to-string(97 + $i mod 26) || string($i mod 17) " +
+                        "return $i",
+                "sort((1 to 4000) ! (. * 31 mod 997), (), function($x) {-$x})",
+                "for $i in 1 to 3000 order by ($i mod 13, $i mod 7)[1], $i mod 2 = 0 return $i"
+        };
+        for (String query : queries) {
+            XdmValue result = xquery.compile(query).load().evaluate();
+            sb.append(result.toString()).append('\n');
+        }
+
+        StringBuilder xml = new StringBuilder("<r>");
+        for (int i = 0; i < 2000; i++) {
+            xml.append("<e k='").append((i * 37) % 101).append("' n='").append(i).append("'/>");
+        }
+        xml.append("</r>");
+        XdmNode doc = processor.newDocumentBuilder().build(new StreamSource(new StringReader(xml.toString())));
+        XsltCompiler xslt = processor.newXsltCompiler();
+        String stylesheet =
+                "<xsl:stylesheet version='3.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+                "<xsl:template match='/'><out><xsl:for-each select='//e'>" +
+                "<xsl:sort select='@k' data-type='number'/><xsl:sort select='@n' order='descending'/>" +
+                "<xsl:value-of select='@n'/>,</xsl:for-each></out></xsl:template></xsl:stylesheet>";
+        sb.append(xslt.compile(new StreamSource(new StringReader(stylesheet)))
+                          .load30().applyTemplates(doc).toString());
+        return sb.toString();
+    }
+
+    @Test
+    public void testQueriesAndStylesheets() throws Exception {
+        String expected = runQueries(new Processor(false));
+        Processor processor = new Processor(false);
+        processor.getUnderlyingConfiguration().setSortSpillThreshold(50);
+        processor.getUnderlyingConfiguration().setSortSpillDirectory(directory);
+        assertEquals(expected, runQueries(processor));
+        assertEquals(0, countTemporaryFiles());
+    }
+}
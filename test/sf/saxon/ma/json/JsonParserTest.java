@@ -0,0 +1,359 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.ma.json;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.trans.XPathException;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for incremental parsing of JSON text supplied through a Reader. The events notified by the parser
+ * are compared with those expected for randomly generated JSON texts, both when the text is supplied as
+ * a string and when it is read in small pieces, so that tokens are split across refills of the buffer.
+ */
+
+public class JsonParserTest {
+
+    /**
+     * A handler that records the parsing events as a string
+     */
+
+    private static class RecordingHandler extends JsonHandler {
+
+        private final StringBuilder events = new StringBuilder();
+
+        @Override
+        public String reEscape(String val) {
+            return val;
+        }
+
+        @Override
+        public boolean setKey(String unEscaped, String reEscaped) {
+            events.append("key(").append(unEscaped).append(')');
+            return false;
+        }
+
+        @Override
+        public void startArray() {
+            events.append('[');
+        }
+
+        @Override
+        public void endArray() {
+            events.append(']');
+        }
+
+        @Override
+        public void startMap() {
+            events.append('{');
+        }
+
+        @Override
+        public void endMap() {
+            events.append('}');
+        }
+
+        @Override
+        public void writeNumeric(String asString, double asDouble) {
+            events.append("num(").append(asString).append('=').append(asDouble).append(')');
+        }
+
+        @Override
+        public void writeString(String val) {
+            events.append("str(").append(val).append(')');
+        }
+
+        @Override
+        public void writeBoolean(boolean value) {
+            events.append(value);
+        }
+
+        @Override
+        public void writeNull() {
+            events.append("null");
+        }
+    }
+
+    /**
+     * A Reader that delivers its input a few characters at a time
+     */
+
+    private static class TrickleReader extends Reader {
+
+        private final String input;
+        private final Random random;
+        private int position = 0;
+
+        TrickleReader(String input, Random random) {
+            this.input = input;
+            this.random = random;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (position >= input.length()) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, 1 + random.nextInt(7)), input.length() - position);
+            input.getChars(position, position + n, cbuf, off);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Generate a random JSON text, together with the events that parsing it should produce
+     */
+
+    private static class Generator {
+
+        private final Random random;
+        final StringBuilder json = new StringBuilder();
+        final StringBuilder events = new StringBuilder();
+
+        Generator(Random random) {
+            this.random = random;
+        }
+
+        private void space() {
+            String[] spaces = {"", "", " ", "\n", "\r\n  ", "\t"};
+            json.append(spaces[random.nextInt(spaces.length)]);
+        }
+
+        private String string() {
+            StringBuilder value = new StringBuilder();
+            json.append('"');
+            int length = random.nextInt(20) == 0 ? 5000 + random.nextInt(10000) : random.nextInt(12);
+            for (int i = 0; i < length; i++) {
+                switch (random.nextInt(12)) {
+                    case 0:
+                        json.append("\\n");
+                        value.append('\n');
+                        break;
+                    case 1:
+                        json.append("\\\"");
+                        value.append('"');
+                        break;
+                    case 2:
+                        json.append("\\u00e9");
+                        value.append('\u00e9');
+                        break;
+                    case 3:
+                        json.append("\\uD83D\\uDE00");
+                        value.append("\uD83D\uDE00");
+                        break;
+                    case 4:
+                        json.append("\uD83D\uDE01");
+                        value.append("\uD83D\uDE01");
+                        break;
+                    case 5:
+                        json.append("\\\\");
+                        value.append('\\');
+                        break;
+                    default:
+                        char c = (char) ('a' + random.nextInt(26));
+                        json.append(c);
+                        value.append(c);
+                }
+            }
+            json.append('"');
+            return value.toString();
+        }
+
+        private void number() {
+            String[] numbers = {"0", "-1", "12345678901234567890", "3.25", "-0.5e-3", "6E+2", "1e400"};
+            String lexical = numbers[random.nextInt(numbers.length)];
+            json.append(lexical);
+            events.append("num(").append(lexical).append('=').append(Double.parseDouble(lexical)).append(')');
+        }
+
+        void value(int depth) {
+            space();
+            switch (random.nextInt(depth > 5 ? 5 : 7)) {
+                case 0:
+                    number();
+                    break;
+                case 1:
+                    events.append("str(").append(string()).append(')');
+                    break;
+                case 2:
+                    json.append("true");
+                    events.append("true");
+                    break;
+                case 3:
+                    json.append("false");
+                    events.append("false");
+                    break;
+                case 4:
+                    json.append("null");
+                    events.append("null");
+                    break;
+                case 5: {
+                    json.append('[');
+                    events.append('[');
+                    int n = random.nextInt(6);
+                    for (int i = 0; i < n; i++) {
+                        if (i > 0) {
+                            json.append(',');
+                        }
+                        value(depth + 1);
+                    }
+                    space();
+                    json.append(']');
+                    events.append(']');
+                    break;
+                }
+                default: {
+                    json.append('{');
+                    events.append('{');
+                    int n = random.nextInt(6);
+                    for (int i = 0; i < n; i++) {
+                        if (i > 0) {
+                            json.append(',');
+                        }
+                        space();
+                        events.append("key(").append(string()).append(')');
+                        space();
+                        json.append(':');
+                        value(depth + 1);
+                    }
+                    space();
+                    json.append('}');
+                    events.append('}');
+                    break;
+                }
+            }
+            space();
+        }
+    }
+
+    private static String parse(Reader reader) throws XPathException, IOException {
+        RecordingHandler handler = new RecordingHandler();
+        new JsonParser().parse(reader, JsonParser.ALLOW_ANY_TOP_LEVEL, handler, null);
+        return handler.events.toString();
+    }
+
+    private static String parse(String input) throws XPathException {
+        RecordingHandler handler = new RecordingHandler();
+        new JsonParser().parse(input, JsonParser.ALLOW_ANY_TOP_LEVEL, handler, null);
+        return handler.events.toString();
+    }
+
+    @Test
+    public void testRandomDocuments() throws Exception {
+        Random random = new Random(4242);
+        for (int i = 0; i < 500; i++) {
+            Generator generator = new Generator(random);
+            generator.value(0);
+            String json = generator.json.toString();
+            String expected = generator.events.toString();
+            assertEquals(json, expected, parse(json));
+            assertEquals(json, expected, parse(new TrickleReader(json, random)));
+        }
+    }
+
+    @Test
+    public void testLongDocument() throws Exception {
+        // A document much larger than the tokenizer's buffer, in which tokens straddle the buffer boundaries
+        Random random = new Random(17);
+        Generator generator = new Generator(random);
+        generator.json.append('[');
+        generator.events.append('[');
+        for (int i = 0; i < 2000; i++) {
+            if (i > 0) {
+                generator.json.append(',');
+            }
+            generator.value(1);
+        }
+        generator.json.append(']');
+        generator.events.append(']');
+        String json = generator.json.toString();
+        assertTrue(json.length() > 100000);
+        assertEquals(generator.events.toString(), parse(new StringReader(json)));
+        assertEquals(generator.events.toString(), parse(new TrickleReader(json, random)));
+    }
+
+    @Test
+    public void testByteOrderMark() throws Exception {
+        assertEquals("[num(1=1.0)]", parse(new TrickleReader("\ufeff[1]", new Random(1))));
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        String[] invalid = {"", "\ufeff", "[1,\n2,\n]", "{\"a\" 1}", "[1] 2", "\"abc", "[1,\n\n\"\\q\"]",
+                "{\"a\":1,}", "[tru]", "[1.]", "\n\n\n[-]"};
+        for (String json : invalid) {
+            XPathException fromString = null;
+            XPathException fromReader = null;
+            try {
+                parse(json);
+            } catch (XPathException e) {
+                fromString = e;
+            }
+            try {
+                parse(new TrickleReader(json, new Random(3)));
+            } catch (XPathException e) {
+                fromReader = e;
+            }
+            assertNotNull(json, fromString);
+            assertNotNull(json, fromReader);
+            assertEquals(json, fromString.getErrorCodeLocalPart(), fromReader.getErrorCodeLocalPart());
+            assertEquals(json, fromString.getMessage(), fromReader.getMessage());
+        }
+    }
+
+    @Test
+    public void testJsonDocMatchesParseJson() throws Exception {
+        Generator generator = new Generator(new Random(99));
+        generator.value(0);
+        File file = File.createTempFile("jsonparsertest", ".json");
+        try {
+            try (Writer writer = new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+                writer.write("[");
+                for (int i = 0; i < 200; i++) {
+                    if (i > 0) {
+                        writer.write(",");
+                    }
+                    writer.write(generator.json.toString());
+                }
+                writer.write("]");
+            }
+            Processor processor = new Processor(false);
+            XPathCompiler compiler = processor.newXPathCompiler();
+            compiler.declareVariable(new QName("uri"));
+            XPathSelector selector = compiler.compile(
+                    "deep-equal(json-doc($uri), parse-json(unparsed-text($uri))) and count(json-doc($uri)?*) = 200").load();
+            selector.setVariable(new QName("uri"), new XdmAtomicValue(file.toURI().toString()));
+            assertTrue(((XdmAtomicValue) selector.evaluateSingle()).getBooleanValue());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.ma.parray;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link ImmListRRB}, checking the results of sequences of random operations against
+ * the same operations applied to a {@link java.util.ArrayList}
+ */
+
+public class ImmListRRBTest {
+
+    private static List<Integer> range(int start, int count) {
+        List<Integer> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(start + i);
+        }
+        return list;
+    }
+
+    private static void assertSameMembers(List<Integer> expected, ImmList<Integer> actual) {
+        assertEquals("size", expected.size(), actual.size());
+        assertEquals(expected.isEmpty(), actual.isEmpty());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("member " + i, expected.get(i), actual.get(i));
+        }
+        Iterator<Integer> iter = actual.iterator();
+        for (Integer member : expected) {
+            assertTrue(iter.hasNext());
+            assertEquals(member, iter.next());
+        }
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testFromMembers() {
+        for (int size : new int[]{1, 2, 31, 32, 33, 1024, 1025, 1056, 40000}) {
+            List<Integer> expected = range(0, size);
+            assertSameMembers(expected, ImmListRRB.fromMembers(expected));
+        }
+    }
+
+    @Test
+    public void testAppend() {
+        List<Integer> expected = new ArrayList<>();
+        ImmList<Integer> actual = ImmList.empty();
+        for (int i = 0; i < 70000; i++) {
+            expected.add(i);
+            actual = actual.append(i);
+        }
+        assertSameMembers(expected, actual);
+    }
+
+    @Test
+    public void testConcatenation() {
+        int[] sizes = {0, 1, 5, 31, 32, 33, 64, 100, 1023, 1024, 1025, 1100, 33000};
+        for (int a : sizes) {
+            for (int b : sizes) {
+                List<Integer> left = range(0, a);
+                List<Integer> right = range(a, b);
+                List<Integer> expected = new ArrayList<>(left);
+                expected.addAll(right);
+                assertSameMembers(expected, ImmList.fromList(left).appendList(ImmList.fromList(right)));
+            }
+        }
+    }
+
+    @Test
+    public void testSubList() {
+        List<Integer> expected = range(0, 5000);
+        ImmList<Integer> actual = ImmListRRB.fromMembers(expected);
+        Random random = new Random(2718);
+        for (int i = 0; i < 500; i++) {
+            int start = random.nextInt(expected.size() + 1);
+            int end = start + random.nextInt(expected.size() - start + 1);
+            assertSameMembers(expected.subList(start, end), actual.subList(start, end));
+        }
+        assertSameMembers(expected.subList(5000, 5000), actual.subList(5000, 5000));
+    }
+
+    @Test
+    public void testOutOfBounds() {
+        ImmList<Integer> list = ImmListRRB.fromMembers(range(0, 100));
+        try {
+            list.get(100);
+            fail("get(100) succeeded");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            list.subList(50, 101);
+            fail("subList(50, 101) succeeded");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRandomOperations() {
+        Random random = new Random(31415);
+        List<Integer> expected = new ArrayList<>();
+        ImmList<Integer> actual = ImmList.empty();
+        int next = 0;
+        for (int step = 0; step < 20000; step++) {
+            int size = expected.size();
+            int op = random.nextInt(size < 10 ? 3 : 7);
+            switch (op) {
+                case 0: {
+                    expected.add(next);
+                    actual = actual.append(next++);
+                    break;
+                }
+                case 1: {
+                    int count = random.nextInt(random.nextBoolean() ? 40 : 2000);
+                    List<Integer> more = range(next, count);
+                    next += count;
+                    expected.addAll(more);
+                    actual = actual.appendList(ImmList.fromList(more));
+                    break;
+                }
+                case 2: {
+                    int index = random.nextInt(size + 1);
+                    expected.add(index, next);
+                    actual = actual.insert(index, next++);
+                    break;
+                }
+                case 3: {
+                    int index = random.nextInt(size);
+                    expected.remove(index);
+                    actual = actual.remove(index);
+                    break;
+                }
+                case 4: {
+                    int index = random.nextInt(size);
+                    expected.set(index, next);
+                    actual = actual.replace(index, next++);
+                    break;
+                }
+                case 5: {
+                    int start = random.nextInt(size / 4 + 1);
+                    int end = size - random.nextInt(size / 4 + 1);
+                    expected = new ArrayList<>(expected.subList(start, end));
+                    actual = actual.subList(start, end);
+                    break;
+                }
+                default: {
+                    // concatenate the list with a slice of itself
+                    int start = random.nextInt(size);
+                    int end = start + random.nextInt(size - start + 1);
+                    expected.addAll(new ArrayList<>(expected.subList(start, end)));
+                    actual = actual.appendList(actual.subList(start, end));
+                    break;
+                }
+            }
+            if (expected.size() > 100000) {
+                expected = new ArrayList<>(expected.subList(0, 1000));
+                actual = actual.subList(0, 1000);
+            }
+            if (step % 100 == 0) {
+                assertSameMembers(expected, actual);
+            } else {
+                assertEquals(expected.size(), actual.size());
+                if (!expected.isEmpty()) {
+                    int index = random.nextInt(expected.size());
+                    assertEquals(expected.get(index), actual.get(index));
+                }
+            }
+        }
+        assertSameMembers(expected, actual);
+    }
+
+    @Test
+    public void testPersistence() {
+        List<Integer> expected = range(0, 3000);
+        ImmList<Integer> original = ImmListRRB.fromMembers(expected);
+        original.append(-1);
+        original.insert(1500, -1);
+        original.remove(17);
+        original.replace(2999, -1);
+        original.appendList(original);
+        original.subList(100, 200).append(-1);
+        assertSameMembers(expected, original);
+    }
+
+    @Test
+    public void testTransient() {
+        ImmList<Integer> base = ImmListRRB.fromMembers(range(0, 100));
+        ImmList.Transient<Integer> builder = base.asTransient();
+        for (int i = 100; i < 5000; i++) {
+            builder.append(i);
+        }
+        assertSameMembers(range(0, 5000), builder.persistent());
+        assertSameMembers(range(0, 100), base);
+    }
+}
@@ -0,0 +1,257 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.regex;
+
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.StringValue;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link LazyDFA}. For a selection of regular expressions, the results are compared with those of the
+ * backtracking {@link REMatcher}. For randomly generated regular expressions, they are compared with those of
+ * {@link java.util.regex.Pattern}, because REMatcher does not retry earlier iterations of a repeated group, and so
+ * can miss matches that both the DFA and java.util.regex find.
+ */
+
+public class LazyDFATest {
+
+    private static final String[] PATTERNS = {
+            "abc", "a*", "a+b", "(a|ab)(c|bcd)", "a*?b", "(ab|a)*", "[a-c]{2,3}", "x{0,2}?y",
+            "^a", "a$", "^$", "^(a|b)+$", "\\s+", "[^a\\n]+", ".", ".*", "\\d+(\\.\\d*)?", "\\p{Lu}+",
+            "[\\p{L}-[a-z]]+", "\u00e9+", "\uD83D\uDE00|x", "(?:ab)+?c", "(a|b|c){3}", "a|^b|c$"
+    };
+
+    private static final String[] FLAGS = {"", "i", "m", "s", "mi", "q", "x"};
+
+    // The random regular expressions use only constructs whose meaning is the same in java.util.regex
+    private static final String[] ATOMS = {
+            "-x", "abc", "a", "b", "c", "\\n", "[ab]", "[^a]", ".", "\\s", "x", "ab", "\u00e9", "\uD83D\uDE00", "A"
+    };
+
+    private static final String[] RANDOM_FLAGS = {"", "i", "s", "x", "si"};
+
+    private static final String[] QUANTIFIERS = {"*", "+", "?", "*?", "+?", "??", "{2}", "{1,3}", "{0,2}?", "{2,}"};
+
+    private static final String INPUT_CHARS = "aabbcxA\n \u00e9\u00c9";
+
+    private static final UnicodeString EMPTY = UnicodeString.makeUnicodeString("");
+
+    private static String randomPattern(Random random, int depth) {
+        switch (random.nextInt(depth <= 0 ? 2 : 8)) {
+            case 0:
+            case 1:
+                return ATOMS[random.nextInt(ATOMS.length)];
+            case 2:
+                return randomPattern(random, depth - 1) + randomPattern(random, depth - 1);
+            case 3:
+                return "(" + randomPattern(random, depth - 1) + "|" + randomPattern(random, depth - 1) + ")";
+            case 4:
+                // A repeated group that can match a zero-length string is not repeated in the same way as
+                // in java.util.regex, so such groups are not quantified here
+                String body = randomPattern(random, depth - 1);
+                if (Pattern.compile(body).matcher("").matches()) {
+                    return "(" + body + ")";
+                }
+                return "(" + body + ")" + QUANTIFIERS[random.nextInt(QUANTIFIERS.length)];
+            case 5:
+                return randomPattern(random, depth - 1) + "|" + randomPattern(random, depth - 1);
+            case 6:
+                return "(?:" + randomPattern(random, depth - 1) + ")";
+            default:
+                return randomPattern(random, depth - 1) + randomPattern(random, depth - 1)
+                        + randomPattern(random, depth - 1);
+        }
+    }
+
+    private static String randomInput(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(10);
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(12) == 0) {
+                sb.append("\uD83D\uDE00");
+            } else {
+                sb.append(INPUT_CHARS.charAt(random.nextInt(INPUT_CHARS.length())));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static REProgram compile(String pattern, String flags) {
+        try {
+            return new ARegularExpression(pattern, flags, "XP30", null, null).regex;
+        } catch (XPathException e) {
+            return null;
+        }
+    }
+
+    private static Pattern compileJava(String pattern, String flags) {
+        int javaFlags = 0;
+        if (flags.contains("i")) {
+            javaFlags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        }
+        if (flags.contains("s")) {
+            javaFlags |= Pattern.DOTALL;
+        }
+        if (flags.contains("x")) {
+            javaFlags |= Pattern.COMMENTS;
+        }
+        return Pattern.compile(pattern, javaFlags);
+    }
+
+    /**
+     * Compare the results of the lazy DFA and the backtracking matcher for one input
+     *
+     * @return true if the comparison was made, false if the regular expression cannot be handled by a DFA
+     */
+
+    private static boolean compare(REProgram program, String pattern, String flags, String input) {
+        LazyDFA dfa = LazyDFA.make(program);
+        if (dfa == null) {
+            return false;
+        }
+        UnicodeString in = UnicodeString.makeUnicodeString(input);
+        String context = "/" + pattern + "/" + flags + " against '" + input + "'";
+
+        boolean expectedMatches = (input.isEmpty() && program.isNullable()) || new REMatcher(program).anchoredMatch(in);
+        assertEquals("matches " + context, expectedMatches, dfa.matches(in));
+        assertEquals("containsMatch " + context, new REMatcher(program).match(in, 0), dfa.containsMatch(in));
+
+        // The positions of matches are needed only for functions such as fn:tokenize, which are not
+        // allowed to use a regular expression that matches a zero-length string
+        if (!program.isNullable() && !new REMatcher(program).anchoredMatch(EMPTY)) {
+            int[] found = new int[2];
+            for (int from = 0; from <= in.uLength(); from++) {
+                REMatcher matcher = new REMatcher(program);
+                boolean expected = matcher.match(in, from);
+                assertEquals("find from " + from + " " + context, expected, dfa.find(in, from, found));
+                if (expected) {
+                    assertEquals("match start from " + from + " " + context, matcher.getParenStart(0), found[0]);
+                    assertEquals("match end from " + from + " " + context, matcher.getParenEnd(0), found[1]);
+                }
+            }
+
+            ATokenIterator expectedTokens = new ATokenIterator(in, new REMatcher(program));
+            DFATokenIterator actualTokens = new DFATokenIterator(in, dfa);
+            StringValue token;
+            while ((token = expectedTokens.next()) != null) {
+                StringValue actual = actualTokens.next();
+                assertNotNull("tokenize " + context, actual);
+                assertEquals("tokenize " + context, token.getStringValue(), actual.getStringValue());
+            }
+            assertNull("tokenize " + context, actualTokens.next());
+        }
+        return true;
+    }
+
+    /**
+     * Compare the results of the lazy DFA and java.util.regex for one input
+     *
+     * @return true if the comparison was made, false if the regular expression cannot be handled by a DFA
+     */
+
+    private static boolean compareWithJava(LazyDFA dfa, Pattern pattern, String flags, String input) {
+        if (dfa == null) {
+            return false;
+        }
+        UnicodeString in = UnicodeString.makeUnicodeString(input);
+        String context = "/" + pattern.pattern() + "/" + flags + " against '" + input + "'";
+        Matcher matcher = pattern.matcher(input);
+
+        assertEquals("matches " + context, matcher.matches(), dfa.matches(in));
+        assertEquals("containsMatch " + context, matcher.find(0), dfa.containsMatch(in));
+
+        if (!pattern.matcher("").matches()) {
+            int[] found = new int[2];
+            for (int from = 0; from <= in.uLength(); from++) {
+                boolean expected = matcher.find(input.offsetByCodePoints(0, from));
+                assertEquals("find from " + from + " " + context, expected, dfa.find(in, from, found));
+                if (expected) {
+                    assertEquals("match start from " + from + " " + context,
+                                 input.codePointCount(0, matcher.start()), found[0]);
+                    assertEquals("match end from " + from + " " + context,
+                                 input.codePointCount(0, matcher.end()), found[1]);
+                }
+            }
+
+            DFATokenIterator actualTokens = new DFATokenIterator(in, dfa);
+            int previous = 0;
+            while (matcher.find(previous)) {
+                assertEquals("tokenize " + context,
+                             input.substring(previous, matcher.start()), actualTokens.next().getStringValue());
+                previous = matcher.end();
+            }
+            assertEquals("tokenize " + context, input.substring(previous), actualTokens.next().getStringValue());
+            assertNull("tokenize " + context, actualTokens.next());
+        }
+        return true;
+    }
+
+    @Test
+    public void testSelectedPatterns() {
+        Random random = new Random(1234);
+        for (String pattern : PATTERNS) {
+            for (String flags : FLAGS) {
+                REProgram program = compile(pattern, flags);
+                assertNotNull(pattern, program);
+                assertTrue("/" + pattern + "/" + flags + " not handled by a DFA", compare(program, pattern, flags, ""));
+                for (int i = 0; i < 20; i++) {
+                    compare(program, pattern, flags, randomInput(random));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRandomPatterns() {
+        Random random = new Random(98765);
+        int compared = 0;
+        for (int i = 0; i < 5000; i++) {
+            String pattern = randomPattern(random, 3);
+            String flags = RANDOM_FLAGS[random.nextInt(RANDOM_FLAGS.length)];
+            REProgram program = compile(pattern, flags);
+            assertNotNull(pattern, program);
+            LazyDFA dfa = LazyDFA.make(program);
+            Pattern javaPattern = compileJava(pattern, flags);
+            for (int j = 0; j < 5; j++) {
+                if (compareWithJava(dfa, javaPattern, flags, randomInput(random))) {
+                    compared++;
+                }
+            }
+        }
+        assertTrue(compared > 20000);
+    }
+
+    @Test
+    public void testBackReferencesNotSupported() {
+        REProgram program = compile("(a)\\1", "");
+        assertNotNull(program);
+        assertNull(LazyDFA.make(program));
+    }
+
+    @Test
+    public void testLongInput() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append(i % 7 == 0 ? ' ' : (char) ('a' + i % 26));
+        }
+        String input = sb.toString();
+        for (String pattern : new String[]{"\\s+", "[a-e]+", "(ab|cd)+e", "z\\s"}) {
+            REProgram program = compile(pattern, "");
+            assertTrue(compare(program, pattern, "", input));
+        }
+    }
+}
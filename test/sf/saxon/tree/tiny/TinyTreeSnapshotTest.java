@@ -0,0 +1,228 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Copyright (c) 2018-2020 Saxonica Limited
+// This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+// If a copy of the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+// This Source Code Form is "Incompatible With Secondary Licenses", as defined by the Mozilla Public License, v. 2.0.
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package net.sf.saxon.tree.tiny;
+
+import net.sf.saxon.om.TreeModel;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmEmptySequence;
+import net.sf.saxon.s9api.XdmNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link TinyTreeSnapshot}, checking that a document saved as a snapshot and loaded again
+ * is indistinguishable from the original
+ */
+
+public class TinyTreeSnapshotTest {
+
+    private static final String SYSTEM_ID = "http://example.com/dir/doc.xml";
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("tinytreesnapshottest", ".snapshot");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static XdmNode build(Processor processor, String xml) throws SaxonApiException {
+        StreamSource source = new StreamSource(new StringReader(xml), SYSTEM_ID);
+        return processor.newDocumentBuilder().build(source);
+    }
+
+    private XdmNode roundTrip(XdmNode document, Processor target) throws SaxonApiException {
+        new Processor(false).newDocumentBuilder().saveSnapshot(document, file);
+        return target.newDocumentBuilder().buildFromSnapshot(file);
+    }
+
+    /**
+     * Evaluate an XPath expression with the variables $a and $b bound to nodes built using the given
+     * processor, returning the result as a string
+     */
+
+    private static String evaluate(Processor processor, String expression, XdmNode a, XdmNode b)
+            throws SaxonApiException {
+        XPathCompiler compiler = processor.newXPathCompiler();
+        compiler.declareNamespace("p", "http://example.com/p");
+        compiler.declareVariable(new QName("a"));
+        compiler.declareVariable(new QName("b"));
+        XPathSelector selector = compiler.compile(expression).load();
+        selector.setVariable(new QName("a"), a);
+        selector.setVariable(new QName("b"), b == null ? XdmEmptySequence.getInstance() : b);
+        return selector.evaluate().toString();
+    }
+
+    private static final String[] PROPERTIES = {
+            "document-uri($a)", "base-uri($a)", "$a//node()!base-uri()", "$a//*!in-scope-prefixes(.)",
+            "$a//*!namespace-uri()", "$a//p:*!name()", "$a//@*!node-name()!string()",
+            "$a//processing-instruction()!name()", "count($a//node())", "$a//text()!string-length()"
+    };
+
+    /**
+     * Check that a document loaded from a snapshot is indistinguishable from the original
+     *
+     * @param source   the processor used to build the original document
+     * @param expected the original document
+     * @param target   the processor used to load the snapshot
+     * @param actual   the document loaded from the snapshot
+     */
+
+    private static void assertSameDocument(Processor source, XdmNode expected, Processor target, XdmNode actual)
+            throws SaxonApiException {
+        assertEquals(expected.toString(), actual.toString());
+        for (String property : PROPERTIES) {
+            assertEquals(property, evaluate(source, property, expected, null), evaluate(target, property, actual, null));
+        }
+        if (source == target) {
+            assertEquals("true", evaluate(source, "deep-equal($a, $b)", expected, actual));
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws SaxonApiException {
+        String xml = "<?xml version='1.0'?>\n" +
+                "<!-- before the root -->\n" +
+                "<root xmlns='http://example.com/default' xmlns:p='http://example.com/p' a='1' p:b='two'>\n" +
+                "  <p:item id='i1' xml:lang='fr'>caf\u00e9 \uD83D\uDE00 &amp; &lt;tag&gt;</p:item>\n" +
+                "  <?target some data?>\n" +
+                "  <empty/>\n" +
+                "  <section xml:base='sub/'>\n" +
+                "    <inner xml:base='deeper/file.xml' xmlns:q='http://example.com/q'><q:x q:y='z'/></inner>\n" +
+                "    <![CDATA[ <not markup> ]]>\n" +
+                "  </section>\n" +
+                "  <mixed>text<b>bold</b>tail<!-- comment \uD83D\uDE01 --></mixed>\n" +
+                "  <unbound xmlns=''><child/></unbound>\n" +
+                "</root>\n" +
+                "<?after the root?>";
+        Processor processor = new Processor(false);
+        XdmNode original = build(processor, xml);
+        XdmNode loaded = roundTrip(original, processor);
+        assertSameDocument(processor, original, processor, loaded);
+    }
+
+    @Test
+    public void testLoadIntoAnotherProcessor() throws SaxonApiException {
+        // The names must be re-registered in the NamePool of the receiving configuration
+        Processor first = new Processor(false);
+        StringBuilder xml = new StringBuilder("<p:doc xmlns:p='http://example.com/p'>");
+        for (int i = 0; i < 200; i++) {
+            xml.append("<p:e").append(i).append(" att").append(i).append("='").append(i).append("'/>");
+        }
+        xml.append("</p:doc>");
+        XdmNode original = build(first, xml.toString());
+        Processor second = new Processor(false);
+        second.getUnderlyingConfiguration().getNamePool().allocateFingerprint("", "unrelated");
+        XdmNode loaded = roundTrip(original, second);
+        assertSameDocument(first, original, second, loaded);
+        assertEquals("199", evaluate(second, "string($a/*/*[last()]/@att199)", loaded, null));
+    }
+
+    @Test
+    public void testLargeText() throws SaxonApiException {
+        // Text nodes longer than the buffer used for reading and writing, with surrogate pairs placed
+        // so that some of them straddle the boundaries between chunks
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            if (i % 65535 == 0 || i % 1000 == 999) {
+                text.append("\uD83D\uDE00");
+            } else if (i % 17 == 0) {
+                text.append('\u00e9');
+            } else {
+                text.append((char) ('a' + i % 26));
+            }
+        }
+        String xml = "<doc><t>" + text + "</t><t>" + text.substring(2, 70002) + "</t><!--" + text + "--></doc>";
+        Processor processor = new Processor(false);
+        XdmNode original = build(processor, xml);
+        XdmNode loaded = roundTrip(original, processor);
+        assertSameDocument(processor, original, processor, loaded);
+        assertEquals(text.toString(), evaluate(processor, "string($a/doc/t[1])", loaded, null));
+    }
+
+    @Test
+    public void testManyNodes() throws SaxonApiException {
+        StringBuilder xml = new StringBuilder("<doc xmlns:p='http://example.com/p'>");
+        for (int i = 0; i < 50000; i++) {
+            xml.append("<p:r n='").append(i).append("'>").append(i % 10 == 0 ? "" : "v" + i).append("</p:r>");
+        }
+        xml.append("</doc>");
+        Processor processor = new Processor(false);
+        XdmNode original = build(processor, xml.toString());
+        XdmNode loaded = roundTrip(original, processor);
+        assertSameDocument(processor, original, processor, loaded);
+        assertEquals("50000 v49999",
+                     evaluate(processor, "count($a//p:r) || ' ' || $a//p:r[@n = '49999']", loaded, null));
+    }
+
+    @Test
+    public void testOnlyRootOfTinyTree() throws SaxonApiException {
+        Processor processor = new Processor(false);
+        DocumentBuilder builder = processor.newDocumentBuilder();
+        XdmNode document = build(processor, "<a><b/></a>");
+        try {
+            builder.saveSnapshot(document.children().iterator().next(), file);
+            fail("saved a snapshot of an element");
+        } catch (SaxonApiException e) {
+            // expected
+        }
+        builder.setTreeModel(TreeModel.LINKED_TREE);
+        XdmNode linked = builder.build(new StreamSource(new StringReader("<a/>")));
+        try {
+            builder.saveSnapshot(linked, file);
+            fail("saved a snapshot of a linked tree");
+        } catch (SaxonApiException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testInvalidSnapshot() throws SaxonApiException, IOException {
+        Processor processor = new Processor(false);
+        DocumentBuilder builder = processor.newDocumentBuilder();
+        Files.write(file.toPath(), "<a/>".getBytes("UTF-8"));
+        try {
+            builder.buildFromSnapshot(file);
+            fail("loaded a file that is not a snapshot");
+        } catch (SaxonApiException e) {
+            // expected
+        }
+
+        builder.saveSnapshot(build(processor, "<a><b>some text</b></a>"), file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+        try {
+            builder.buildFromSnapshot(file);
+            fail("loaded a truncated snapshot");
+        } catch (SaxonApiException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("snapshot"));
+        }
+    }
+}